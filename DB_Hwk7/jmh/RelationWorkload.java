@@ -0,0 +1,160 @@
+import bench.Workload;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The operator calls measured by OperatorBenchmark, over generated relations:
+ *   fact(id, dim, grp, amount, label)	rows tuples, unique id
+ *   fact2(id, dim, grp, amount, label)	rows tuples, half of them also in fact
+ *   dim(dim, name, weight)				rows/10 tuples (at least 10), unique dim
+ *   small(s, tag)						100 tuples
+ * naturalJoin goes through select(times(...)), so it joins dim with a 1000-tuple slice
+ * of fact rather than all of it.
+ */
+public class RelationWorkload implements Workload {
+	private File dir;
+	private DavidDB db;
+	private Relation fact;
+	private Relation fact2;
+	private Relation dim;
+	private Relation small;
+	private Relation slice;
+
+	@Override
+	public void setUp(int rows) throws Exception {
+		this.dir = Files.createTempDirectory("daviddb-bench").toFile();
+		int dims = Math.max(10, rows / 10);
+		Random rand = new Random(42);
+		try (PrintWriter out = new PrintWriter(new File(this.dir, "schema.txt"))) {
+			out.println("fact(id NUMERIC, dim NUMERIC, grp NUMERIC, amount NUMERIC, label TEXT)");
+			out.println("fact2(id NUMERIC, dim NUMERIC, grp NUMERIC, amount NUMERIC, label TEXT)");
+			out.println("dim(dim NUMERIC, name TEXT, weight NUMERIC)");
+			out.println("small(s NUMERIC, tag TEXT)");
+			out.println("slice(id NUMERIC, dim NUMERIC, grp NUMERIC, amount NUMERIC, label TEXT)");
+		}
+		writeFacts("fact", 0, rows, dims);
+		writeFacts("fact2", rows / 2, rows, dims);
+		writeFacts("slice", 0, Math.min(rows, 1000), dims);
+		try (PrintWriter out = new PrintWriter(new File(this.dir, "dim.txt"))) {
+			for (int i = 0; i < dims; i++) {
+				out.println(i + "|'dim" + i + "'|" + rand.nextInt(100));
+			}
+		}
+		try (PrintWriter out = new PrintWriter(new File(this.dir, "small.txt"))) {
+			for (int i = 0; i < 100; i++) {
+				out.println(i + "|'tag" + (i % 10) + "'");
+			}
+		}
+
+		this.db = new DavidDB(new File(this.dir, "schema.txt").getPath());
+		this.db.setResultCacheEnabled(false);
+		this.fact = this.load("fact");
+		this.fact2 = this.load("fact2");
+		this.dim = this.load("dim");
+		this.small = this.load("small");
+		this.slice = this.load("slice");
+	}
+
+	/**
+	 * Writes a data file of fact tuples
+	 * @param name	relation name
+	 * @param first	id of the first tuple
+	 * @param count	number of tuples
+	 * @param dims	number of dim tuples to refer to
+	 */
+	private void writeFacts(String name, int first, int count, int dims) throws IOException {
+		try (PrintWriter out = new PrintWriter(new File(this.dir, name + ".txt"))) {
+			for (int id = first; id < first + count; id++) {
+				// amounts depend on the id alone, so tuples shared by fact and fact2 are equal
+				out.println(id + "|" + (id % dims) + "|" + (id % 100) + "|" + ((id * 7919) % 1000) +
+						"|'label" + (id % 50) + "'");
+			}
+		}
+	}
+
+	/**
+	 * @param name	name of a relation in the schema
+	 * @return the relation, populated from its data file
+	 */
+	private Relation load(String name) throws IOException {
+		Relation r = (Relation) this.db.getRelation(name);
+		r.read(new File(this.dir, name + ".txt").getPath());
+		return r;
+	}
+
+	@Override
+	public void tearDown() {
+		for (File f : this.dir.listFiles()) {
+			f.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Override
+	public Object read() throws Exception {
+		Relation r = new Relation("fact");
+		List<Attribute> list = new ArrayList<>();
+		for (Attribute a : this.fact.getAttributes()) {
+			list.add(new Attribute(r, a.getType(), a.getName()));
+		}
+		r.setAttributes(list);
+		r.read(new File(this.dir, "fact.txt").getPath());
+		return r;
+	}
+
+	@Override
+	public Object select() {
+		return this.db.select(this.fact, "amount > 500 && grp < 50");
+	}
+
+	@Override
+	public Object project() {
+		return this.db.project(this.fact, new String[] {"grp", "label"});
+	}
+
+	@Override
+	public Object times() {
+		return this.db.times(this.dim, this.small);
+	}
+
+	@Override
+	public Object naturalJoin() {
+		return this.db.naturalJoin(this.dim, this.slice);
+	}
+
+	@Override
+	public Object hashJoin() {
+		return this.db.hashJoin(this.dim, this.fact);
+	}
+
+	@Override
+	public Object sortJoin() {
+		return this.db.sortJoin(this.dim, this.fact);
+	}
+
+	@Override
+	public Object aggregate() {
+		return this.db.aggregate(this.fact, new Agg[] {Agg.SUM, Agg.COUNT},
+				new String[] {"amount", "amount"}, new String[] {"grp"});
+	}
+
+	@Override
+	public Object union() {
+		return this.db.union(this.fact, this.fact2);
+	}
+
+	@Override
+	public Object intersect() {
+		return this.db.intersect(this.fact, this.fact2);
+	}
+
+	@Override
+	public Object minus() {
+		return this.db.minus(this.fact, this.fact2);
+	}
+}
@@ -0,0 +1,19 @@
+package bench;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of benchmarks.jar: runs JMH with the GC profiler, which reports the
+ * allocation rate and bytes allocated per operation, unless another profiler is chosen.
+ * Any JMH command-line options may be given, e.g. "-p rows=1000 hashJoin".
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		if (!Arrays.asList(args).contains("-prof")) {
+			args = Arrays.copyOf(args, args.length + 2);
+			args[args.length - 2] = "-prof";
+			args[args.length - 1] = "gc";
+		}
+		org.openjdk.jmh.Main.main(args);
+	}
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and average latency of each relational operator, at several data scales.
+ * The query result cache is off, so every invocation does the work. Run through
+ * BenchmarkMain to also get the GC allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class OperatorBenchmark {
+	@Param({"1000", "10000", "100000"})
+	public int rows;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this.workload = (Workload) Class.forName("RelationWorkload").getDeclaredConstructor().newInstance();
+		this.workload.setUp(this.rows);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.workload.tearDown();
+	}
+
+	@Benchmark
+	public Object read() throws Exception {
+		return this.workload.read();
+	}
+
+	@Benchmark
+	public Object select() {
+		return this.workload.select();
+	}
+
+	@Benchmark
+	public Object project() {
+		return this.workload.project();
+	}
+
+	@Benchmark
+	public Object times() {
+		return this.workload.times();
+	}
+
+	@Benchmark
+	public Object naturalJoin() {
+		return this.workload.naturalJoin();
+	}
+
+	@Benchmark
+	public Object hashJoin() {
+		return this.workload.hashJoin();
+	}
+
+	@Benchmark
+	public Object sortJoin() {
+		return this.workload.sortJoin();
+	}
+
+	@Benchmark
+	public Object aggregate() {
+		return this.workload.aggregate();
+	}
+
+	@Benchmark
+	public Object union() {
+		return this.workload.union();
+	}
+
+	@Benchmark
+	public Object intersect() {
+		return this.workload.intersect();
+	}
+
+	@Benchmark
+	public Object minus() {
+		return this.workload.minus();
+	}
+}
@@ -0,0 +1,42 @@
+package bench;
+
+/**
+ * The operator calls measured by OperatorBenchmark. The database classes live in the
+ * default package, which JMH benchmarks (and any other named package) cannot import,
+ * so the calls are made through this interface by RelationWorkload, which can.
+ */
+public interface Workload {
+	/**
+	 * Generates the benchmark relations, writes them to data files and loads them
+	 * @param rows	number of tuples in the largest relations
+	 * @throws Exception if the files cannot be written or read
+	 */
+	void setUp(int rows) throws Exception;
+
+	/**
+	 * Deletes the data files
+	 */
+	void tearDown();
+
+	Object read() throws Exception;
+
+	Object select();
+
+	Object project();
+
+	Object times();
+
+	Object naturalJoin();
+
+	Object hashJoin();
+
+	Object sortJoin();
+
+	Object aggregate();
+
+	Object union();
+
+	Object intersect();
+
+	Object minus();
+}
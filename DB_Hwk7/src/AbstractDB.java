@@ -1,6 +1,7 @@
 import exceptions.DBException;
 import java.io.FileNotFoundException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * DavidDB: The finest relational database system written in the common era.
@@ -19,7 +20,7 @@ public abstract class AbstractDB {
 	 */
 	public AbstractDB(String filename) throws FileNotFoundException {
 		this.schema_file = filename;
-		this.relations = new HashMap<>();
+		this.relations = new ConcurrentHashMap<>();	// looked up by many query threads
 		this.createRelations();
 	}
 
@@ -181,4 +182,33 @@ public abstract class AbstractDB {
 	 * @pre the common attributes in r1 must be unique
 	 */
 	public abstract Relation hashJoin(Relation r1, Relation r2) throws DBException;
+
+	/**
+	 * Removes duplicate tuples from a relation. Operators keep bag semantics, so this is
+	 * where duplicates are removed, once, when a query needs a set.
+	 * @param r	the relation
+	 * @return a relation holding each distinct tuple of r once
+	 * @throws DBException if duplicates cannot be removed
+	 */
+	public abstract Relation distinct(Relation r) throws DBException;
+
+	/**
+	 * Performs a semi-join: the tuples of r1 that match at least one tuple of r2
+	 * on their common attributes.
+	 * @param r1	relation whose tuples are returned
+	 * @param r2	relation that r1's tuples must match
+	 * @return a relation with r1's attributes containing the matching tuples of r1
+	 * @throws DBException if a common attribute is ambiguous
+	 */
+	public abstract Relation semiJoin(Relation r1, Relation r2) throws DBException;
+
+	/**
+	 * Performs an anti-join: the tuples of r1 that match no tuple of r2
+	 * on their common attributes.
+	 * @param r1	relation whose tuples are returned
+	 * @param r2	relation that r1's tuples must not match
+	 * @return a relation with r1's attributes containing the unmatched tuples of r1
+	 * @throws DBException if a common attribute is ambiguous
+	 */
+	public abstract Relation antiJoin(Relation r1, Relation r2) throws DBException;
 }
\ No newline at end of file
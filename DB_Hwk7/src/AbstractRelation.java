@@ -2,18 +2,45 @@ import java.io.FileNotFoundException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is an abstract class representing a relation in DavidDB.
  *
+ * A relation may be read by any number of threads while one thread writes to it. Writes
+ * are serialized on the relation's monitor. Reads take no lock: getTuples() hands out the
+ * current collection of tuples, and from then on writers copy that collection before changing
+ * it (copy-on-write), so a reader's collection never changes under it. Consecutive writes with
+ * no read in between copy at most once.
+ *
+ * A relation registered with a VersionClock keeps its tuples as of the last commit as its
+ * newest version, so that a batch that fails can be undone, and also keeps the collections it
+ * replaced for as long as an open snapshot may need them, each tagged with the commit timestamp
+ * from which it was current. Readers in a snapshot get the newest of these at or before the
+ * snapshot's timestamp.
+ *
  * @author David
  * @version 6/3/2018
  */
 public abstract class AbstractRelation {
-	protected String name;
-	protected List<Attribute> attribute_list;
-	protected Set<Tuple> tuples;
+	/* source of unique relation ids, used to identify relations in cache keys */
+	private static final AtomicLong next_id = new AtomicLong();
+
+	protected volatile String name;
+	protected volatile List<Attribute> attribute_list;
+	protected Collection<Tuple> tuples;	/* a Set, or a List when duplicates are kept or cannot occur; guarded by this */
+	protected volatile boolean bag;		/* bag semantics: duplicate tuples are kept */
+	protected final long id;
+	protected volatile long version;		/* bumped on every change to name, schema or tuples */
+	protected volatile long schema_version;	/* bumped on every change to name or schema */
+	protected boolean shared;	/* tuples are shared with another relation or reader; copy before writing; guarded by this */
+	private volatile Collection<Tuple> published;	/* tuples as last handed to readers, or null if written since */
+	private volatile VersionClock clock;	/* clock the relation is versioned by, or null */
+	private volatile TupleVersion head;	/* tuples as of the last commit, or null if not versioned; written with the clock's writer lock held */
 
 	/**
 	 * Creates an empty relation without a name
@@ -29,6 +56,73 @@ public abstract class AbstractRelation {
 	public AbstractRelation(String name) {
 		this.name = name;
 		this.tuples = new HashSet<>();
+		this.bag = false;
+		this.id = next_id.getAndIncrement();
+		this.version = 0;
+		this.schema_version = 0;
+		this.shared = false;
+	}
+
+	/**
+	 * @return true if this relation keeps duplicate tuples (bag semantics),
+	 * 		false if it is a set
+	 */
+	public boolean isBag() {
+		return this.bag;
+	}
+
+	/**
+	 * Switches between bag and set semantics. Switching to a set removes duplicates.
+	 * @param bag	true for bag semantics, false for set semantics
+	 */
+	public void setBag(boolean bag) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.setBag(bag));
+			return;
+		}
+		synchronized (this) {
+			if (bag != this.bag) {
+				this.bag = bag;
+				this.tuples = bag ? new ArrayList<>(this.tuples) : new HashSet<>(this.tuples);
+				this.shared = false;
+				this.touch();
+			}
+		}
+	}
+
+	/**
+	 * @return an id that is unique to this relation object
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return the number of modifications made to this relation since it was created, as of the
+	 * 			calling thread's snapshot if it has one open
+	 */
+	public long getVersion() {
+		TupleVersion visible = this.visibleVersion();
+		return (visible == null) ? this.version : visible.version;
+	}
+
+	/**
+	 * @return the number of changes made to this relation's name or attributes since it was created
+	 */
+	public long getSchemaVersion() {
+		return this.schema_version;
+	}
+
+	/**
+	 * Records a modification to this relation; called with the monitor held
+	 */
+	protected void touch() {
+		this.published = null;		// the next reader picks up the new tuples
+		this.version++;
+		VersionClock clock = this.clock;
+		if (clock != null && clock.isWriting()) {
+			clock.changed(this);
+		}
 	}
 
 	/**
@@ -42,8 +136,10 @@ public abstract class AbstractRelation {
 	 * Renames the current relation
 	 * @param name	new name for the relation
 	 */
-	public void setName(String name) {
+	public synchronized void setName(String name) {
 		this.name = name;
+		this.schema_version++;
+		this.touch();
 	}
 
 	/**
@@ -57,17 +153,326 @@ public abstract class AbstractRelation {
 	 * Assigns a list of attributes
 	 * @param list a list of attributes
 	 */
-	public void setAttributes(List<Attribute> list) {
+	public synchronized void setAttributes(List<Attribute> list) {
 		this.attribute_list = list;
+		this.schema_version++;
+		this.touch();
 	}
 
 	/**
-	 * @return the set of tuples currently stored
+	 * @return a read-only view of the tuples currently stored (as of the calling thread's
+	 * 			snapshot if it has one open), which later writes do not change
 	 */
-	public Set<Tuple> getTuples() {
+	public Collection<Tuple> getTuples() {
+		return Collections.unmodifiableCollection(this.snapshot());
+	}
+
+	/**
+	 * Gets the tuples for reading. In a snapshot, the version it sees, without a lock. Otherwise
+	 * without a lock if no write happened since the last read; if one did, waits for any write
+	 * in progress, and makes later writes copy the tuples.
+	 * @return the tuples currently stored, which the caller must not modify
+	 */
+	protected Collection<Tuple> snapshot() {
+		TupleVersion visible = this.visibleVersion();
+		if (visible != null) {
+			return visible.tuples;
+		}
+		Collection<Tuple> snapshot = this.published;
+		if (snapshot == null) {
+			synchronized (this) {
+				this.shared = true;
+				snapshot = this.tuples;
+				this.published = snapshot;
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Inserts all of the given tuples into the current relation.
+	 * @param others tuples to be added
+	 */
+	public void addAll(Collection<Tuple> others) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.addAll(others));
+			return;
+		}
+		synchronized (this) {
+			if (this.writableTuples().addAll(others)) {
+				this.touch();
+			}
+		}
+	}
+
+	/**
+	 * Removes all of the given tuples from the current relation.
+	 * @param others tuples to be removed
+	 */
+	public void removeAll(Collection<Tuple> others) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.removeAll(others));
+			return;
+		}
+		synchronized (this) {
+			if (this.writableTuples().removeAll(others)) {
+				this.touch();
+			}
+		}
+	}
+
+	/**
+	 * Removes every tuple from the current relation.
+	 */
+	public void clearTuples() {
+		if (this.outsideWrite()) {
+			this.clock.update(this::clearTuples);
+			return;
+		}
+		synchronized (this) {
+			if (!this.tuples.isEmpty()) {
+				if (this.shared) {
+					this.tuples = (this.tuples instanceof Set) ? new HashSet<>() : new ArrayList<>();
+					this.shared = false;
+				}
+				else {
+					this.tuples.clear();
+				}
+				this.touch();
+			}
+		}
+	}
+
+	/**
+	 * Makes this relation share the given relation's tuples instead of its own. Whichever
+	 * of the two is modified first will copy the tuples (copy-on-write).
+	 * @param source	relation whose tuples to share
+	 */
+	protected void shareTuples(AbstractRelation source) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.shareTuples(source));
+			return;
+		}
+		synchronized (this) {
+			this.tuples = source.snapshot();	// marks source's tuples shared
+			this.shared = true;
+			this.touch();
+		}
+	}
+
+	/**
+	 * Gets the tuples for modification, first copying them if they are shared with another
+	 * relation. A set stored as a list is converted to a hash set, so that duplicates
+	 * are detected again.
+	 * Called with the monitor held.
+	 * @return the tuples, owned by this relation alone
+	 */
+	protected Collection<Tuple> writableTuples() {
+		if (!this.bag && !(this.tuples instanceof Set)) {
+			this.tuples = new HashSet<>(this.tuples);
+			this.shared = false;
+		}
+		else if (this.shared) {
+			this.tuples = (this.bag) ? new ArrayList<>(this.tuples) : new HashSet<>(this.tuples);
+			this.shared = false;
+		}
 		return this.tuples;
 	}
 
+	/**
+	 * Stores this (empty) relation's tuples in a list, so that addDistinct() appends without
+	 * hashing. Meant for operators whose output is a bag or cannot contain duplicates.
+	 */
+	protected synchronized void useListStorage() {
+		this.tuples = new ArrayList<>();
+		this.shared = false;
+		this.published = null;
+	}
+
+	/**
+	 * Inserts a tuple without the checks done by addTuple(). If tuples are stored in a list the
+	 * tuple is simply appended, so unless this relation is a bag the caller must guarantee that
+	 * it is not already present.
+	 * @param new_tuple the tuple to be added to the relation
+	 */
+	protected void addDistinct(Tuple new_tuple) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.addDistinct(new_tuple));
+			return;
+		}
+		synchronized (this) {
+			if (this.shared) {
+				this.tuples = (this.tuples instanceof Set) ? new HashSet<>(this.tuples) : new ArrayList<>(this.tuples);
+				this.shared = false;
+			}
+			this.tuples.add(new_tuple);
+			this.touch();
+		}
+	}
+
+	/**
+	 * Inserts many tuples at once without the checks done by addTuple() (see: addDistinct)
+	 * @param others tuples to be added
+	 */
+	protected void addAllDistinct(Collection<Tuple> others) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.addAllDistinct(others));
+			return;
+		}
+		synchronized (this) {
+			if (this.shared) {
+				this.tuples = (this.tuples instanceof Set) ? new HashSet<>(this.tuples) : new ArrayList<>(this.tuples);
+				this.shared = false;
+			}
+			if (!others.isEmpty()) {
+				this.tuples.addAll(others);
+				this.touch();
+			}
+		}
+	}
+
+	/**
+	 * Runs a change to the tuples with the monitor held; for a versioned relation, as a batch
+	 * of its own unless the calling thread is already running one (see: VersionClock.update)
+	 * @param change	the change
+	 */
+	protected void write(Runnable change) {
+		if (this.outsideWrite()) {
+			this.clock.update(() -> this.write(change));
+			return;
+		}
+		synchronized (this) {
+			change.run();
+		}
+	}
+
+	/**
+	 * A write must take the clock's writer lock before the monitor, so that it cannot deadlock
+	 * with a batch being committed
+	 * @return true if this relation is versioned and the calling thread is not running a batch
+	 */
+	protected boolean outsideWrite() {
+		VersionClock clock = this.clock;
+		return clock != null && !clock.isWriting();
+	}
+
+	/**
+	 * Versions this relation by the given clock, its tuples as they are committed at the given
+	 * timestamp; see VersionClock.register(). Called with the clock's writer lock held.
+	 * @param clock	the clock
+	 * @param timestamp	the clock's last commit timestamp
+	 */
+	void versionWith(VersionClock clock, long timestamp) {
+		synchronized (this) {
+			this.clock = clock;
+			this.head = new TupleVersion(this.tuples, this.bag, timestamp, this.version, null);
+			this.shared = true;		// the next write must leave the version as it is
+		}
+	}
+
+	/**
+	 * @return the version the calling thread's snapshot sees, or null if it has none open or
+	 * 			this relation is not versioned
+	 */
+	private TupleVersion visibleVersion() {
+		VersionClock clock = this.clock;
+		Snapshot s = (clock == null) ? null : clock.current();
+		if (s == null) {
+			return null;
+		}
+		for (TupleVersion v = this.head; v != null; v = v.older) {
+			if (v.timestamp <= s.getTimestamp()) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Commits the running batch's changes to this relation as its newest version, keeping the
+	 * versions before it until pruned (see: pruneVersions). Called with the clock's writer lock held.
+	 * @param timestamp	the batch's commit timestamp
+	 */
+	void commitVersion(long timestamp) {
+		synchronized (this) {
+			this.head = new TupleVersion(this.tuples, this.bag, timestamp, this.version, this.head);
+			this.published = this.tuples;
+			this.shared = true;		// the next batch must leave the version as it is
+		}
+	}
+
+	/**
+	 * Undoes the running batch's changes to this relation's tuples, going back to the newest
+	 * version. Called with the clock's writer lock held, when the batch fails.
+	 */
+	void rollbackVersion() {
+		synchronized (this) {
+			TupleVersion committed = this.head;
+			if (committed != null) {
+				this.tuples = committed.tuples;
+				this.bag = committed.bag;
+				this.shared = true;
+				this.published = null;
+				this.version++;		// not back to the committed number: results cached meanwhile must not match
+			}
+		}
+	}
+
+	/**
+	 * Drops the versions no open snapshot sees, keeping the newest. Called with the clock's
+	 * writer lock held.
+	 * @param open	timestamps of the open snapshots, in ascending order; if none, every version
+	 * 			but the newest is dropped
+	 */
+	void pruneVersions(long[] open) {
+		TupleVersion kept = this.head;
+		if (kept == null) {
+			return;
+		}
+		if (open.length == 0) {
+			kept.older = null;
+			return;
+		}
+		long newer = kept.timestamp;
+		for (TupleVersion v = kept.older; v != null; v = v.older) {
+			// v is seen by the snapshots opened from its commit until the next version's
+			int i = Arrays.binarySearch(open, v.timestamp);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			if (i < open.length && open[i] < newer) {
+				kept.older = v;
+				kept = v;
+			}
+			newer = v.timestamp;
+		}
+		kept.older = null;
+	}
+
+	/**
+	 * @return number of versions kept for snapshots, besides the newest
+	 */
+	int getVersionCount() {
+		int count = 0;
+		for (TupleVersion v = (this.head == null) ? null : this.head.older; v != null; v = v.older) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Copies the attribute list. The copies still refer to their original relation,
+	 * so their pedantic names are unchanged.
+	 * @return a copy of the attribute list
+	 */
+	protected List<Attribute> copyAttributes() {
+		List<Attribute> list = new ArrayList<>(this.attribute_list.size());
+		for (Attribute a : this.attribute_list) {
+			list.add(new Attribute(a.getRelation(), a.getType(), a.getName()));
+		}
+		return list;
+	}
+
 	/**
 	 * @return a deep copy of this relation
 	 */
@@ -75,14 +480,11 @@ public abstract class AbstractRelation {
 		AbstractRelation r = null;
 		try {
 			r = new Relation();
+			r.setBag(this.bag);
 
 			// deep copy attribute list
-			List<Attribute> list = new ArrayList<>();
-			for (Attribute a : this.attribute_list) {
-				list.add(new Attribute(a.getRelation(), a.getType(), a.getName()));
-			}
-			r.setAttributes(list);	// also sets the new attribute-lookup map
-			for (Tuple t : this.tuples) {
+			r.setAttributes(this.copyAttributes());	// also sets the new attribute-lookup map
+			for (Tuple t : this.snapshot()) {
 				Tuple new_tuple = (Tuple) t.clone();
 				new_tuple.setRelation(r);
 				r.addTuple(new_tuple);
@@ -115,4 +517,23 @@ public abstract class AbstractRelation {
 	 * @return a string representation of the current relation
 	 */
 	public abstract String toString();
+
+	/**
+	 * The tuples of a relation as of a commit timestamp, and the versions before them
+	 */
+	private static class TupleVersion {
+		private final Collection<Tuple> tuples;		/* never modified */
+		private final boolean bag;		/* the relation's semantics at the time */
+		private final long timestamp;	/* commit timestamp from which these tuples were current */
+		private final long version;		/* the relation's version number at the time */
+		private volatile TupleVersion older;	/* the version before, or null if dropped */
+
+		TupleVersion(Collection<Tuple> tuples, boolean bag, long timestamp, long version, TupleVersion older) {
+			this.tuples = tuples;
+			this.bag = bag;
+			this.timestamp = timestamp;
+			this.version = version;
+			this.older = older;
+		}
+	}
 }
\ No newline at end of file
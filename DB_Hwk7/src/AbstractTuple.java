@@ -1,19 +1,26 @@
 import exceptions.DBException;
-import java.util.List;
 
 /**
- * NOTE: DO NOT MODIFY THIS CLASS
- *
  * This class models a tuple in the relational data model. A tuple is an
- * ordered list of values.
+ * ordered list of values, stored in an array that is never modified.
  *
  * @author David
  * @version 9/2/2018
  */
 public abstract class AbstractTuple implements Cloneable {
-	protected List<Comparable> data;
+	protected final Comparable[] data;
 	protected AbstractRelation relation;
 
+	/**
+	 * Creates a tuple over the given values
+	 * @param data	the values; the array is kept, not copied
+	 * @param r	relation to which this tuple belongs
+	 */
+	protected AbstractTuple(Comparable[] data, AbstractRelation r) {
+		this.data = data;
+		this.relation = r;
+	}
+
 	/**
 	 * @return a clone of the current tuple
 	 */
@@ -34,7 +41,16 @@ public abstract class AbstractTuple implements Cloneable {
 	 * @return number of values in the current tuple
 	 */
 	public int size() {
-		return this.data.size();
+		return this.data.length;
+	}
+
+	/**
+	 * Retrieves the value at the given position
+	 * @param pos	position of the value (see: Relation.lookup)
+	 * @return the value at the given position
+	 */
+	public Comparable get(int pos) {
+		return this.data[pos];
 	}
 
 	/**
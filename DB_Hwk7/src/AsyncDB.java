@@ -0,0 +1,392 @@
+import exceptions.DBException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs DavidDB's operators on an executor, without blocking the calling thread. Each operator
+ * takes its inputs as futures and returns a future of its result, so a query is written as
+ * nested calls just as it would be against DavidDB, e.g.
+ *
+ *   async.hashJoin(async.select(async.relation("customers"), "creditLimit > 100000"),
+ *                  async.select(async.relation("payments"), "amount > 1000"))
+ *
+ * and each operator starts as soon as its inputs are ready: here the two selects run at the
+ * same time, and the join once both are done. A failed operator fails every future that
+ * depends on it, with its DBException as the cause of the CompletionException.
+ *
+ * The operators run in the snapshot (see: DavidDB.snapshot) that was current on the thread
+ * that called them, if any, so a query composed inside a snapshot sees one point in time even
+ * though its operators run on other threads. Keep the snapshot open until the query's future
+ * completes.
+ *
+ * Streamed results: publish() hands a result's tuples to a Flow.Subscriber as it requests them.
+ */
+public class AsyncDB {
+	private final DavidDB db;
+	private final Executor executor;
+
+	/**
+	 * Creates a facade that runs operators on the common fork/join pool
+	 * @param db	the database
+	 */
+	public AsyncDB(DavidDB db) {
+		this(db, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a facade that runs operators on the given executor
+	 * @param db	the database
+	 * @param executor	runs the operators, and delivers streamed tuples
+	 */
+	public AsyncDB(DavidDB db, Executor executor) {
+		this.db = db;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the database the operators run against
+	 */
+	public DavidDB getDB() {
+		return this.db;
+	}
+
+	/**
+	 * @return the executor the operators run on
+	 */
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * @param name	name of a stored relation (case sensitive)
+	 * @return a completed future of the relation; failed if there is no such relation
+	 */
+	public CompletableFuture<Relation> relation(String name) {
+		AbstractRelation r = this.db.getRelation(name);
+		if (r == null) {
+			return CompletableFuture.failedFuture(new DBException("Unknown relation: " + name));
+		}
+		return CompletableFuture.completedFuture((Relation) r);
+	}
+
+	/**
+	 * Runs a query on the executor, in the calling thread's current snapshot
+	 * @param query	the query, e.g. () -> db.select(...)
+	 * @return the query's result
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> query) {
+		VersionClock clock = this.db.getVersionClock();
+		Snapshot s = clock.current();
+		return CompletableFuture.supplyAsync(() -> clock.within(s, query), this.executor);
+	}
+
+	/**
+	 * Parses and runs a query written as for QueryParser, on the executor
+	 * @param query	the query text
+	 * @return the query's result
+	 */
+	public CompletableFuture<Relation> query(String query) {
+		return this.submit(() -> new QueryParser(this.db).evaluate(query));
+	}
+
+	/**
+	 * Runs a unary operator once its input is ready
+	 * @param r	the input
+	 * @param op	the operator
+	 * @return the operator's result
+	 */
+	private CompletableFuture<Relation> apply(CompletionStage<Relation> r, Function<Relation, Relation> op) {
+		VersionClock clock = this.db.getVersionClock();
+		Snapshot s = clock.current();
+		return r.thenApplyAsync(input -> clock.within(s, () -> op.apply(input)), this.executor)
+				.toCompletableFuture();
+	}
+
+	/**
+	 * Runs a binary operator once both of its inputs are ready
+	 * @param r1	first input
+	 * @param r2	second input
+	 * @param op	the operator
+	 * @return the operator's result
+	 */
+	private CompletableFuture<Relation> combine(CompletionStage<Relation> r1, CompletionStage<Relation> r2,
+			BinaryOperator<Relation> op) {
+		VersionClock clock = this.db.getVersionClock();
+		Snapshot s = clock.current();
+		return r1.thenCombineAsync(r2, (a, b) -> clock.within(s, () -> op.apply(a, b)), this.executor)
+				.toCompletableFuture();
+	}
+
+	/**
+	 * @see DavidDB#select(Relation, String)
+	 */
+	public CompletableFuture<Relation> select(CompletionStage<Relation> r, String cond_str) {
+		return this.apply(r, input -> this.db.select(input, cond_str));
+	}
+
+	/**
+	 * @see DavidDB#project(Relation, String[])
+	 */
+	public CompletableFuture<Relation> project(CompletionStage<Relation> r, String... projection_list) {
+		return this.apply(r, input -> this.db.project(input, projection_list));
+	}
+
+	/**
+	 * @see DavidDB#distinct(Relation)
+	 */
+	public CompletableFuture<Relation> distinct(CompletionStage<Relation> r) {
+		return this.apply(r, this.db::distinct);
+	}
+
+	/**
+	 * @see DavidDB#aggregate(Relation, Agg[], String[], String[])
+	 */
+	public CompletableFuture<Relation> aggregate(CompletionStage<Relation> r, Agg[] agg_fns, String[] attrs,
+			String[] groups) {
+		return this.apply(r, input -> this.db.aggregate(input, agg_fns, attrs, groups));
+	}
+
+	/**
+	 * @see DavidDB#orderBy(Relation, String[], Order[])
+	 */
+	public CompletableFuture<Relation> orderBy(CompletionStage<Relation> r, String[] attrs, Order[] directions) {
+		return this.apply(r, input -> this.db.orderBy(input, attrs, directions));
+	}
+
+	/**
+	 * @see DavidDB#topN(Relation, String[], Order[], int)
+	 */
+	public CompletableFuture<Relation> topN(CompletionStage<Relation> r, String[] attrs, Order[] directions, int n) {
+		return this.apply(r, input -> this.db.topN(input, attrs, directions, n));
+	}
+
+	/**
+	 * @see DavidDB#naturalJoin(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> naturalJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::naturalJoin);
+	}
+
+	/**
+	 * @see DavidDB#hashJoin(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> hashJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::hashJoin);
+	}
+
+	/**
+	 * @see DavidDB#sortJoin(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> sortJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::sortJoin);
+	}
+
+	/**
+	 * @see DavidDB#thetaJoin(Relation, Relation, String)
+	 */
+	public CompletableFuture<Relation> thetaJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2,
+			String cond_str) {
+		return this.combine(r1, r2, (a, b) -> this.db.thetaJoin(a, b, cond_str));
+	}
+
+	/**
+	 * @see DavidDB#semiJoin(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> semiJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::semiJoin);
+	}
+
+	/**
+	 * @see DavidDB#antiJoin(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> antiJoin(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::antiJoin);
+	}
+
+	/**
+	 * @see DavidDB#times(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> times(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::times);
+	}
+
+	/**
+	 * @see DavidDB#union(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> union(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::union);
+	}
+
+	/**
+	 * @see DavidDB#intersect(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> intersect(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::intersect);
+	}
+
+	/**
+	 * @see DavidDB#minus(Relation, Relation)
+	 */
+	public CompletableFuture<Relation> minus(CompletionStage<Relation> r1, CompletionStage<Relation> r2) {
+		return this.combine(r1, r2, this.db::minus);
+	}
+
+	/**
+	 * Joins any number of relations once all of them are ready, in the order the join planner
+	 * picks
+	 * @see DavidDB#join(Relation...)
+	 */
+	@SafeVarargs
+	public final CompletableFuture<Relation> join(CompletionStage<Relation>... rs) {
+		VersionClock clock = this.db.getVersionClock();
+		Snapshot s = clock.current();
+		CompletableFuture<?>[] inputs = new CompletableFuture<?>[rs.length];
+		for (int i = 0; i < rs.length; i++) {
+			inputs[i] = rs[i].toCompletableFuture();
+		}
+		return CompletableFuture.allOf(inputs).thenApplyAsync(done -> clock.within(s, () -> {
+			Relation[] relations = new Relation[inputs.length];
+			for (int i = 0; i < inputs.length; i++) {
+				relations[i] = (Relation) inputs[i].join();
+			}
+			return this.db.join(relations);
+		}), this.executor);
+	}
+
+	/**
+	 * Streams a result's tuples: once the result is ready, each subscriber receives its tuples
+	 * as it requests them, on the executor, then onComplete(); or onError() if the result
+	 * failed. A stored relation is read in the snapshot current when publish() was called.
+	 * @param r	the result
+	 * @return a publisher of its tuples
+	 */
+	public Flow.Publisher<Tuple> publish(CompletionStage<Relation> r) {
+		VersionClock clock = this.db.getVersionClock();
+		Snapshot s = clock.current();
+		CompletableFuture<Collection<Tuple>> rows = r.thenApply(result -> clock.within(s, result::getTuples))
+				.toCompletableFuture();
+		return subscriber -> {
+			TupleSubscription subscription = new TupleSubscription(subscriber);
+			subscriber.onSubscribe(subscription);
+			rows.whenComplete(subscription::ready);
+		};
+	}
+
+	/**
+	 * Delivers one result's tuples to one subscriber, no more than it has requested.
+	 * Deliveries run on the executor, one drain at a time.
+	 */
+	private class TupleSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super Tuple> subscriber;
+		private final AtomicLong demand;	/* tuples requested but not yet delivered */
+		private final AtomicInteger pending;	/* signals not yet handled by a drain; a drain runs while > 0 */
+		private volatile Iterator<Tuple> tuples;	/* set once the result is ready */
+		private volatile Throwable failure;
+		private volatile boolean cancelled;
+		private boolean done;		/* onComplete() or onError() was sent; only touched by the drain */
+
+		/**
+		 * @param subscriber	the subscriber
+		 */
+		TupleSubscription(Flow.Subscriber<? super Tuple> subscriber) {
+			this.subscriber = subscriber;
+			this.demand = new AtomicLong();
+			this.pending = new AtomicInteger();
+		}
+
+		/**
+		 * Called when the result is ready or has failed
+		 * @param rows	the result's tuples, or null if it failed
+		 * @param failure	why it failed, or null
+		 */
+		void ready(Collection<Tuple> rows, Throwable failure) {
+			if (failure != null) {
+				this.failure = failure;
+			}
+			else {
+				this.tuples = rows.iterator();
+			}
+			this.signal();
+		}
+
+		/**
+		 * @param n	number of further tuples the subscriber can take; must be positive
+		 */
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				this.failure = new IllegalArgumentException("Must request a positive number of tuples: " + n);
+			}
+			else {
+				this.demand.getAndUpdate(d -> (d + n < 0) ? Long.MAX_VALUE : d + n);
+			}
+			this.signal();
+		}
+
+		/**
+		 * Stops delivering tuples; the subscriber may still receive those already being delivered
+		 */
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+		}
+
+		/**
+		 * Queues a drain on the executor, unless one is running, which then runs another pass
+		 */
+		private void signal() {
+			if (this.pending.getAndIncrement() == 0) {
+				AsyncDB.this.executor.execute(this::drain);
+			}
+		}
+
+		/**
+		 * Delivers as many tuples as the subscriber has requested, then completes the stream if
+		 * the result is exhausted; repeats while signals arrived during the pass
+		 */
+		private void drain() {
+			int missed = 1;
+			do {
+				if (!this.cancelled && !this.done) {
+					this.deliver();
+				}
+				missed = this.pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/**
+		 * One pass of drain()
+		 */
+		private void deliver() {
+			if (this.failure != null) {
+				this.done = true;
+				this.subscriber.onError(this.failure);
+				return;
+			}
+			Iterator<Tuple> tuples = this.tuples;
+			if (tuples == null) {
+				return;		// not ready yet
+			}
+			while (!this.cancelled && tuples.hasNext() && this.demand.get() > 0) {
+				this.subscriber.onNext(tuples.next());
+				if (this.demand.get() != Long.MAX_VALUE) {		// Long.MAX_VALUE requests them all
+					this.demand.decrementAndGet();
+				}
+			}
+			if (!this.cancelled && !tuples.hasNext()) {
+				this.done = true;
+				this.subscriber.onComplete();
+			}
+		}
+	}
+}
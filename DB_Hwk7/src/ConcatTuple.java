@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The concatenation of two tuples, without copying their values. Values are read from
+ * whichever of the two tuples holds them, and are only copied into a list if values()
+ * is called.
+ */
+public class ConcatTuple extends Tuple {
+	private final Tuple left;
+	private final Tuple right;
+	private final int split;	/* positions below split are in left, the rest in right */
+
+	/**
+	 * Creates the concatenation of the given tuples
+	 * @param left	tuple providing the leading values
+	 * @param right	tuple providing the trailing values
+	 * @param r	relation to which this tuple belongs
+	 */
+	public ConcatTuple(Tuple left, Tuple right, AbstractRelation r) {
+		super((Comparable[]) null, r);
+		this.left = left;
+		this.right = right;
+		this.split = left.size();
+	}
+
+	/**
+	 * @return number of values in the current tuple
+	 */
+	@Override
+	public int size() {
+		return this.split + this.right.size();
+	}
+
+	/**
+	 * Retrieves the value at the given position
+	 * @param pos	position of the value (see: Relation.lookup)
+	 * @return the value at the given position
+	 */
+	@Override
+	public Comparable get(int pos) {
+		return (pos < this.split) ? this.left.get(pos) : this.right.get(pos - this.split);
+	}
+
+	/**
+	 * Copies the values out of both tuples
+	 * @return a list of the values in this tuple
+	 */
+	@Override
+	public List<Comparable> values() {
+		List<Comparable> list = new ArrayList<>(this.size());
+		for (int i = 0; i < this.size(); i++) {
+			list.add(this.get(i));
+		}
+		return list;
+	}
+}
@@ -16,14 +16,7 @@ public class DBTester {
 		Relation payments = (Relation) db.getRelation("payments");
 		Relation productlines = (Relation) db.getRelation("productlines");
 		Relation products = (Relation) db.getRelation("products");
-		customers.read("data/customers.txt");
-		employees.read("data/employees.txt");
-		offices.read("data/offices.txt");
-		orderdetails.read("data/orderdetails.txt");
-		orders.read("data/orders.txt");
-		payments.read("data/payments.txt");
-		productlines.read("data/productlines.txt");
-		products.read("data/products.txt");
+		db.loadAll("data");		// every relation, from data/<name>.txt, several at once
 
 //		System.out.println(customers);
 //		System.out.println(employees);
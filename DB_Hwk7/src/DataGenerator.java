@@ -0,0 +1,575 @@
+import exceptions.DBException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates data files for a schema (e.g., classicmodels_schema.txt or airport_schema.txt)
+ * at any scale, in the format Relation.read() expects: one tuple per line, values separated
+ * by |, TEXT values in single quotes.
+ *
+ * The data is referentially consistent. An attribute refers to another relation if that
+ * relation's first attribute has the same name and is its key (e.g., orders.customerNumber
+ * refers to customers; payments also starts with customerNumber, but it is not unique), or if it is one of the references listed in KNOWN_REFERENCES (e.g.,
+ * customers.salesRepEmployeeNumber refers to employees.employeeNumber). Every referenced
+ * attribute holds unique values, as does the first attribute of a relation that has no
+ * referenced attribute and does not itself refer to another relation. References only hold
+ * values that exist.
+ *
+ * If a relation's first attribute is not unique but its first two attributes are jointly
+ * unique in the data files (orderdetails' orderNumber and productCode), the pair stays unique:
+ * tuples are drawn again until the second value is new for the first. A NUMERIC attribute that
+ * numbers the tuples sharing a first value 1, 2, 3, ... (orderdetails.orderLineNumber) does so
+ * in the output too.
+ *
+ * If the schema's directory holds data files, they set the number of tuples at scale 1 and
+ * the range of each NUMERIC attribute, and TEXT values are drawn from the existing ones. The
+ * output is determined by the seed alone. References are uniform, or follow a Zipf
+ * distribution with a given exponent (skew), in which case low key values are the most popular.
+ *
+ * Usage: java DataGenerator schema_file output_dir [-scale N] [-seed N] [-skew S]
+ *            [-skew relation.attr=S] [-ref relation.attr=relation.attr]
+ */
+public class DataGenerator {
+	/* references whose attribute names do not match the referenced attribute's name */
+	public static final String[][] KNOWN_REFERENCES = {
+			{"customers.salesRepEmployeeNumber", "employees.employeeNumber"},
+			{"employees.reportsTo", "employees.employeeNumber"},
+			{"onboard.ssn", "passengers.ssn"},
+	};
+
+	/* tuples per relation at scale 1 when there is no data file to count */
+	public static final int DEFAULT_ROWS = 100;
+
+	/* most times a tuple is drawn again to keep a composite key unique before giving up */
+	public static final int MAX_REDRAWS = 100000;
+
+	private final Map<String, Relation> relations = new LinkedHashMap<>();
+	private final File data_dir;
+	private final Map<String, String> references = new HashMap<>();	/* relation.attr -> relation.attr */
+	private final Map<String, Double> skews = new HashMap<>();		/* relation.attr -> Zipf exponent */
+	private final Map<String, List<String>> samples = new HashMap<>();	/* relation -> existing data lines */
+	private final Map<String, Long> first_keys = new HashMap<>();	/* relation.attr -> smallest existing value */
+	private double skew;
+	private long seed;
+	private int scale;
+
+	/**
+	 * Reads a schema, and any data files next to it
+	 * @param schema_file	path to the schema file
+	 * @throws IOException if the schema cannot be read
+	 */
+	public DataGenerator(String schema_file) throws IOException {
+		DavidDB db = new DavidDB(schema_file);
+		this.data_dir = new File(schema_file).getAbsoluteFile().getParentFile();
+		for (String line : readLines(new File(schema_file))) {
+			if (line.contains("(")) {
+				String name = line.substring(0, line.indexOf("(")).trim();
+				this.relations.put(name, (Relation) db.getRelation(name));
+			}
+		}
+		for (String name : this.relations.keySet()) {
+			File f = new File(this.data_dir, name + ".txt");
+			this.samples.put(name, f.exists() ? readLines(f) : new ArrayList<>());
+		}
+
+		// a relation's first attribute is its key, unless another relation's first attribute has
+		// the same name and holds unique values (orders, not orderdetails, owns orderNumber)
+		Map<String, Relation> owners = new HashMap<>();
+		for (Relation r : this.relations.values()) {
+			String key = r.getAttributes().get(0).getName();
+			Relation owner = owners.get(key);
+			if (owner == null || (!this.isUnique(owner.getName(), 0) && this.isUnique(r.getName(), 0))) {
+				owners.put(key, r);
+			}
+		}
+
+		// infer references from attribute names, then add the known ones
+		for (Relation r : this.relations.values()) {
+			for (Attribute a : r.getAttributes()) {
+				Relation owner = owners.get(a.getName());
+				if (owner != null && owner != r) {
+					this.references.put(r.getName() + "." + a.getName(), owner.getName() + "." + a.getName());
+				}
+			}
+		}
+		for (String[] ref : KNOWN_REFERENCES) {
+			if (this.attribute(ref[0]) != null && this.attribute(ref[1]) != null) {
+				this.references.remove(ref[1]);	// a referenced attribute is a key, not a reference
+				this.references.put(ref[0], ref[1]);
+			}
+		}
+		this.skew = 0;
+		this.seed = 0;
+		this.scale = 1;
+	}
+
+	/**
+	 * @param scale	multiplies the number of tuples in every relation
+	 */
+	public void setScale(int scale) {
+		this.scale = Math.max(1, scale);
+	}
+
+	/**
+	 * @param seed	seed for all random choices; the same seed gives the same data
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param skew	Zipf exponent for every reference without its own; 0 for uniform
+	 */
+	public void setSkew(double skew) {
+		this.skew = skew;
+	}
+
+	/**
+	 * @param attr	a referring attribute, as relation.attr
+	 * @param skew	Zipf exponent for the attribute's references; 0 for uniform
+	 */
+	public void setSkew(String attr, double skew) {
+		this.skews.put(attr, skew);
+	}
+
+	/**
+	 * Declares that an attribute refers to another relation's attribute
+	 * @param attr	the referring attribute, as relation.attr
+	 * @param key	the referenced attribute, as relation.attr
+	 * @throws DBException if either attribute does not exist
+	 */
+	public void addReference(String attr, String key) throws DBException {
+		if (this.attribute(attr) == null || this.attribute(key) == null) {
+			throw new DBException("Unknown attribute in reference " + attr + " -> " + key);
+		}
+		this.references.put(attr, key);
+	}
+
+	/**
+	 * @param relation	a relation in the schema
+	 * @return the number of tuples generated for it
+	 */
+	public long getRows(String relation) {
+		int base = this.samples.get(relation).size();
+		return (long) ((base == 0) ? DEFAULT_ROWS : base) * this.scale;
+	}
+
+	/**
+	 * Writes a data file for every relation in the schema
+	 * @param out_dir	directory to write the files to; created if necessary
+	 * @throws IOException if a file cannot be written
+	 */
+	public void generate(File out_dir) throws IOException {
+		out_dir.mkdirs();
+		for (String name : this.relations.keySet()) {
+			this.generate(name, new File(out_dir, name + ".txt"));
+		}
+	}
+
+	/**
+	 * Writes a data file for one relation
+	 * @param name	name of the relation
+	 * @param file	file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void generate(String name, File file) throws IOException {
+		Relation r = this.relations.get(name);
+		List<Attribute> attrs = r.getAttributes();
+		long rows = this.getRows(name);
+		ValueSource[] sources = new ValueSource[attrs.size()];
+		for (int pos = 0; pos < attrs.size(); pos++) {
+			sources[pos] = this.source(r, pos);
+		}
+
+		// each relation has its own generator, so its data does not depend on the others'
+		Random rand = new Random(this.seed * 31 + name.hashCode());
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			StringBuilder line = new StringBuilder();
+			String[] values = new String[sources.length];
+			for (long row = 0; row < rows; row++) {
+				int redraws = 0;
+				for (int pos = 0; pos < sources.length; pos++) {
+					values[pos] = sources[pos].next(row, rand, values);
+					if (values[pos] == null) {	// the tuple's key is taken: draw the whole tuple again
+						if (++redraws > MAX_REDRAWS) {
+							throw new DBException("Cannot draw a unique key for " + name + " at tuple " + row);
+						}
+						pos = -1;
+					}
+				}
+				line.setLength(0);
+				for (int pos = 0; pos < values.length; pos++) {
+					if (pos > 0) {
+						line.append(Tuple.COL_SEPARATOR);
+					}
+					line.append(values[pos]);
+				}
+				out.write(line.toString());
+				out.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Decides how to generate values for an attribute, numbering the tuples that share a first
+	 * value if the data files do, and keeping a composite key's second value unique per first
+	 * value (see: class description)
+	 * @param r	the relation
+	 * @param pos	position of the attribute
+	 * @return the attribute's value source
+	 */
+	private ValueSource source(Relation r, int pos) {
+		boolean composite = pos > 0 && !this.samples.get(r.getName()).isEmpty() && !this.isUnique(r.getName(), 0);
+		if (composite && this.isSequence(r.getName(), pos)) {
+			Map<String, Long> counts = new HashMap<>();
+			return (row, rand, values) -> Long.toString(counts.merge(values[0], 1L, Long::sum));
+		}
+		ValueSource source = this.valueSource(r, pos);
+		if (composite && pos == 1 && this.isUnique(r.getName(), 0, 1)) {
+			Map<String, Set<String>> used = new HashMap<>();		/* first value -> second values drawn */
+			return (row, rand, values) -> {
+				String value = source.next(row, rand, values);
+				return used.computeIfAbsent(values[0], k -> new HashSet<>()).add(value) ? value : null;
+			};
+		}
+		return source;
+	}
+
+	/**
+	 * Decides how to draw values for an attribute, each on its own
+	 * @param r	the relation
+	 * @param pos	position of the attribute
+	 * @return the attribute's value source
+	 */
+	private ValueSource valueSource(Relation r, int pos) {
+		Attribute a = r.getAttributes().get(pos);
+		String qualified = r.getName() + "." + a.getName();
+		String ref = this.references.get(qualified);
+		if (ref != null) {
+			String ref_rel = ref.substring(0, ref.indexOf('.'));
+			Attribute key = this.attribute(ref);
+			long keys = this.getRows(ref_rel);
+			double s = this.skews.getOrDefault(qualified, this.skew);
+			boolean self = ref_rel.equals(r.getName());
+			Zipf zipf = (s > 0 && !self) ? new Zipf(keys, s) : null;
+			return (row, rand, values) -> {
+				long n = self ? Math.max(1, row) : keys;	// refer back to earlier tuples only
+				long index;
+				if (s <= 0) {
+					index = (long) (rand.nextDouble() * n);
+				}
+				else {
+					index = ((zipf != null) ? zipf : new Zipf(n, s)).sample(rand) - 1;
+				}
+				return this.keyValue(ref_rel, key, index);
+			};
+		}
+		// the first attribute is the key, unless another attribute is referenced (passengers.ssn)
+		boolean first = pos == 0;
+		for (String key : this.references.values()) {
+			first &= !key.startsWith(r.getName() + ".");
+		}
+		boolean referenced = this.references.containsValue(qualified);
+		if (referenced || first) {
+			return (row, rand, values) -> this.keyValue(r.getName(), a, row);
+		}
+
+		List<String> existing = new ArrayList<>();
+		for (String line : this.samples.get(r.getName())) {
+			String[] values = line.split("\\|");
+			if (pos < values.length) {
+				existing.add(values[pos]);
+			}
+		}
+		if (a.getType() == Attribute.Type.TEXT) {
+			if (existing.isEmpty()) {
+				return (row, rand, values) -> "'" + a.getName() + rand.nextInt(1000) + "'";
+			}
+			return (row, rand, values) -> existing.get(rand.nextInt(existing.size()));
+		}
+
+		// NUMERIC: uniform over the existing range, integral if the existing values are
+		double min = 0;
+		double max = 1000;
+		boolean integral = true;
+		if (!existing.isEmpty()) {
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			for (String v : existing) {
+				double d = Double.parseDouble(v);
+				min = Math.min(min, d);
+				max = Math.max(max, d);
+				integral &= d == Math.rint(d) && !v.contains(".");
+			}
+		}
+		double lo = min;
+		double hi = max;
+		if (integral) {
+			return (row, rand, values) -> Long.toString((long) lo + (long) (rand.nextDouble() * (hi - lo + 1)));
+		}
+		return (row, rand, values) -> String.format(Locale.ROOT, "%.2f", lo + rand.nextDouble() * (hi - lo));
+	}
+
+	/**
+	 * @param relation	name of a relation
+	 * @param a	an attribute of the relation that holds unique values
+	 * @param index	index of the tuple
+	 * @return the attribute's value in that tuple
+	 */
+	private String keyValue(String relation, Attribute a, long index) {
+		if (a.getType() == Attribute.Type.NUMERIC) {
+			// continue from the smallest existing key, so keys look like the bundled ones
+			return Long.toString(this.firstKey(relation, a) + index);
+		}
+		return "'" + a.getName() + index + "'";
+	}
+
+	/**
+	 * @param relation	name of a relation
+	 * @param a	a NUMERIC attribute of the relation
+	 * @return the smallest existing value of the attribute, or 1 if there is no data
+	 */
+	private long firstKey(String relation, Attribute a) {
+		return this.first_keys.computeIfAbsent(relation + "." + a.getName(), k -> this.smallestValue(relation, a));
+	}
+
+	/**
+	 * @param relation	name of a relation
+	 * @param a	a NUMERIC attribute of the relation
+	 * @return the smallest existing value of the attribute, or 1 if there is no data
+	 */
+	private long smallestValue(String relation, Attribute a) {
+		int pos = this.relations.get(relation).getAttributes().indexOf(a);
+		long min = Long.MAX_VALUE;
+		for (String line : this.samples.get(relation)) {
+			String[] values = line.split("\\|");
+			try {
+				min = Math.min(min, (long) Double.parseDouble(values[pos]));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				// not a key we can continue from
+			}
+		}
+		return (min == Long.MAX_VALUE) ? 1 : min;
+	}
+
+	/**
+	 * @param relation	name of a relation
+	 * @param positions	positions of one or more attributes
+	 * @return true if the attributes' existing values are jointly unique (or there are none)
+	 */
+	private boolean isUnique(String relation, int... positions) {
+		Set<List<String>> seen = new HashSet<>();
+		for (String line : this.samples.get(relation)) {
+			String[] values = line.split("\\|");
+			List<String> key = new ArrayList<>(positions.length);
+			for (int pos : positions) {
+				if (pos < values.length) {
+					key.add(values[pos]);
+				}
+			}
+			if (!seen.add(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param relation	name of a relation
+	 * @param pos	position of an attribute
+	 * @return true if, in the existing data, the attribute numbers the tuples sharing each first
+	 * 			value 1, 2, 3, ... (in any order)
+	 */
+	private boolean isSequence(String relation, int pos) {
+		if (this.relations.get(relation).getAttributes().get(pos).getType() != Attribute.Type.NUMERIC) {
+			return false;
+		}
+		Map<String, Set<Long>> numbers = new HashMap<>();
+		for (String line : this.samples.get(relation)) {
+			String[] values = line.split("\\|");
+			try {
+				if (pos >= values.length || !numbers.computeIfAbsent(values[0], k -> new HashSet<>())
+						.add(Long.parseLong(values[pos].trim()))) {
+					return false;
+				}
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		for (Set<Long> group : numbers.values()) {
+			for (long n = 1; n <= group.size(); n++) {
+				if (!group.contains(n)) {
+					return false;
+				}
+			}
+		}
+		return !numbers.isEmpty();
+	}
+
+	/**
+	 * @param qualified	an attribute, as relation.attr
+	 * @return the attribute, or null if there is no such attribute
+	 */
+	private Attribute attribute(String qualified) {
+		int dot = qualified.indexOf('.');
+		Relation r = (dot < 0) ? null : this.relations.get(qualified.substring(0, dot));
+		if (r == null) {
+			return null;
+		}
+		for (Attribute a : r.getAttributes()) {
+			if (a.getName().equals(qualified.substring(dot + 1))) {
+				return a;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param f	a file
+	 * @return the file's non-empty lines
+	 * @throws IOException if the file cannot be read
+	 */
+	private static List<String> readLines(File f) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Generates the value of an attribute in each tuple
+	 */
+	private interface ValueSource {
+		/**
+		 * @param row	index of the tuple
+		 * @param rand	the relation's random number generator
+		 * @param values	the tuple's values so far, by position (the earlier ones are set)
+		 * @return the value, formatted for a data file, or null if the tuple must be drawn again
+		 */
+		String next(long row, Random rand, String[] values);
+	}
+
+	/**
+	 * Samples ranks 1..n from a Zipf distribution, P(k) proportional to 1 / k^s, in constant
+	 * expected time by rejection-inversion (Hormann and Derflinger, 1996)
+	 */
+	private static class Zipf {
+		private final long n;
+		private final double s;
+		private final double h_integral_x1;
+		private final double h_integral_n;
+		private final double threshold;
+
+		public Zipf(long n, double s) {
+			this.n = n;
+			this.s = s;
+			this.h_integral_x1 = this.hIntegral(1.5) - 1;
+			this.h_integral_n = this.hIntegral(n + 0.5);
+			this.threshold = 2 - this.hIntegralInverse(this.hIntegral(2.5) - this.h(2));
+		}
+
+		/**
+		 * @param rand	random number generator
+		 * @return a rank between 1 and n
+		 */
+		public long sample(Random rand) {
+			while (true) {
+				double u = this.h_integral_n + rand.nextDouble() * (this.h_integral_x1 - this.h_integral_n);
+				double x = this.hIntegralInverse(u);
+				long k = Math.max(1, Math.min(this.n, (long) (x + 0.5)));
+				if (k - x <= this.threshold || u >= this.hIntegral(k + 0.5) - this.h(k)) {
+					return k;
+				}
+			}
+		}
+
+		private double h(double x) {
+			return Math.exp(-this.s * Math.log(x));
+		}
+
+		private double hIntegral(double x) {
+			double log_x = Math.log(x);
+			return helper2((1 - this.s) * log_x) * log_x;
+		}
+
+		private double hIntegralInverse(double x) {
+			double t = Math.max(-1, x * (1 - this.s));
+			return Math.exp(helper1(t) * x);
+		}
+
+		/* log1p(x) / x, accurate near 0 */
+		private static double helper1(double x) {
+			return (Math.abs(x) > 1e-8) ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+		}
+
+		/* expm1(x) / x, accurate near 0 */
+		private static double helper2(double x) {
+			return (Math.abs(x) > 1e-8) ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+		}
+	}
+
+	/**
+	 * Generates data files from the command line (see: class description)
+	 * @param args	schema_file output_dir [options]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java DataGenerator schema_file output_dir [-scale N] [-seed N] " +
+					"[-skew S] [-skew relation.attr=S] [-ref relation.attr=relation.attr]");
+			System.exit(1);
+		}
+		DataGenerator gen = new DataGenerator(args[0]);
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			String val = args[i + 1];
+			switch (args[i]) {
+				case "-scale":
+					gen.setScale(Integer.parseInt(val));
+					break;
+				case "-seed":
+					gen.setSeed(Long.parseLong(val));
+					break;
+				case "-skew":
+					if (val.contains("=")) {
+						gen.setSkew(val.substring(0, val.indexOf('=')), Double.parseDouble(val.substring(val.indexOf('=') + 1)));
+					}
+					else {
+						gen.setSkew(Double.parseDouble(val));
+					}
+					break;
+				case "-ref":
+					gen.addReference(val.substring(0, val.indexOf('=')), val.substring(val.indexOf('=') + 1));
+					break;
+				default:
+					throw new DBException("Unknown option: " + args[i]);
+			}
+		}
+
+		File out_dir = new File(args[1]);
+		out_dir.mkdirs();
+		for (String name : gen.relations.keySet()) {
+			double startTime = System.nanoTime();
+			gen.generate(name, new File(out_dir.getPath(), name + ".txt"));
+			double endTime = System.nanoTime();
+			System.out.printf("%s: %d tuples in %.1f ms%n", name, gen.getRows(name), (endTime - startTime) / 1e6);
+		}
+	}
+}
@@ -1,11 +1,29 @@
 import exceptions.*;
+import perf.BloomFilter;
+import perf.LoadStats;
+import perf.OperatorMetrics;
+import perf.QueryEvents;
+import perf.ResultCache;
+import perf.RuntimeFilterStats;
 import perf.Timeable;
 import solver.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import javax.swing.plaf.synth.SynthSeparatorUI;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -13,12 +31,58 @@ import java.io.IOException;
 /**
  * DavidDB: The finest relational database system written in the common era.
  *
+ * One instance may serve many query threads at once. Operators only read their inputs,
+ * which never change under them (see: AbstractRelation), and each thread keeps its own
+ * operator nesting and metrics; the caches, counters and statistics are shared and safe to
+ * update concurrently.
+ *
+ * A query that must see all of its relations as of one point in time, while they are being
+ * written, runs in a snapshot (see: snapshot); writes that must become visible together run
+ * as one batch (see: update).
+ *
  * @author David
  * @version 6/25/18
  */
-public class DavidDB extends AbstractDB implements Timeable{
-
-	protected double time;
+public class DavidDB extends AbstractDB implements Timeable, AutoCloseable {
+	/* default bounds on the query result cache */
+	public static final int DEFAULT_CACHE_ENTRIES = 64;
+	public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+	/* default number of prepared queries kept for reuse by query text */
+	public static final int DEFAULT_PLAN_CACHE_ENTRIES = 256;
+
+	/* default number of tuples distinct() deduplicates in memory before spilling to disk */
+	public static final int DEFAULT_SPILL_THRESHOLD = 1000000;
+
+	/* inputs with at least this many tuples are processed in parallel */
+	public static final int PARALLEL_THRESHOLD = 50000;
+
+	/* parallel work is handed to the scheduler in morsels of about this many tuples (or tuple pairs) */
+	public static final int MORSEL_SIZE = 4096;
+
+	/* number of inner tuples times() pairs with each outer tuple at a time; small enough to stay in cache */
+	public static final int PRODUCT_BLOCK_SIZE = 1024;
+
+	/* bits per build-side key in join runtime filters (about a 1% false positive rate) */
+	public static final int RUNTIME_FILTER_BITS_PER_KEY = 10;
+
+	/* number of joins' runtime filter stats kept; older ones are dropped */
+	public static final int RUNTIME_FILTER_STATS_KEPT = 1024;
+
+	protected final DoubleAdder time;	/* nanoseconds; added to by every query thread */
+	protected volatile int spill_threshold;
+	protected volatile int select_threshold;
+	protected volatile int parallelism;
+	protected volatile boolean runtime_filters_enabled;
+	protected final Deque<RuntimeFilterStats> runtime_filter_stats;	/* the most recent joins' stats, oldest first; guarded by itself */
+	protected final List<LoadStats> load_stats;
+	private final Map<String, FutureTask<LoadStats>> pending_loads;	/* relations to load on first access, by name */
+	protected final ResultCache<String, CachedResult> cache;
+	protected volatile boolean cache_enabled;
+	protected final ResultCache<String, PreparedQuery> plans;
+	private final ThreadLocal<Session> sessions;	/* state of the operator calls running on each thread */
+	protected final VersionClock versions;	/* keeps versions of the stored relations for snapshots */
+	protected final MorselScheduler scheduler;	/* runs the parallel parts of every thread's queries */
 
 	/**
 	 * Creates a new instance of DavidDB.
@@ -26,7 +90,24 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	public DavidDB(String filename) throws FileNotFoundException {
 		super(filename);
-		this.time = 0;
+		this.time = new DoubleAdder();
+		this.cache = new ResultCache<>(DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES,
+				entry -> estimateBytes(entry.relation));
+		this.cache_enabled = true;
+		this.plans = new ResultCache<>(DEFAULT_PLAN_CACHE_ENTRIES, Long.MAX_VALUE, query -> 0);
+		this.sessions = ThreadLocal.withInitial(Session::new);
+		this.spill_threshold = DEFAULT_SPILL_THRESHOLD;
+		this.select_threshold = PARALLEL_THRESHOLD;
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+		this.runtime_filters_enabled = true;
+		this.runtime_filter_stats = new ArrayDeque<>();
+		this.load_stats = Collections.synchronizedList(new ArrayList<>());
+		this.pending_loads = new ConcurrentHashMap<>();
+		this.scheduler = new MorselScheduler(this.parallelism);
+		this.versions = new VersionClock();
+		for (AbstractRelation r : this.relations.values()) {
+			this.versions.register(r);
+		}
 	}
 
 	/**
@@ -89,7 +170,189 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public AbstractRelation getRelation(String name) {
-		return relations.getOrDefault(name, null);
+		if (name == null) {
+			return null;
+		}
+		FutureTask<LoadStats> load = this.pending_loads.get(name);
+		if (load != null) {
+			// a batch of its own, outside the caller's snapshot; does nothing if another thread
+			// has loaded it, or is loading it
+			this.versions.within(null, () -> {
+				load.run();
+				return null;
+			});
+			try {
+				awaitLoad(name, load);
+			} finally {
+				this.pending_loads.remove(name, load);
+			}
+		}
+		return relations.get(name);
+	}
+
+	/**
+	 * Loads every relation in the schema from its data file, data_dir/name.txt, several
+	 * relations at a time; relations with no data file are left as they are
+	 * @param data_dir	directory holding the data files
+	 * @return how long each relation took to load, and how many tuples it got, by name
+	 * @throws DBException if a data file does not fit its relation's attributes
+	 */
+	public List<LoadStats> loadAll(String data_dir) throws DBException {
+		return this.loadAll(data_dir, false);
+	}
+
+	/**
+	 * Loads every relation in the schema from its data file, data_dir/name.txt; relations
+	 * with no data file are left as they are. Eager loading parses up to getParallelism()
+	 * files at once and returns when all are loaded. Lazy loading returns at once, and loads
+	 * each relation when getRelation() first asks for it, or when a snapshot opens (see:
+	 * snapshot), whichever comes first; other threads asking for it meanwhile wait for the
+	 * same load. A snapshot opened before loadAll() was called does not see the tuples.
+	 * @param data_dir	directory holding the data files
+	 * @param lazy	true to load each relation on first access
+	 * @return how long each relation took to load, and how many tuples it got, by name;
+	 * 			empty if lazy (see: getLoadStats)
+	 * @throws DBException if a data file does not fit its relation's attributes; the other
+	 * 			relations are loaded all the same
+	 */
+	public List<LoadStats> loadAll(String data_dir, boolean lazy) throws DBException {
+		Map<String, FutureTask<LoadStats>> loads = new TreeMap<>();
+		for (String name : this.relations.keySet()) {
+			File file = new File(data_dir, name + ".txt");
+			if (file.isFile()) {
+				loads.put(name, new FutureTask<>(() -> this.load(name, file)));
+			}
+		}
+		if (lazy) {
+			this.pending_loads.putAll(loads);
+			return Collections.emptyList();
+		}
+		if (loads.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService loaders = Executors.newFixedThreadPool(Math.min(this.parallelism, loads.size()), task -> {
+			Thread t = new Thread(task, "daviddb-loader-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		List<LoadStats> stats = new ArrayList<>(loads.size());
+		RuntimeException failure = null;
+		try {
+			for (FutureTask<LoadStats> load : loads.values()) {
+				loaders.execute(load);
+			}
+			for (Map.Entry<String, FutureTask<LoadStats>> load : loads.entrySet()) {
+				try {
+					stats.add(awaitLoad(load.getKey(), load.getValue()));
+				} catch (RuntimeException e) {
+					failure = (failure == null) ? e : failure;
+				}
+			}
+		} finally {
+			loaders.shutdown();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return stats;
+	}
+
+	/**
+	 * Reads one relation's data file
+	 * @param name	name of the relation
+	 * @param file	its data file
+	 * @return how long it took, and how many tuples it read
+	 * @throws FileNotFoundException if the file is gone
+	 */
+	private LoadStats load(String name, File file) throws FileNotFoundException {
+		Relation r = (Relation) this.relations.get(name);
+		long start = System.nanoTime();
+		int rows = r.readTuples(file.getPath());
+		LoadStats stats = new LoadStats(name, file.getPath(), rows, file.length(),
+				(System.nanoTime() - start) / 1e6);
+		this.load_stats.add(stats);
+		return stats;
+	}
+
+	/**
+	 * Waits for a relation to load, rethrowing its failure unchecked
+	 * @param name	name of the relation
+	 * @param load	the load
+	 * @return how long it took, and how many tuples it read
+	 * @throws DBException if the load failed or the wait was interrupted
+	 */
+	private static LoadStats awaitLoad(String name, FutureTask<LoadStats> load) throws DBException {
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new DBException("Cannot load " + name + ": " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DBException("Interrupted while loading " + name);
+		}
+	}
+
+	/**
+	 * @return how long each relation loaded by loadAll() took, and how many tuples it got,
+	 * 			in the order they finished
+	 */
+	public List<LoadStats> getLoadStats() {
+		synchronized (this.load_stats) {
+			return Collections.unmodifiableList(new ArrayList<>(this.load_stats));
+		}
+	}
+
+	/**
+	 * Opens a snapshot of the stored relations: until it is closed, the queries run by the
+	 * calling thread see the relations as they are now, and never wait for writers. E.g.,
+	 * try (Snapshot s = db.snapshot()) { db.aggregate(...); }
+	 * Relations still waiting to be loaded lazily (see: loadAll) are loaded first, as the
+	 * snapshot would not see tuples loaded after it opens.
+	 * @return the snapshot, current on the calling thread until closed
+	 */
+	public Snapshot snapshot() {
+		for (String name : this.pending_loads.keySet()) {
+			this.getRelation(name);
+		}
+		return this.versions.open();
+	}
+
+	/**
+	 * Runs changes to the stored relations as one batch, which a snapshot sees either all of
+	 * or none of. Batches run one at a time. Changes made outside a batch are a batch each.
+	 * @param changes	the changes, e.g. a loop of addTuple() calls
+	 */
+	public void update(Runnable changes) {
+		this.versions.update(changes);
+	}
+
+	/**
+	 * @return a facade that runs this database's operators on the common fork/join pool,
+	 * 			returning futures (see: AsyncDB)
+	 */
+	public AsyncDB async() {
+		return new AsyncDB(this);
+	}
+
+	/**
+	 * @param executor	runs the operators
+	 * @return a facade that runs this database's operators on the given executor, returning
+	 * 			futures (see: AsyncDB)
+	 */
+	public AsyncDB async(Executor executor) {
+		return new AsyncDB(this, executor);
+	}
+
+	/**
+	 * @return the clock the stored relations are versioned by
+	 */
+	public VersionClock getVersionClock() {
+		return this.versions;
 	}
 
 	/**
@@ -118,7 +381,39 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public Relation intersect(Relation first, Relation second) throws DBException {
-		return this.minus(first, this.minus(first,second));
+		return this.intersect(first, second, -1);
+	}
+
+	/**
+	 * Performs intersection between two relations by probing second's tuples with each of
+	 * first's tuples.
+	 * @param first		one relation
+	 * @param second	second relation
+	 * @param size_hint	expected number of tuples in the result, or -1 if unknown
+	 * @return a relation containing the intersection
+	 * @throws DBException if relations are incompatible
+	 */
+	public Relation intersect(Relation first, Relation second, int size_hint) throws DBException {
+		if (first == null || second == null) {
+			return null;
+		}
+		if (!isCompatible(first, second)) {
+			throw new DBException("Intersection: incompatible relations " +
+					first.schemaToString() + " and " + second.schemaToString());
+		}
+
+		OperatorMetrics metrics = this.begin("intersect", first, second);
+
+		if (size_hint < 0) {
+			size_hint = Math.min(first.getTuples().size(), second.getTuples().size());
+		}
+		Set<Tuple> second_set = probeSet(second);
+		metrics.addHashEntries(second_set.size());
+		Relation new_relation = newSetResult(first);
+		new_relation.addAllDistinct(this.probe(first.getTuples(), second_set, true,
+				first.isBag(), size_hint));
+
+		return this.end(metrics, new_relation);
 	}
 
 	/**
@@ -131,6 +426,20 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public Relation union(Relation first, Relation second) throws DBException {
+		return this.union(first, second, -1);
+	}
+
+	/**
+	 * Performs union between two relations: every distinct tuple of first, followed by the
+	 * tuples of second that first lacks. Neither relation is cloned, and first's tuples are
+	 * only rehashed if first is not already stored in a hash set.
+	 * @param first		one relation
+	 * @param second	second relation
+	 * @param size_hint	expected number of tuples in the result, or -1 if unknown
+	 * @return a relation containing the union
+	 * @throws DBException if relations are incompatible
+	 */
+	public Relation union(Relation first, Relation second, int size_hint) throws DBException {
 		if (first == null || second == null) {
 			return null;
 		}
@@ -139,18 +448,20 @@ public class DavidDB extends AbstractDB implements Timeable{
 					first.schemaToString() + " and " + second.schemaToString());
 		}	
 
-		double startTime = System.nanoTime();		
-
-		Relation new_relation = (Relation) first.clone();
-		new_relation.getTuples().addAll(second.getTuples());
-
-		double endTime = System.nanoTime();
-
-		//add time
-		time += endTime - startTime;
-
-		return new_relation;	
+		OperatorMetrics metrics = this.begin("union", first, second);
 
+		if (size_hint < 0) {
+			size_hint = first.getTuples().size() + second.getTuples().size();
+		}
+		Set<Tuple> first_set = probeSet(first);
+		metrics.addHashEntries(first_set.size());
+		Relation new_relation = newSetResult(first);
+		List<Tuple> list = new ArrayList<>(size_hint);
+		list.addAll(first.isBag() ? first_set : first.getTuples());
+		list.addAll(this.probe(second.getTuples(), first_set, false, second.isBag(), size_hint - list.size()));
+		new_relation.addAllDistinct(list);
+
+		return this.end(metrics, new_relation);
 	}
 
 	/**
@@ -163,6 +474,19 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public Relation minus(Relation first, Relation second) throws DBException {
+		return this.minus(first, second, -1);
+	}
+
+	/**
+	 * Performs a set difference by probing second's tuples with each of first's tuples, so
+	 * the cost is linear in both relations whichever is bigger.
+	 * @param first		one relation
+	 * @param second	second relation
+	 * @param size_hint	expected number of tuples in the result, or -1 if unknown
+	 * @return a relation containing the difference
+	 * @throws DBException if relations are incompatible
+	 */
+	public Relation minus(Relation first, Relation second, int size_hint) throws DBException {
 		if (first == null || second == null) {
 			return null;
 		}
@@ -172,19 +496,166 @@ public class DavidDB extends AbstractDB implements Timeable{
 		}
 
 
-		//get time
-		double startTime = System.nanoTime();	
+		OperatorMetrics metrics = this.begin("minus", first, second);
+
+		if (size_hint < 0) {
+			size_hint = first.getTuples().size();
+		}
+		Set<Tuple> second_set = probeSet(second);
+		metrics.addHashEntries(second_set.size());
+		Relation new_relation = newSetResult(first);
+		new_relation.addAllDistinct(this.probe(first.getTuples(), second_set, false,
+				first.isBag(), size_hint));
+
+		return this.end(metrics, new_relation);
+	}
+
+	/**
+	 * Creates the (empty) result of a set operation: an unnamed set, stored as a list
+	 * because set operations only ever add distinct tuples.
+	 * @param first	first input, whose attributes the result takes
+	 * @return an empty relation
+	 */
+	private static Relation newSetResult(Relation first) {
+		Relation result = new Relation();
+		result.useListStorage();
+		result.setAttributes(first.copyAttributes());
+		return result;
+	}
+
+	/**
+	 * @param r	a relation
+	 * @return r's tuples as a hash set: r's own set if it has one, otherwise a new one
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<Tuple> probeSet(Relation r) {
+		Collection<Tuple> tuples = r.snapshot();
+		if (tuples instanceof Set) {
+			return (Set<Tuple>) tuples;
+		}
+		return new HashSet<>(tuples);
+	}
+
+	/**
+	 * Streams tuples past a hash set, keeping those that are (or are not) in it. Large inputs
+	 * are hash partitioned and probed in parallel; the probe set is only read.
+	 * @param stream	tuples to stream
+	 * @param probe_set	tuples to probe
+	 * @param keep_found	true to keep tuples found in probe_set, false to keep those not found
+	 * @param dedupe	true if stream may contain duplicates that must be dropped
+	 * @param size_hint	expected number of tuples kept
+	 * @return the kept tuples
+	 */
+	private List<Tuple> probe(Collection<Tuple> stream, Set<Tuple> probe_set, boolean keep_found,
+			boolean dedupe, int size_hint) {
+		int parallelism = this.queryParallelism();
+		if (stream.size() < PARALLEL_THRESHOLD || parallelism <= 1) {
+			return probePartition(stream, probe_set, keep_found, dedupe, Math.max(size_hint, 0));
+		}
+
+		// partition by hash, so that all copies of a tuple are deduplicated by the same morsel
+		int count = (stream.size() + MORSEL_SIZE - 1) / MORSEL_SIZE;
+		List<List<Tuple>> morsels = new ArrayList<>(count);
+		if (dedupe) {
+			for (int m = 0; m < count; m++) {
+				morsels.add(new ArrayList<>(MORSEL_SIZE + MORSEL_SIZE / 4));
+			}
+			for (Tuple t : stream) {
+				morsels.get(Math.floorMod(t.hashCode(), count)).add(t);
+			}
+		}
+		else {
+			morsels = slices(new ArrayList<>(stream), MORSEL_SIZE);
+		}
+		int morsel_hint = Math.max(size_hint, 0) / count + 1;
+		List<List<Tuple>> results = this.scheduler.run(morsels,
+				morsel -> probePartition(morsel, probe_set, keep_found, dedupe, morsel_hint), parallelism);
+
+		List<Tuple> kept = new ArrayList<>(Math.max(size_hint, 0));
+		for (List<Tuple> result : results) {
+			kept.addAll(result);
+		}
+		return kept;
+	}
+
+	/**
+	 * Probes one partition of a set operation's input (see: probe)
+	 * @param stream	tuples to stream
+	 * @param probe_set	tuples to probe
+	 * @param keep_found	true to keep tuples found in probe_set, false to keep those not found
+	 * @param dedupe	true if stream may contain duplicates that must be dropped
+	 * @param size_hint	expected number of tuples kept
+	 * @return the kept tuples
+	 */
+	private static List<Tuple> probePartition(Collection<Tuple> stream, Set<Tuple> probe_set,
+			boolean keep_found, boolean dedupe, int size_hint) {
+		List<Tuple> kept = new ArrayList<>(size_hint);
+		Set<Tuple> seen = dedupe ? new HashSet<>(size_hint * 2) : null;
+		for (Tuple t : stream) {
+			if (probe_set.contains(t) == keep_found && (seen == null || seen.add(t))) {
+				kept.add(t);
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @return maximum number of threads a query may use at once, unless it sets its own limit
+	 * 			(see: withParallelism)
+	 */
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the maximum number of threads a query may use at once, unless it sets its own
+	 * limit; 1 runs everything serially. The threads come from the scheduler's fixed pool.
+	 * @param parallelism	number of threads, the query's own included
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
 
-		// generate a new relation containing the diff
-		Relation new_relation = (Relation) first.clone();
-		new_relation.getTuples().removeAll(second.getTuples());
+	/**
+	 * Runs a query on the calling thread with its own limit on the number of threads it may
+	 * use at once, e.g. to keep a large report from crowding out short queries
+	 * @param parallelism	number of threads, the query's own included; 1 runs it serially
+	 * @param query	the query, e.g. () -> db.hashJoin(...)
+	 * @return the query's result
+	 */
+	public <T> T withParallelism(int parallelism, Supplier<T> query) {
+		Session session = this.session();
+		int previous = session.parallelism;
+		session.parallelism = Math.max(1, parallelism);
+		try {
+			return query.get();
+		} finally {
+			session.parallelism = previous;
+		}
+	}
 
-		double endTime = System.nanoTime();
+	/**
+	 * @return maximum number of threads the calling thread's query may use at once
+	 */
+	private int queryParallelism() {
+		int parallelism = this.session().parallelism;
+		return (parallelism > 0) ? parallelism : this.parallelism;
+	}
 
-		//add time
-		time += endTime - startTime;
+	/**
+	 * @return the scheduler that runs the parallel parts of queries
+	 */
+	public MorselScheduler getScheduler() {
+		return this.scheduler;
+	}
 
-		return new_relation;
+	/**
+	 * Stops the scheduler's worker threads once their current morsels are done. Queries still
+	 * running finish on their own threads; parallel queries started afterwards are refused.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
 	}
 
 	/**
@@ -201,34 +672,122 @@ public class DavidDB extends AbstractDB implements Timeable{
 		}
 
 
-		//get time
-		double startTime = System.nanoTime();	
+		OperatorMetrics metrics = this.begin("times", first, second);
 
-		Relation left = (Relation) first.clone();
-		Relation right = (Relation) second.clone();
 		Relation new_relation = new Relation();
+		new_relation.bag = first.isBag() || second.isBag();
+		new_relation.useListStorage();	// each pair is a distinct tuple, no need to hash
 
-		List<Attribute> new_attr = left.getAttributes();
-		new_attr.addAll(right.getAttributes());
+		List<Attribute> new_attr = first.copyAttributes();
+		new_attr.addAll(second.copyAttributes());
 		new_relation.setAttributes(new_attr);
 
-		Set<Tuple> firstTuples = left.getTuples();
-		Set<Tuple> secondTuples = right.getTuples();
-		for (Tuple tuple : firstTuples) {
-			//concatenate current tuple with another tuple from second table
-			for (Tuple other_tuple : secondTuples) {
-				Tuple new_tuple = tuple.concat(other_tuple);
-				new_tuple.setRelation(new_relation);
-				new_relation.addTuple(new_tuple);
-			}
+		List<Tuple> outer = new ArrayList<>(first.getTuples());
+		List<Tuple> inner = new ArrayList<>(second.getTuples());
+		new_relation.addAllDistinct(this.inMorsels(outer, (long) outer.size() * inner.size(),
+				slice -> blockProduct(slice, inner, new_relation)));
+
+		return this.end(metrics, new_relation);
+	}
+
+	/**
+	 * Runs a task over a list of tuples, splitting the list into morsels that the scheduler
+	 * processes in parallel if there is enough work
+	 * @param tuples	tuples to process
+	 * @param work	estimate of the work to do (e.g., number of tuple pairs to consider)
+	 * @param task	processes a morsel of tuples, returning its output
+	 * @return the output of every morsel, in order
+	 */
+	private List<Tuple> inMorsels(List<Tuple> tuples, long work, Function<List<Tuple>, List<Tuple>> task) {
+		int parallelism = this.queryParallelism();
+		if (work < PARALLEL_THRESHOLD || parallelism <= 1 || tuples.size() <= 1) {
+			return task.apply(tuples);
+		}
+		// each morsel holds about MORSEL_SIZE units of work
+		int size = (int) Math.max(1, Math.min(tuples.size(), MORSEL_SIZE * (long) tuples.size() / work));
+		List<Tuple> output = new ArrayList<>();
+		for (List<Tuple> result : this.scheduler.run(slices(tuples, size), task, parallelism)) {
+			output.addAll(result);
+		}
+		return output;
+	}
+
+	/**
+	 * Keeps the tuples that pass a test, in their order. Many tuples are tested in parallel:
+	 * each morsel's matches go to a buffer of its own, and the buffers are appended in order,
+	 * so the result is the same as testing them on one thread.
+	 * @param tuples	tuples to test
+	 * @param test	the test; called concurrently, so it must only read shared state
+	 * @return the tuples that pass it
+	 */
+	List<Tuple> filter(Collection<Tuple> tuples, Predicate<Tuple> test) {
+		int parallelism = this.queryParallelism();
+		if (tuples.size() < this.select_threshold || parallelism <= 1) {
+			return filterMorsel(tuples, test);
+		}
+		List<Tuple> list = (tuples instanceof List) ? (List<Tuple>) tuples : new ArrayList<>(tuples);
+		List<List<Tuple>> buffers = this.scheduler.run(slices(list, MORSEL_SIZE),
+				morsel -> filterMorsel(morsel, test), parallelism);
+		int size = 0;
+		for (List<Tuple> buffer : buffers) {
+			size += buffer.size();
 		}
+		List<Tuple> kept = new ArrayList<>(size);
+		for (List<Tuple> buffer : buffers) {
+			kept.addAll(buffer);
+		}
+		return kept;
+	}
 
-		double endTime = System.nanoTime();
+	/**
+	 * Tests one morsel of filter()'s input
+	 * @param tuples	tuples to test
+	 * @param test	the test
+	 * @return the tuples that pass it
+	 */
+	private static List<Tuple> filterMorsel(Collection<Tuple> tuples, Predicate<Tuple> test) {
+		List<Tuple> kept = new ArrayList<>();
+		for (Tuple t : tuples) {
+			if (test.test(t)) {
+				kept.add(t);
+			}
+		}
+		return kept;
+	}
 
-		//add time
-		time += endTime - startTime;
+	/**
+	 * @param tuples	a list of tuples
+	 * @param size	number of tuples per slice
+	 * @return consecutive slices of the list (views, not copies), the last possibly shorter
+	 */
+	private static List<List<Tuple>> slices(List<Tuple> tuples, int size) {
+		List<List<Tuple>> slices = new ArrayList<>(tuples.size() / size + 1);
+		for (int start = 0; start < tuples.size(); start += size) {
+			slices.add(tuples.subList(start, Math.min(start + size, tuples.size())));
+		}
+		return slices;
+	}
 
-		return new_relation;
+	/**
+	 * Pairs every outer tuple with every inner tuple, a block of inner tuples at a time so
+	 * that the block stays in cache while the outer tuples stream past it (block nested loop).
+	 * Pairs are concatenated without copying their values.
+	 * @param outer	tuples providing the leading values
+	 * @param inner	tuples providing the trailing values
+	 * @param r	relation to which the concatenated tuples belong
+	 * @return every concatenated pair
+	 */
+	private static List<Tuple> blockProduct(List<Tuple> outer, List<Tuple> inner, Relation r) {
+		List<Tuple> pairs = new ArrayList<>((int) Math.min((long) outer.size() * inner.size(), Integer.MAX_VALUE - 8));
+		for (int start = 0; start < inner.size(); start += PRODUCT_BLOCK_SIZE) {
+			List<Tuple> block = inner.subList(start, Math.min(start + PRODUCT_BLOCK_SIZE, inner.size()));
+			for (Tuple tuple : outer) {
+				for (Tuple other_tuple : block) {
+					pairs.add(new ConcatTuple(tuple, other_tuple, r));
+				}
+			}
+		}
+		return pairs;
 	}
 
 	/**
@@ -266,55 +825,71 @@ public class DavidDB extends AbstractDB implements Timeable{
 		if (cond_str == null || cond_str.equals("")) {
 			return r;
 		}
+		return this.cached(cacheKey("select", r) + "[" + cond_str.trim().replaceAll("\\s+", " ") + "]",
+				() -> this.selectUncached(r, cond_str));
+	}
 
-		//get time
-		double startTime = System.nanoTime();
-
-		Relation result = (Relation) r.clone();
-		result.getTuples().clear();
-
-		Set<Tuple> set = r.getTuples();
-		for (Tuple candidate : set) {
-			if (this.evaluate(r, candidate, cond_str)) {
-				result.addTuple(candidate);
-			}
-		}
-
-		double endTime = System.nanoTime();
+	/**
+	 * Evaluates the specified condition on the current relation, bypassing the result cache
+	 * @param r	the relation to perform the selection
+	 * @param cond_str	a boolean condition
+	 * @return a reference to a relation which stores only the tuples
+	 *          for which the condition evaluated true
+	 * @throws DBException if the given condition is invalid
+	 */
+	private Relation selectUncached(Relation r, String cond_str) throws DBException {
+		OperatorMetrics metrics = this.begin("select", r);
 
-		//add time
-		time += endTime - startTime;
+		// compile the condition once, resolving its attribute names to positions; not kept
+		// for reuse, as r is often an intermediate result (see: prepare)
+		Relation result = new PreparedQuery(this, r, cond_str).run(new Comparable[0]);
 
-		return result;
+		return this.end(metrics, result);
 	}
 
 	/**
-	 * (Hwk3 addition)
-	 * Evaluates a boolean expression given a tuple and its relation
-	 * @param r	reference to a relation
-	 * @param t reference to a tuple
-	 * @param cond_str	a boolean condition
-	 * @return true if condition is true for the given tuple; false otherwise.
+	 * Prepares a selection to be run many times with different parameter values, e.g.
+	 * prepare(customers, "customerNumber = ?").execute(103). Prepared queries are kept by
+	 * relation and query text, so preparing the same query again returns the same one,
+	 * unless the relation's name or attributes have changed since.
+	 * @param r	the relation to select from
+	 * @param cond_str	a boolean condition, with a ? for each parameter
+	 * @return the prepared query
 	 * @throws DBException if the given condition is invalid
 	 */
-	private boolean evaluate(Relation r, Tuple t, String cond_str) throws DBException {
-		// split up the condition into tokens
-		String[] tokens = cond_str.split("\\s+");
-
-		// run through each expression token and replace a variable with a value (if exists)
-		for (int i = 0; i < tokens.length; i++) {
-			try {
-				tokens[i] = t.valueOf(tokens[i]).toString();
-			} catch(DBException e) {
-				// ignore
-			}
+	public PreparedQuery prepare(Relation r, String cond_str) throws DBException {
+		String key = "#" + r.getId() + "[" + cond_str.trim().replaceAll("\\s+", " ") + "]";
+		PreparedQuery query = this.plans.get(key);
+		if (query == null || !query.isCurrent()) {
+			query = new PreparedQuery(this, r, cond_str);
+			this.plans.put(key, query);
 		}
-		//re-build the conditional
-		StringBuilder sb = new StringBuilder();
-		for (String tok : tokens) {
-			sb.append(tok + " ");
+		return query;
+	}
+
+	/**
+	 * Runs a prepared query
+	 * @param query	the query
+	 * @param params	value of each parameter: a number for NUMERIC attributes, a string
+	 * 					(with or without quotes) for TEXT attributes
+	 * @return a relation holding the tuples that satisfy the query's condition
+	 * @throws DBException if the wrong number of parameters is given
+	 */
+	public Relation execute(PreparedQuery query, Comparable... params) throws DBException {
+		int depth = this.session().running.size();
+		OperatorMetrics metrics = this.begin("execute", query.getRelation());
+		try {
+			return this.end(metrics, query.run(params));
+		} finally {
+			this.unwind(depth);		// only needed if the run failed
 		}
-		return Expression.eval(sb.toString());
+	}
+
+	/**
+	 * @return the prepared queries kept for reuse, for inspecting their hit rate
+	 */
+	public ResultCache<String, PreparedQuery> getPlanCache() {
+		return this.plans;
 	}
 
 	/**
@@ -328,37 +903,57 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * @throws DBException if an attribute name doesn't exist or is ambiguous
 	 */
 	public Relation project(Relation r, String[] projection_list) throws DBException {
-		//get time
-		double startTime = System.nanoTime();
+		return this.cached(cacheKey("project", r) + Arrays.toString(projection_list),
+				() -> this.projectUncached(r, projection_list, false));
+	}
+
+	/**
+	 * Projects the given attributes, bypassing the result cache. The result is a bag if r is a bag;
+	 * otherwise duplicates are removed unless the caller knows there can be none.
+	 * @param r	the relation to perform the project
+	 * @param projection_list	an array of attribute names (i.e., "A" or "R.A") to project
+	 * @param lossless	true if distinct tuples of r are known to project to distinct tuples
+	 * @return a reference to a relation with the projected attributes
+	 * @throws DBException if an attribute name doesn't exist or is ambiguous
+	 */
+	private Relation projectUncached(Relation r, String[] projection_list, boolean lossless) throws DBException {
+		OperatorMetrics metrics = this.begin("project", r);
 
 		// get attributes of r
 		List<Attribute> attributes = r.getAttributes();
 
 		// build attribute list of the project, and also check for ambiguity
 		List<Attribute> list = new ArrayList<>();
-		for (String attr_name : projection_list) {
-			list.add(attributes.get(r.lookup(attr_name)));
+		int[] positions = new int[projection_list.length];
+		for (int i = 0; i < projection_list.length; i++) {
+			positions[i] = r.lookup(projection_list[i]);
+			list.add(attributes.get(positions[i]));
+		}
+
+		// keeping every column (in any order) cannot produce duplicates either
+		boolean[] kept = new boolean[attributes.size()];
+		int kept_count = 0;
+		for (int pos : positions) {
+			if (!kept[pos]) {
+				kept[pos] = true;
+				kept_count++;
+			}
 		}
+		lossless = lossless || kept_count == attributes.size();
 
-		//build new relation
+		//build new relation; its tuples only map columns onto r's tuples, no values are copied
 		Relation projection = new Relation();
+		projection.bag = r.isBag();
+		if (projection.bag || lossless) {
+			projection.useListStorage();
+		}
 		projection.setAttributes(list);
 		for (Tuple t : r.getTuples()) {
-			//build up a tuple; examine and preserve only the given attributes
-			List<Comparable> new_values = new ArrayList<>();
-			for (int i = 0; i < list.size(); i++) {
-				new_values.add(t.valueOf(list.get(i).getPedanticName()));
-			}
-			Tuple new_tuple = new Tuple(new_values, projection);
-			projection.addTuple(new_tuple);
+			// a set-backed projection drops duplicates as they are added
+			projection.addDistinct(new ProjectedTuple(t, positions, projection));
 		}
 
-		double endTime = System.nanoTime();
-
-		//add time
-		time += endTime - startTime;
-
-		return projection;
+		return this.end(metrics, projection);
 	}
 
 	/**
@@ -370,11 +965,23 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public Relation naturalJoin(Relation r1, Relation r2) throws DBException {
+		return this.cached(cacheKey("naturalJoin", r1, r2), () -> this.naturalJoinUncached(r1, r2));
+	}
+
+	/**
+	 * Performs a natural join between two relations, bypassing the result cache
+	 * @param r1	first relation
+	 * @param r2	second relation
+	 * @return a reference to a relation containing the joined data
+	 */
+	private Relation naturalJoinUncached(Relation r1, Relation r2) throws DBException {
+		OperatorMetrics metrics = this.begin("naturalJoin", r1, r2);
+
 		// determine common attributes
 		Set<Attribute> common = new HashSet<>(r1.getAttributes());
 		common.retainAll(r2.getAttributes());
 		if (common.size() == 0) {	// no common attributes, natural join reduces to product
-			return this.times(r1,r2);
+			return this.end(metrics, this.times(r1,r2));
 		}
 
 		// build expression to enforce equality
@@ -398,79 +1005,430 @@ public class DavidDB extends AbstractDB implements Timeable{
 		for (int i = 0; i < project_attr.size(); i++) {
 			project_array[i] = project_attr.get(i).getPedanticName();
 		}
-		return this.project(this.select(this.times(r1,r2), expr.toString()), project_array);
+		// the equality is tested inside the join loop, so that only matching pairs are ever built
+		// (rather than selecting from the whole product); every matching pair projects to a
+		// distinct tuple, so there are no duplicates to remove
+		return this.end(metrics,
+				this.projectUncached(this.thetaJoinUncached(r1, r2, expr.toString()), project_array, true));
 	}
 
-
 	/**
-	 * (Hwk3 addition)
-	 * Renames the given relation.
-	 * @param r	the relation to rename
-	 * @param newName	a new name
-	 * @return the given relation after renaming
+	 * Joins two relations on an arbitrary condition, such as a range or band of values
+	 * (e.g., "r1.a <= r2.b && r2.b < r1.a + 10"). Conditions on one relation alone are
+	 * applied to it before joining. If the condition compares an expression over r2 with
+	 * expressions over r1 (=, <, <=, >, >=), r2 is sorted on that expression and each r1
+	 * tuple only tests the r2 tuples within its bounds; otherwise every pair is tested
+	 * (block nested loop).
+	 * @param r1	first relation
+	 * @param r2	second relation
+	 * @param cond_str	the join condition; attributes may be named as in times(r1, r2)
+	 * @return a relation with the attributes of r1 followed by those of r2, holding every
+	 * 			concatenated pair of tuples that satisfies the condition
+	 * @throws DBException if the condition is invalid
 	 */
-	@Override
-	public Relation renameRelation(Relation r, String newName) {
-		//get time
-		double startTime = System.nanoTime();
-
-		Relation new_relation = (Relation) r.clone();
-
-		// reset the attributes' relation
-		List<Attribute> list = new_relation.getAttributes();
-		for (Attribute a : list) {
-			a.setRelation(new_relation);
+	public Relation thetaJoin(Relation r1, Relation r2, String cond_str) throws DBException {
+		if (cond_str == null || cond_str.trim().equals("")) {
+			return this.times(r1, r2);
 		}
-		new_relation.setName(newName);
-		new_relation.setAttributes(list);	// this to reset the map with new pedantic names
-
-		double endTime = System.nanoTime();
-
-		//add time
-		time += endTime - startTime;
-
-		return new_relation;
+		return this.cached(cacheKey("thetaJoin", r1, r2) + "[" + cond_str.trim().replaceAll("\\s+", " ") + "]",
+				() -> this.thetaJoinUncached(r1, r2, cond_str));
 	}
 
 	/**
-	 * (Hwk3 addition)
-	 * Renames the list of attributes. Takes short names (not pedantic ones).
-	 * @param r the relation whose attributes we want to rename
-	 * @param list	a list of new attribute names
-	 * @return the given relation after renaming
-	 * @throws DBException if list size differs from number of attributes
+	 * Joins two relations on an arbitrary condition, bypassing the result cache (see: thetaJoin)
+	 * @param r1	first relation
+	 * @param r2	second relation
+	 * @param cond_str	the join condition
+	 * @return a relation holding every concatenated pair of tuples that satisfies the condition
+	 * @throws DBException if the condition is invalid
 	 */
-	@Override
-	public Relation renameAttributes(Relation r, String[] list) throws DBException {
-		//get time
-		double startTime = System.nanoTime();
+	private Relation thetaJoinUncached(Relation r1, Relation r2, String cond_str) throws DBException {
+		OperatorMetrics metrics = this.begin("thetaJoin", r1, r2);
+
+		Relation new_relation = new Relation();
+		new_relation.bag = r1.isBag() || r2.isBag();
+		new_relation.useListStorage();	// each pair is a distinct tuple, no need to hash
+		List<Attribute> new_attr = r1.copyAttributes();
+		new_attr.addAll(r2.copyAttributes());
+		new_relation.setAttributes(new_attr);
+
+		Expression condition = Expression.compile(cond_str, new_relation::lookup);
+		int split = r1.getAttributes().size();
+
+		// sort the conjuncts by the relation(s) they read
+		List<Expression> left_conds = new ArrayList<>();
+		List<Expression> right_conds = new ArrayList<>();
+		Map<String, RangeIndex> ranges = new LinkedHashMap<>();
+		for (Expression c : condition.getConjuncts()) {
+			int side = sideOf(c, split);
+			if (side == 1) {
+				left_conds.add(c);
+			}
+			else if (side == 2) {
+				right_conds.add(c);
+			}
+			else if (c.getOperands().size() == 2 && RangeIndex.COMPARISONS.contains(c.getOperator())) {
+				Expression a = c.getOperands().get(0);
+				Expression b = c.getOperands().get(1);
+				if (sideOf(a, split) == 2 && sideOf(b, split) == 1) {
+					ranges.computeIfAbsent(a.toString(), k -> new RangeIndex(a, split)).addBound(c.getOperator(), b);
+				}
+				else if (sideOf(a, split) == 1 && sideOf(b, split) == 2) {
+					ranges.computeIfAbsent(b.toString(), k -> new RangeIndex(b, split))
+							.addBound(RangeIndex.flip(c.getOperator()), a);
+				}
+			}
+		}
+
+		List<Tuple> outer = filter(r1.getTuples(), left_conds, split, true);
+		List<Tuple> inner = filter(r2.getTuples(), right_conds, split, false);
+
+		// index r2 on the expression bounded on the most sides
+		RangeIndex index = null;
+		for (RangeIndex candidate : ranges.values()) {
+			if (index == null || candidate.score() > index.score()) {
+				index = candidate;
+			}
+		}
+		QueryEvents.JoinProbe probe_event = new QueryEvents.JoinProbe();
+		if (index != null) {
+			RangeIndex range = index;
+			QueryEvents.JoinBuild build_event = new QueryEvents.JoinBuild();
+			build_event.begin();
+			range.build(inner);
+			if (build_event.shouldCommit()) {
+				build_event.record("thetaJoin", nameOf(r2), inner.size(), 0);
+			}
+			probe_event.begin();
+			new_relation.addAllDistinct(this.inMorsels(outer, outer.size(),
+					slice -> range.probe(slice, condition, new_relation)));
+		}
+		else {
+			probe_event.begin();
+			new_relation.addAllDistinct(this.inMorsels(outer, (long) outer.size() * inner.size(),
+					slice -> blockJoin(slice, inner, condition, split, new_relation)));
+		}
+		if (probe_event.shouldCommit()) {
+			probe_event.record("thetaJoin", nameOf(r1), outer.size(), new_relation.getTuples().size());
+		}
+
+		return this.end(metrics, new_relation);
+	}
+
+	/**
+	 * @param e	an expression over the attributes of times(r1, r2)
+	 * @param split	number of attributes in r1
+	 * @return 1 if e reads only r1's attributes, 2 if it reads only r2's, or 0 if it reads
+	 * 			both or neither
+	 */
+	private static int sideOf(Expression e, int split) {
+		if (e.getPositions().isEmpty()) {
+			return 0;
+		}
+		if (e.getPositions().last() < split) {
+			return 1;
+		}
+		return (e.getPositions().first() >= split) ? 2 : 0;
+	}
+
+	/**
+	 * Keeps the tuples of one side of a join that satisfy every given condition
+	 * @param tuples	tuples of r1 or r2
+	 * @param conds	conditions over that relation's attributes only
+	 * @param split	number of attributes in r1
+	 * @param left	true if the tuples belong to r1, false if they belong to r2
+	 * @return the tuples that satisfy every condition
+	 */
+	private static List<Tuple> filter(Collection<Tuple> tuples, List<Expression> conds, int split, boolean left) {
+		List<Tuple> kept = new ArrayList<>(tuples.size());
+		PairRow row = new PairRow(split);
+		outer:
+		for (Tuple t : tuples) {
+			row.set(left ? t : null, left ? null : t);
+			for (Expression c : conds) {
+				if (!c.test(row)) {
+					continue outer;
+				}
+			}
+			kept.add(t);
+		}
+		return kept;
+	}
+
+	/**
+	 * Tests every pair of outer and inner tuples, a block of inner tuples at a time (see: blockProduct)
+	 * @param outer	tuples of r1
+	 * @param inner	tuples of r2
+	 * @param condition	the join condition
+	 * @param split	number of attributes in r1
+	 * @param r	relation to which the concatenated tuples belong
+	 * @return every concatenated pair that satisfies the condition
+	 */
+	private static List<Tuple> blockJoin(List<Tuple> outer, List<Tuple> inner, Expression condition,
+			int split, Relation r) {
+		List<Tuple> pairs = new ArrayList<>();
+		PairRow row = new PairRow(split);
+		for (int start = 0; start < inner.size(); start += PRODUCT_BLOCK_SIZE) {
+			List<Tuple> block = inner.subList(start, Math.min(start + PRODUCT_BLOCK_SIZE, inner.size()));
+			for (Tuple tuple : outer) {
+				for (Tuple other_tuple : block) {
+					row.set(tuple, other_tuple);
+					if (condition.test(row)) {
+						pairs.add(new ConcatTuple(tuple, other_tuple, r));
+					}
+				}
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * A pair of tuples read as their concatenation, without creating a new tuple. Reused
+	 * to test a join condition on many pairs.
+	 */
+	private static class PairRow implements Row {
+		private final int split;
+		private Tuple left;
+		private Tuple right;
+
+		public PairRow(int split) {
+			this.split = split;
+		}
+
+		public void set(Tuple left, Tuple right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Comparable get(int pos) {
+			return (pos < this.split) ? this.left.get(pos) : this.right.get(pos - this.split);
+		}
+	}
 
+	/**
+	 * This inner class indexes the tuples of r2 on the value of an expression over r2, kept
+	 * in sorted order, and collects bounds on that value given by expressions over r1. Each
+	 * r1 tuple then only needs to test the r2 tuples whose value lies within its bounds.
+	 */
+	private static class RangeIndex {
+		static final Set<String> COMPARISONS = Set.of("==", "<", "<=", ">", ">=");
+
+		private final Expression key;
+		private final int split;
+		private final List<Expression> lower = new ArrayList<>();	/* key >= (or >) each of these */
+		private final List<Expression> upper = new ArrayList<>();	/* key <= (or <) each of these */
+		private Class<?> key_type;
+		private Object[] keys;		/* sorted */
+		private Tuple[] tuples;		/* tuples[i] has key keys[i] */
+		private List<Tuple> unindexed;	/* tuples whose key is null or not of key_type; always tested */
+
+		public RangeIndex(Expression key, int split) {
+			this.key = key;
+			this.split = split;
+		}
+
+		/**
+		 * @param op	a comparison operator
+		 * @return the operator that gives the same result with its operands swapped
+		 */
+		static String flip(String op) {
+			switch (op) {
+				case "<":
+					return ">";
+				case "<=":
+					return ">=";
+				case ">":
+					return "<";
+				case ">=":
+					return "<=";
+				default:
+					return op;
+			}
+		}
+
+		/**
+		 * Records a condition "key op bound"
+		 * @param op	a comparison operator
+		 * @param bound	an expression over r1
+		 */
+		public void addBound(String op, Expression bound) {
+			if (!op.startsWith("<")) {
+				this.lower.add(bound);
+			}
+			if (!op.startsWith(">")) {
+				this.upper.add(bound);
+			}
+		}
+
+		/**
+		 * @return how selective the index is: 2 for a point or band, 1 for a one-sided range
+		 */
+		public int score() {
+			return (this.lower.isEmpty() || this.upper.isEmpty()) ? 1 : 2;
+		}
+
+		/**
+		 * Sorts the tuples of r2 on their key
+		 * @param inner	tuples of r2
+		 */
+		public void build(List<Tuple> inner) {
+			PairRow row = new PairRow(this.split);
+			List<Object[]> entries = new ArrayList<>(inner.size());
+			this.unindexed = new ArrayList<>();
+			for (Tuple t : inner) {
+				row.set(null, t);
+				Object k = this.key.evaluate(row);
+				if (this.key_type == null && isOrdered(k)) {
+					this.key_type = k.getClass();
+				}
+				if (isOrdered(k) && k.getClass() == this.key_type) {
+					entries.add(new Object[] {k, t});
+				}
+				else {
+					this.unindexed.add(t);
+				}
+			}
+			entries.sort((e1, e2) -> compare(e1[0], e2[0]));
+			this.keys = new Object[entries.size()];
+			this.tuples = new Tuple[entries.size()];
+			for (int i = 0; i < entries.size(); i++) {
+				this.keys[i] = entries.get(i)[0];
+				this.tuples[i] = (Tuple) entries.get(i)[1];
+			}
+		}
 
-		Relation new_relation = (Relation) r.clone();
+		/**
+		 * Joins r1 tuples with the indexed r2 tuples within their bounds
+		 * @param outer	tuples of r1
+		 * @param condition	the whole join condition, tested on every candidate pair
+		 * @param r	relation to which the concatenated tuples belong
+		 * @return every concatenated pair that satisfies the condition
+		 */
+		public List<Tuple> probe(List<Tuple> outer, Expression condition, Relation r) {
+			List<Tuple> pairs = new ArrayList<>();
+			PairRow row = new PairRow(this.split);
+			for (Tuple t : outer) {
+				row.set(t, null);
+				int from = 0;
+				int to = this.keys.length;
+				boolean bounded = true;
+				for (Expression e : this.lower) {
+					Object b = e.evaluate(row);
+					bounded &= isOrdered(b) && b.getClass() == this.key_type;
+					if (bounded) {
+						from = Math.max(from, this.search(b, false));
+					}
+				}
+				for (Expression e : this.upper) {
+					Object b = e.evaluate(row);
+					bounded &= isOrdered(b) && b.getClass() == this.key_type;
+					if (bounded) {
+						to = Math.min(to, this.search(b, true));
+					}
+				}
+				if (!bounded) {	// a bound we cannot compare with the keys; test everything
+					from = 0;
+					to = this.keys.length;
+				}
+				for (int i = from; i < to; i++) {
+					row.set(t, this.tuples[i]);
+					if (condition.test(row)) {
+						pairs.add(new ConcatTuple(t, this.tuples[i], r));
+					}
+				}
+				for (Tuple other_tuple : this.unindexed) {
+					row.set(t, other_tuple);
+					if (condition.test(row)) {
+						pairs.add(new ConcatTuple(t, other_tuple, r));
+					}
+				}
+			}
+			return pairs;
+		}
 
-		// reset the attributes' relation
-		List<Attribute> new_list = new_relation.getAttributes();
+		/**
+		 * Binary search over the sorted keys
+		 * @param bound	a value of key_type
+		 * @param after	false to find the first key >= bound, true to find the first key > bound
+		 * @return the position found, or keys.length if there is none
+		 */
+		private int search(Object bound, boolean after) {
+			int lo = 0;
+			int hi = this.keys.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = compare(this.keys[mid], bound);
+				if (cmp < 0 || (after && cmp == 0)) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
 
-		// ensure same number of attributes are given
-		List<Attribute> attribute_list = new_relation.getAttributes();
-		if (attribute_list.size() != list.length) {
-			throw new DBException("Attribute size mismatch. Required: " +
-					attribute_list.size() + " attributes.");
+		/**
+		 * @param val	an evaluated value
+		 * @return true if val is a number (not NaN) or a string, which the index can order
+		 */
+		private static boolean isOrdered(Object val) {
+			return (val instanceof Double && !((Double) val).isNaN()) || val instanceof String;
 		}
 
-		// rename each attribute, and reset their relation reference
-		for (int i = 0; i < list.length; i++) {
-			new_list.get(i).setName(list[i]);
-			new_list.get(i).setRelation(r);
+		/**
+		 * Compares two keys of the same type the way conditions compare them
+		 * @param k1	a key
+		 * @param k2	another key
+		 * @return negative, zero or positive as k1 is less than, equal to or greater than k2
+		 */
+		private static int compare(Object k1, Object k2) {
+			if (k1 instanceof Double) {
+				double a = (Double) k1;
+				double b = (Double) k2;
+				return (a < b) ? -1 : ((a > b) ? 1 : 0);
+			}
+			return ((String) k1).compareTo((String) k2);
 		}
-		new_relation.setAttributes(new_list);
+	}
+
+
+	/**
+	 * (Hwk3 addition)
+	 * Renames the given relation.
+	 * @param r	the relation to rename
+	 * @param newName	a new name
+	 * @return the given relation after renaming
+	 */
+	@Override
+	public Relation renameRelation(Relation r, String newName) {
+		OperatorMetrics metrics = this.begin("renameRelation", r);
 
-		double endTime = System.nanoTime();
+		// only the name and attributes are new; the values are shared with r
+		Relation new_relation = r.view(newName, null);
 
-		//add time
-		time += endTime - startTime;
+		return this.end(metrics, new_relation);
+	}
 
-		return new_relation;
+	/**
+	 * (Hwk3 addition)
+	 * Renames the list of attributes. Takes short names (not pedantic ones).
+	 * @param r the relation whose attributes we want to rename
+	 * @param list	a list of new attribute names
+	 * @return the given relation after renaming
+	 * @throws DBException if list size differs from number of attributes
+	 */
+	@Override
+	public Relation renameAttributes(Relation r, String[] list) throws DBException {
+		int depth = this.session().running.size();
+		OperatorMetrics metrics = this.begin("renameAttributes", r);
+		try {
+			// only the attributes are new; the values are shared with r
+			return this.end(metrics, r.view(r.getName(), list));
+		} finally {
+			this.unwind(depth);		// only needed if the list was the wrong size
+		}
 	}
 
 	/**
@@ -500,11 +1458,27 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 */
 	@Override
 	public Relation aggregate(Relation r, Agg[] agg_fns, String[] attrs, String[] groups)throws DBException {
-		//get time
-		double startTime = System.nanoTime();
+		return this.cached(cacheKey("aggregate", r) + Arrays.toString(agg_fns) + Arrays.toString(attrs)
+				+ Arrays.toString(groups), () -> this.aggregateUncached(r, agg_fns, attrs, groups));
+	}
+
+	/**
+	 * Aggregates, possibly over group(s), bypassing the result cache
+	 * @param r			relation over which to aggregate
+	 * @param agg_fns	a list of aggregation functions (see: Agg enum)
+	 * @param attrs		names of the attribute to apply the aggregation function
+	 * @param groups	a list of groups, or null if no groups
+	 * @return	a relation containing the group(s) and aggregated value
+	 * @throws DBException if attribute name or any groups are unknown, or if aggregation function cannot be performed
+	 */
+	private Relation aggregateUncached(Relation r, Agg[] agg_fns, String[] attrs, String[] groups) throws DBException {
+		OperatorMetrics metrics = this.begin("aggregate", r);
+		QueryEvents.Aggregate event = new QueryEvents.Aggregate();
+		event.begin();
 
 		/*** phase 1: create new relation and specify its attributes ***/
 		Relation new_relation = new Relation();
+		new_relation.useListStorage();		// one tuple per group, so no duplicates
 		List<Attribute> attr_list = new ArrayList<>();
 
 		// group is specified -- add those attribute(s) first
@@ -539,7 +1513,7 @@ public class DavidDB extends AbstractDB implements Timeable{
 			// concatenate grouping attributes (any tuple will do)
 			if (groups != null) {
 				for (int i = 0; i < groups.length; i++) {
-					agg_tuple = agg_tuple.concat(new Tuple(new Comparable[]{group.get(0).valueOf(groups[i])}, new_relation));
+					agg_tuple = agg_tuple.concat(new Tuple(new Comparable[]{group.get(0).get(r.lookup(groups[i]))}, new_relation));
 				}
 			}
 
@@ -553,8 +1527,8 @@ public class DavidDB extends AbstractDB implements Timeable{
 						throw new DBException("Type mismatch: Cannot perform SUM() over TEXT attribute: " + attrs[i]);
 					}
 					agg_values[i] = (agg_fns[i] == Agg.SUM) ?
-							this.agg_fn_sum(group, attrs[i], false) :
-								this.agg_fn_sum(group, attrs[i], true);
+							this.agg_fn_sum(group, r.lookup(attrs[i]), false) :
+								this.agg_fn_sum(group, r.lookup(attrs[i]), true);
 							break;
 				case AVG:
 				case AVG_DISTINCT:
@@ -562,34 +1536,33 @@ public class DavidDB extends AbstractDB implements Timeable{
 						throw new DBException("Type mismatch: Cannot perform AVG() over TEXT attribute: " + attrs[i]);
 					}
 					agg_values[i] = (agg_fns[i] == Agg.AVG) ?
-							this.agg_fn_avg(group, attrs[i], false) :
-								this.agg_fn_avg(group, attrs[i], true);
+							this.agg_fn_avg(group, r.lookup(attrs[i]), false) :
+								this.agg_fn_avg(group, r.lookup(attrs[i]), true);
 							break;
 				case COUNT:
-					agg_values[i] = this.agg_fn_cnt(group, attrs[i], false);
+					agg_values[i] = this.agg_fn_cnt(group, r.lookup(attrs[i]), false);
 					break;
 				case COUNT_DISTINCT:
-					agg_values[i] = this.agg_fn_cnt(group, attrs[i], true);
+					agg_values[i] = this.agg_fn_cnt(group, r.lookup(attrs[i]), true);
 					break;
 				case MAX:
-					agg_values[i] = this.agg_fn_max(group, attrs[i], false);
+					agg_values[i] = this.agg_fn_max(group, r.lookup(attrs[i]), false);
 					break;
 				case MIN:
-					agg_values[i] = this.agg_fn_min(group, attrs[i], false);
+					agg_values[i] = this.agg_fn_min(group, r.lookup(attrs[i]), false);
 					break;
 				default:
 					throw new DBException("Unknown aggregation function: " + agg_fns[i]);
 				}
 			}
-			new_relation.addTuple(agg_tuple.concat(new Tuple(agg_values, new_relation)));
+			new_relation.addDistinct(agg_tuple.concat(new Tuple(agg_values, new_relation)));
+		}
+		if (event.shouldCommit()) {
+			event.record(nameOf(r), Arrays.toString(agg_fns), Arrays.toString(groups), r.getTuples().size(),
+					new_relation.getTuples().size());
 		}
 
-		double endTime = System.nanoTime();
-
-		//add time
-		time += endTime - startTime;
-
-		return new_relation;
+		return this.end(metrics, new_relation);
 	}
 
 	/**
@@ -634,18 +1607,18 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * (Hwk 5 -- not given)
 	 * Produces the number of tuples
 	 * @param tuples	set of tuples
-	 * @param agg_attr	name of the aggregating attribute
+	 * @param agg_pos	position of the aggregating attribute
 	 * @param distinct	whether to ignore duplicate values
 	 * @return the number of tuples
 	 */
-	private Double agg_fn_cnt(Collection<Tuple> tuples, String agg_attr, boolean distinct) {
+	private Double agg_fn_cnt(Collection<Tuple> tuples, int agg_pos, boolean distinct) {
 		if (!distinct) {
 			return (double) tuples.size();
 		}
 
 		Set<Comparable> dupes = new HashSet<>();	// for distinct
 		for (Tuple t : tuples) {
-			dupes.add(t.valueOf(agg_attr));	// get the value to aggregate from the tuple
+			dupes.add(t.get(agg_pos));	// get the value to aggregate from the tuple
 		}
 		return (double) dupes.size();
 	}
@@ -655,17 +1628,17 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * (Hwk 5 -- not given)
 	 * Produces the sum of the set of tuples for the given attribute position
 	 * @param tuples	set of tuples
-	 * @param agg_attr	name of the aggregating attribute
+	 * @param agg_pos	position of the aggregating attribute
 	 * @param distinct	whether to ignore duplicate values
 	 * @return sum of the attribute
 	 */
-	private Double agg_fn_sum(Collection<Tuple> tuples, String agg_attr, boolean distinct) {
+	private Double agg_fn_sum(Collection<Tuple> tuples, int agg_pos, boolean distinct) {
 		Set<Comparable> dupes = new HashSet<>();	// for distinct
 
 		double sum = 0.0;
 		Comparable val;
 		for (Tuple t : tuples) {
-			val = t.valueOf(agg_attr);	// get the value to aggregate from the tuple
+			val = t.get(agg_pos);	// get the value to aggregate from the tuple
 
 			if (distinct) {
 				if (!dupes.contains(val)) {
@@ -684,29 +1657,29 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * (Hwk 5 -- not given)
 	 * Produces the average of the set of tuples for the given attribute position
 	 * @param tuples	set of tuples
-	 * @param agg_attr	name of the aggregating attribute
+	 * @param agg_pos	position of the aggregating attribute
 	 * @param distinct	whether to ignore duplicate values
 	 * @return average of the attribute
 	 */
-	private Double agg_fn_avg(Collection<Tuple> tuples, String agg_attr, boolean distinct) {
-		return agg_fn_sum(tuples,agg_attr,distinct)/tuples.size();
+	private Double agg_fn_avg(Collection<Tuple> tuples, int agg_pos, boolean distinct) {
+		return agg_fn_sum(tuples,agg_pos,distinct)/tuples.size();
 	}
 
 	/**
 	 * (Hwk 5 -- not given)
 	 * Produces the max of the set of tuples for the given attribute position
 	 * @param tuples	set of tuples
-	 * @param agg_attr	name of the aggregating attribute
+	 * @param agg_pos	position of the aggregating attribute
 	 * @param distinct	whether to ignore duplicate values
 	 * @return max value of the attribute
 	 */
-	private Comparable agg_fn_max(Collection<Tuple> tuples, String agg_attr, boolean distinct) {
+	private Comparable agg_fn_max(Collection<Tuple> tuples, int agg_pos, boolean distinct) {
 		Set<Comparable> dupes = new HashSet<>();	// for distinct
 
 		Comparable max = null;
 		Comparable val;
 		for (Tuple t : tuples) {
-			val = t.valueOf(agg_attr);	// get the value to aggregate from the tuple
+			val = t.get(agg_pos);	// get the value to aggregate from the tuple
 
 			if (distinct) {
 				if (!dupes.contains(val)) {
@@ -729,17 +1702,17 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * (Hwk 5 -- not given)
 	 * Produces the min of the set of tuples for the given attribute position
 	 * @param tuples	set of tuples
-	 * @param agg_attr	name of the aggregating attribute
+	 * @param agg_pos	position of the aggregating attribute
 	 * @param distinct	whether to ignore duplicate values
 	 * @return min value of the attribute
 	 */
-	private Comparable agg_fn_min(Collection<Tuple> tuples, String agg_attr, boolean distinct) {
+	private Comparable agg_fn_min(Collection<Tuple> tuples, int agg_pos, boolean distinct) {
 		Set<Comparable> dupes = new HashSet<>();	// for distinct
 
 		Comparable min = null;
 		Comparable val;
 		for (Tuple t : tuples) {
-			val = t.valueOf(agg_attr);	// get the value to aggregate from the tuple
+			val = t.get(agg_pos);	// get the value to aggregate from the tuple
 
 			if (distinct) {
 				if (!dupes.contains(val)) {
@@ -764,10 +1737,13 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * into multiple groups. Sorts tuples by increasing group values.
 	 */
 	private static class GroupComparator implements Comparator<Tuple> {
-		private String[] groups;
+		private int[] positions;
 
 		public GroupComparator(Relation r, String[] groups) {
-			this.groups = groups;
+			this.positions = new int[groups.length];
+			for (int i = 0; i < groups.length; i++) {
+				this.positions[i] = r.lookup(groups[i]);
+			}
 		}
 
 		/**
@@ -779,9 +1755,9 @@ public class DavidDB extends AbstractDB implements Timeable{
 		 */
 		@Override
 		public int compare(Tuple t1, Tuple t2) {
-			for (int i = 0; i < this.groups.length; i++) {
-				Comparable first = t1.valueOf(this.groups[i]);
-				Comparable second = t2.valueOf(this.groups[i]);
+			for (int i = 0; i < this.positions.length; i++) {
+				Comparable first = t1.get(this.positions[i]);
+				Comparable second = t2.get(this.positions[i]);
 				if (first.compareTo(second) < 0) {
 					return -1;
 				}
@@ -795,6 +1771,52 @@ public class DavidDB extends AbstractDB implements Timeable{
 
 
 
+	/**
+	 * This inner class defines a comparator that orders tuples by a list of attributes,
+	 * each ascending or descending. Null values order as smaller than everything else: first
+	 * when ascending, last when descending.
+	 */
+	private static class OrderComparator implements Comparator<Tuple> {
+		private int[] positions;
+		private boolean[] descending;
+
+		public OrderComparator(Relation r, String[] attrs, Order[] directions) {
+			this.positions = new int[attrs.length];
+			this.descending = new boolean[attrs.length];
+			for (int i = 0; i < attrs.length; i++) {
+				this.positions[i] = r.lookup(attrs[i]);
+				this.descending[i] = directions != null && directions[i] == Order.DESC;
+			}
+		}
+
+		/**
+		 * Compares two tuples to provide ordering
+		 * @param t1
+		 * @param t2
+		 * @return -val if the former should be ordered before the latter, +val
+		 * otherwise, or 0 if they are equal.
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public int compare(Tuple t1, Tuple t2) {
+			for (int i = 0; i < this.positions.length; i++) {
+				Comparable first = t1.get(this.positions[i]);
+				Comparable second = t2.get(this.positions[i]);
+				int cmp;
+				if (first == null || second == null) {
+					cmp = (first == null) ? ((second == null) ? 0 : -1) : 1;
+				}
+				else {
+					cmp = first.compareTo(second);
+				}
+				if (cmp != 0) {
+					return this.descending[i] ? -cmp : cmp;
+				}
+			}
+			return 0;
+		}
+	}
+
 	/**
 	 * (Hwk 6 addition)
 	 * Performs a natural join between two relations using the hash-join algorithm.
@@ -804,42 +1826,57 @@ public class DavidDB extends AbstractDB implements Timeable{
 	 * @throws DBException
 	 * @pre the common attributes in r1 must be unique
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public Relation hashJoin(Relation R1, Relation R2) throws DBException {
+		return this.cached(cacheKey("hashJoin", R1, R2), () -> this.hashJoinUncached(R1, R2));
+	}
+
+	/**
+	 * Performs a hash join between two relations, bypassing the result cache
+	 * @param R1	first relation
+	 * @param R2	second relation
+	 * @return a reference to a relation containing the joined data
+	 * @throws DBException if the common attributes in R1 are not unique
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Relation hashJoinUncached(Relation R1, Relation R2) throws DBException {
 		//Precondition: The common attribute in R must be unique
 		//Input: Relation r1, Relation r2
 		//Output: Relation join
-		Relation r1 = (Relation) R1.clone();
-		Relation r2 = (Relation) R2.clone();
+		OperatorMetrics metrics = this.begin("hashJoin", R1, R2);
+
+		// the inputs are read in place; the output gets copies of their attributes
+		Relation r1 = R1;
+		Relation r2 = R2;
 
 		// determine common attributes and use as key
 		Set<Attribute> common = new HashSet<>(r1.getAttributes());
 		common.retainAll(r2.getAttributes());
 		if (common.size() == 0) {	// no common attributes, natural join reduces to product
-			return times(r1,r2);
+			return this.end(metrics, times(r1,r2));
 		}
 
-		//get time
-		double startTime = System.nanoTime();
-
-		// return this
+		// return this; r1's keys are unique, so each output tuple is distinct
 		Relation join = new Relation();
+		join.bag = R1.isBag() || R2.isBag();
+		join.useListStorage();
 
 		//create attribute list for join
 		List<Attribute> newAtts = new ArrayList<Attribute>();
 
-		//add all attrs from rel 1
-		for (Attribute a: r1.attribute_list){
-			newAtts.add(a);
-		}
-		//add non duped attrs from rel 2
-		for (Attribute a: r2.attribute_list){
-			if (!newAtts.contains(a)){
+		//add copies of all attrs from rel 1
+		newAtts.addAll(r1.copyAttributes());
+		//add copies of non duped attrs from rel 2, remembering where they are in r2
+		List<Integer> r2Rest = new ArrayList<Integer>();
+		List<Attribute> r2Atts = r2.copyAttributes();
+		for (int pos = 0; pos < r2Atts.size(); pos++){
+			Attribute a = r2Atts.get(pos);
+			if (!common.contains(a)){
 				newAtts.add(a);
+				r2Rest.add(pos);
 			}
 		}
-		//set relation of attrs
+		//set relation of the copies
 		for (Attribute a: newAtts){
 			a.setRelation(join);
 		}
@@ -848,20 +1885,37 @@ public class DavidDB extends AbstractDB implements Timeable{
 
 		// Phase I: Hash every tuple of R by the value
 		// of the common attribute
+		QueryEvents.JoinBuild build_event = new QueryEvents.JoinBuild();
+		build_event.begin();
 		HashMap<List<Comparable>, List<Comparable>> map = new HashMap<List<Comparable>,List<Comparable>>();
 
-		for (Tuple r : r1.tuples) {
+		// positions of the common attributes in each relation
+		int[] r1Key = new int[common.size()];
+		int[] r2Key = new int[common.size()];
+		int p = 0;
+		for (Attribute a : common){
+			r1Key[p] = r1.lookup(a.getName());
+			r2Key[p] = r2.lookup(a.getName());
+			p++;
+		}
+
+		// while building, also build a Bloom filter over r1's keys to screen r2's tuples
+		BloomFilter filter = this.buildRuntimeFilter(r1.getTuples(), r1Key);
+		RuntimeFilterStats stats = (filter == null) ? null :
+				this.newRuntimeFilterStats("hashJoin", R1, R2, r1.getTuples().size());
+
+		for (Tuple r : r1.getTuples()) {
 			// grab values for attribute key c
 			List c = new ArrayList<Comparable>();
-			for (Attribute a : common){
-				c.add(r.valueOf(a.getName()));
+			for (int pos : r1Key){
+				c.add(r.get(pos));
 			}
 
 			//check if no duplicate key exits add to the map
 			if (!map.containsKey(c)) {
 				//get values of tuple
 				List<Comparable> newData = new ArrayList<Comparable>();
-				newData = r.data; 
+				newData = r.values(); 
 				//insert into map
 				map.put(c, newData);
 			}
@@ -869,13 +1923,28 @@ public class DavidDB extends AbstractDB implements Timeable{
 				throw new DBException("Hash-join cannot be performed \nThe common attribute in R must be unique");
 			}
 		}
+		metrics.addHashEntries(map.size());
+		if (build_event.shouldCommit()) {
+			build_event.record("hashJoin", nameOf(R1), r1.getTuples().size(), map.size());
+		}
 
 		// Phase II: Join up with r2
-		for (Tuple r : r2.tuples) {
+		QueryEvents.JoinProbe probe_event = new QueryEvents.JoinProbe();
+		probe_event.begin();
+		for (Tuple r : r2.getTuples()) {
+			// drop tuples without a partner before building their key
+			if (filter != null) {
+				boolean passed = filter.mightContain(r.keyHash(r2Key));
+				stats.record(passed);
+				if (!passed) {
+					continue;
+				}
+			}
+
 			// grab values for attribute key c
 			List c = new ArrayList<Comparable>();
-			for (Attribute a : common){
-				c.add(r.valueOf(a.getName()));
+			for (int pos : r2Key){
+				c.add(r.get(pos));
 			}
 
 			//check if keyed value is in map
@@ -884,153 +1953,1085 @@ public class DavidDB extends AbstractDB implements Timeable{
 				List<Comparable> data = new ArrayList<Comparable>();
 				data.addAll(map.get(c));			
 
-				//subtract common attribute out of r2
-				List<Comparable> r2Data = new ArrayList<Comparable>();
-				r2Data.addAll(r.data);
-				r2Data.removeAll(c);
-
-				//combine tuple values
-				data.addAll(r2Data);
+				//subtract common attribute out of r2 (by position, so equal values elsewhere are kept)
+				for (int pos : r2Rest) {
+					data.add(r.get(pos));
+				}
 
 				//add tuple to relation
-				join.addTuple(new Tuple(data,join));
+				join.addDistinct(new Tuple(data,join));
 			}
 		}
-		double endTime = System.nanoTime();
-
-		//add time
-		time += (endTime - startTime);
-		return join;
-	}
-
-	/**
-	 * @return the elapsed time (in milliseconds) since last reset.
-	 */
-	@Override
-	public double getElapsedTime() {
-		return time/1000000.0;
+		if (probe_event.shouldCommit()) {
+			probe_event.record("hashJoin", nameOf(R2), r2.getTuples().size(), join.getTuples().size());
+		}
+		return this.end(metrics, join);
 	}
 
 	/**
-	 * Resets the elapsed time to zero.
+	 * Joins a fact relation with any number of dimension relations in one pass, as
+	 * naturalJoin(...naturalJoin(naturalJoin(fact, d1), d2)..., dn) would, but without building
+	 * any intermediate relation. Each dimension is joined on the attributes it shares with the
+	 * fact relation and the dimensions before it (so a dimension may hang off another dimension,
+	 * e.g. orderdetails, orders, customers, payments). A hash table is built over each dimension
+	 * once; then every fact tuple is streamed through all of them, and only complete matches
+	 * become tuples. Dimension keys need not be unique.
+	 * @param fact	the fact relation (e.g., orderdetails)
+	 * @param dimensions	the relations to join with it, in order
+	 * @return a relation with the attributes of fact followed by each dimension's attributes
+	 * 			that are not already present
 	 */
-	@Override
-	public void resetElapsedTime() {
-		time = 0.0;	
+	public Relation starJoin(Relation fact, Relation... dimensions) throws DBException {
+		Relation[] inputs = new Relation[dimensions.length + 1];
+		inputs[0] = fact;
+		System.arraycopy(dimensions, 0, inputs, 1, dimensions.length);
+		return this.cached(cacheKey("starJoin", inputs), () -> this.starJoinUncached(fact, dimensions));
 	}
 
-
 	/**
-	 * (Hwk 6 addition)
-	 * Performs a natural join between two relations using the sort-merge algorithm.
-	 * @param r1	first relation
-	 * @param r2	second relation
-	 * @return a reference to a relation containing the joined data
-	 * @pre the common attributes in r1 must be unique
+	 * Joins a fact relation with dimension relations, bypassing the result cache (see: starJoin)
+	 * @param fact	the fact relation
+	 * @param dimensions	the relations to join with it, in order
+	 * @return a relation holding the joined data
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	public Relation sortJoin(Relation r1, Relation r2){
+	private Relation starJoinUncached(Relation fact, Relation[] dimensions) throws DBException {
+		Relation[] inputs = new Relation[dimensions.length + 1];
+		inputs[0] = fact;
+		System.arraycopy(dimensions, 0, inputs, 1, dimensions.length);
+		OperatorMetrics metrics = this.begin("starJoin", inputs);
 
-		//check for common attribute
-		Set<Attribute> common = new HashSet<>(r1.getAttributes());
-		common.retainAll(r2.getAttributes());
-		if (common.size() == 0) {	// no common attributes, natural join reduces to product
-			return times(r1,r2);
+		Relation join = new Relation();
+		join.bag = fact.isBag();
+		join.useListStorage();	// each combination of matches is a distinct tuple
+		List<Attribute> newAtts = fact.copyAttributes();
+
+		// work out, for each dimension, its key positions in the joined tuple and in the
+		// dimension, and where its remaining attributes go
+		StarDimension[] dims = new StarDimension[dimensions.length];
+		for (int d = 0; d < dimensions.length; d++) {
+			Relation dim = dimensions[d];
+			join.bag |= dim.isBag();
+			List<Integer> rowKey = new ArrayList<>();
+			List<Integer> dimKey = new ArrayList<>();
+			List<Integer> dimRest = new ArrayList<>();
+			for (int pos = 0; pos < dim.getAttributes().size(); pos++) {
+				Attribute a = dim.getAttributes().get(pos);
+				int shared = newAtts.indexOf(a);
+				if (shared >= 0) {
+					rowKey.add(shared);
+					dimKey.add(pos);
+				}
+				else {
+					dimRest.add(pos);
+				}
+			}
+			dims[d] = new StarDimension(toArray(rowKey), toArray(dimKey), toArray(dimRest), newAtts.size());
+			for (int pos : dimRest) {
+				Attribute a = dim.getAttributes().get(pos);
+				newAtts.add(new Attribute(a.getRelation(), a.getType(), a.getName()));
+			}
+			QueryEvents.JoinBuild build_event = new QueryEvents.JoinBuild();
+			build_event.begin();
+			dims[d].build(dim.getTuples());
+			metrics.addHashEntries(dims[d].table.size());
+			if (build_event.shouldCommit()) {
+				build_event.record("starJoin", nameOf(dim), dim.getTuples().size(), dims[d].table.size());
+			}
 		}
+		join.setAttributes(newAtts);
 
-		//get time
-		double startTime = System.nanoTime();
+		int width = newAtts.size();
+		List<Tuple> facts = new ArrayList<>(fact.getTuples());
+		QueryEvents.JoinProbe probe_event = new QueryEvents.JoinProbe();
+		probe_event.begin();
+		join.addAllDistinct(this.inMorsels(facts, facts.size(), slice -> {
+			List<Tuple> out = new ArrayList<>();
+			Comparable[] row = new Comparable[width];
+			ProbeKey[] keys = new ProbeKey[dims.length];		// reused for every probe of the morsel
+			for (int d = 0; d < dims.length; d++) {
+				keys[d] = new ProbeKey(row, dims[d].rowKey);
+			}
+			for (Tuple t : slice) {
+				for (int i = 0; i < t.size(); i++) {
+					row[i] = t.get(i);
+				}
+				probeDimensions(row, dims, keys, 0, join, out);
+			}
+			return out;
+		}));
+		if (probe_event.shouldCommit()) {
+			probe_event.record("starJoin", nameOf(fact), facts.size(), join.getTuples().size());
+		}
 
-		//create and set up new relation
-		Relation T = new Relation();	
-		//create attribute list for join
-		List<Attribute> newAtts = new ArrayList<Attribute>();
+		return this.end(metrics, join);
+	}
 
-		//add all attrs from rel 1
-		for (Attribute a: r1.attribute_list){
-			newAtts.add(a);
+	/**
+	 * Probes the remaining dimensions with a partly joined row, emitting a tuple for every
+	 * complete combination of matches
+	 * @param row	values joined so far, filled in up to dims[d]'s offset
+	 * @param dims	the dimensions
+	 * @param keys	each dimension's probe key over row
+	 * @param d	the dimension to probe next
+	 * @param r	relation to which the joined tuples belong
+	 * @param out	list to add the joined tuples to
+	 */
+	private static void probeDimensions(Comparable[] row, StarDimension[] dims, ProbeKey[] keys, int d, Relation r,
+			List<Tuple> out) {
+		if (d == dims.length) {
+			out.add(new Tuple(row.clone(), r));
+			return;
 		}
-		//add non duped attrs from rel 2
-		for (Attribute a: r2.attribute_list){
-			if (!newAtts.contains(a)){
-				newAtts.add(a);
-			}
+		StarDimension dim = dims[d];
+		List<Tuple> matches = dim.table.get(keys[d]);
+		if (matches == null) {
+			return;
 		}
-		//set relation of attrs
-		for (Attribute a: newAtts){
-			a.setRelation(T);
+		for (Tuple match : matches) {
+			for (int i = 0; i < dim.dimRest.length; i++) {
+				row[dim.offset + i] = match.get(dim.dimRest[i]);
+			}
+			probeDimensions(row, dims, keys, d + 1, r, out);
 		}
+	}
 
-		T.setAttributes(newAtts);
+	/**
+	 * A hash table key that reads its values from a row as it currently is, so that one key
+	 * per dimension serves every probe of a morsel instead of allocating a key per probe.
+	 * It hashes and compares equal to a Tuple holding the same values (see: Tuple.keyHash),
+	 * and is only valid until the row changes, so it must never be stored.
+	 */
+	private static class ProbeKey extends Tuple {
+		private final Tuple row;		/* wraps the row array, which keeps changing; only read through get() */
+		private final int[] positions;	/* positions of the key in the row */
 
+		/**
+		 * @param row	the row being joined
+		 * @param positions	positions of the key in the row
+		 */
+		ProbeKey(Comparable[] row, int[] positions) {
+			super((Comparable[]) null, null);
+			this.row = new Tuple(row, null);
+			this.positions = positions;
+		}
 
-		//make common attrs into string format for sort method
-		String[] groups = new String[common.size()];
+		/**
+		 * @return number of key values
+		 */
+		@Override
+		public int size() {
+			return this.positions.length;
+		}
+
+		/**
+		 * @param pos	position within the key
+		 * @return the row's current value at that key position
+		 */
+		@Override
+		public Comparable get(int pos) {
+			return this.row.get(this.positions[pos]);
+		}
+
+		/**
+		 * @return the hash of the key's current values, never cached
+		 */
+		@Override
+		public int hashCode() {
+			return this.row.keyHash(this.positions);
+		}
+	}
+
+	/**
+	 * Natural joins any number of relations, choosing the join order (see: JoinPlanner).
+	 * Each step is a hash join that builds over its smaller input, or a sort-merge join where
+	 * that is cheaper.
+	 * @param rs	the relations to join
+	 * @return a relation with the attributes of rs[0], followed by those of rs[1] that are not
+	 * 			already present, and so on, as nested naturalJoin calls would produce
+	 * @throws DBException if no relations are given
+	 */
+	public Relation join(Relation... rs) throws DBException {
+		if (rs.length == 1) {
+			return rs[0];
+		}
+		return this.cached(cacheKey("join", rs), () -> this.joinUncached(rs));
+	}
+
+	/**
+	 * Describes how join() would join the given relations
+	 * @param rs	the relations to join
+	 * @return the chosen plan, one operator per line, with estimated sizes and costs
+	 * @throws DBException if no relations are given
+	 */
+	public String explainJoin(Relation... rs) throws DBException {
+		return new JoinPlanner(rs).plan().toString();
+	}
+
+	/**
+	 * Natural joins any number of relations, bypassing the result cache (see: join)
+	 * @param rs	the relations to join
+	 * @return a relation holding the joined data
+	 */
+	private Relation joinUncached(Relation[] rs) throws DBException {
+		OperatorMetrics metrics = this.begin("join", rs);
+		JoinPlanner.Plan plan = new JoinPlanner(rs).plan();
+		Relation joined = this.execute(plan, rs);
+
+		// put the attributes in the order nested natural joins would
+		List<Attribute> order = new ArrayList<>();
+		for (Relation r : rs) {
+			for (Attribute a : r.getAttributes()) {
+				if (!order.contains(a)) {
+					order.add(a);
+				}
+			}
+		}
+		int[] positions = new int[order.size()];
+		List<Attribute> newAtts = new ArrayList<>(order.size());
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = joined.getAttributes().indexOf(order.get(i));
+			Attribute a = order.get(i);
+			newAtts.add(new Attribute(a.getRelation(), a.getType(), a.getName()));
+		}
+		Relation result = new Relation();
+		result.bag = joined.isBag();
+		result.useListStorage();	// a permutation of distinct tuples is distinct
+		result.setAttributes(newAtts);
+		List<Tuple> tuples = new ArrayList<>(joined.getTuples().size());
+		for (Tuple t : joined.getTuples()) {
+			tuples.add(new ProjectedTuple(t, positions, result));
+		}
+		result.addAllDistinct(tuples);
+
+		return this.end(metrics, result);
+	}
+
+	/**
+	 * Runs a join plan
+	 * @param plan	the plan
+	 * @param rs	the relations the plan joins
+	 * @return the plan's result
+	 */
+	private Relation execute(JoinPlanner.Plan plan, Relation[] rs) throws DBException {
+		if (plan.isScan()) {
+			return rs[plan.getInput()];
+		}
+		Relation probe = this.execute(plan.getLeft(), rs);
+		Relation build = this.execute(plan.getRight(), rs);
+		if (plan.isMergeJoin()) {
+			return this.sortJoinUncached(probe, build);
+		}
+		return this.starJoinUncached(probe, new Relation[] {build});
+	}
+
+	/**
+	 * @param list	a list of integers
+	 * @return the integers as an array
+	 */
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * This inner class holds one dimension of a star join: a hash table over the
+	 * dimension's tuples, keyed by the attributes it shares with the tuples joined before it
+	 */
+	private static class StarDimension {
+		private final int[] rowKey;		/* positions of the key in the joined row */
+		private final int[] dimKey;		/* positions of the key in the dimension */
+		private final int[] dimRest;	/* positions of the dimension's other attributes */
+		private final int offset;		/* where the other attributes go in the joined row */
+		private final Map<Tuple, List<Tuple>> table = new HashMap<>();
+
+		public StarDimension(int[] rowKey, int[] dimKey, int[] dimRest, int offset) {
+			this.rowKey = rowKey;
+			this.dimKey = dimKey;
+			this.dimRest = dimRest;
+			this.offset = offset;
+		}
+
+		/**
+		 * Hashes every tuple of the dimension by its key
+		 * @param tuples	the dimension's tuples
+		 */
+		public void build(Collection<Tuple> tuples) {
+			for (Tuple t : tuples) {
+				Comparable[] key = new Comparable[this.dimKey.length];
+				for (int i = 0; i < key.length; i++) {
+					key[i] = t.get(this.dimKey[i]);
+				}
+				this.table.computeIfAbsent(new Tuple(key, null), k -> new ArrayList<>(1)).add(t);
+			}
+		}
+	}
+
+	/**
+	 * Removes duplicate tuples from a relation, producing a set. Deduplicates in memory
+	 * with a hash set unless the relation holds more tuples than the spill threshold, in
+	 * which case the tuples are hash partitioned to disk and each partition is deduplicated
+	 * in turn.
+	 * @param r	the relation
+	 * @return a relation holding each distinct tuple of r once
+	 * @throws DBException if spilling to disk fails
+	 */
+	@Override
+	public Relation distinct(Relation r) throws DBException {
+		return this.cached(cacheKey("distinct", r), () -> this.distinctUncached(r));
+	}
+
+	/**
+	 * Removes duplicate tuples from a relation, bypassing the result cache
+	 * @param r	the relation
+	 * @return a relation holding each distinct tuple of r once
+	 * @throws DBException if spilling to disk fails
+	 */
+	private Relation distinctUncached(Relation r) throws DBException {
+		OperatorMetrics metrics = this.begin("distinct", r);
+		if (!r.isBag()) {
+			return this.end(metrics, r.shallowCopy());		// already a set
+		}
+
+		Relation result = new Relation();
+		result.useListStorage();	// duplicates are removed below, before tuples are added
+		result.setAttributes(r.copyAttributes());
+
+		Collection<Tuple> all = r.getTuples();
+		if (all.size() <= this.spill_threshold) {
+			Set<Tuple> seen = new HashSet<>(all.size() * 2);
+			for (Tuple t : all) {
+				if (seen.add(t)) {
+					result.addDistinct(t);
+				}
+			}
+			metrics.addHashEntries(seen.size());
+		}
+		else {
+			// equal tuples hash to the same partition, so partitions can be deduplicated separately
+			int partitions = (int) Math.ceil((double) all.size() / this.spill_threshold) * 2;
+			try (TupleSpill spill = new TupleSpill(partitions)) {
+				QueryEvents.Spill event = new QueryEvents.Spill();
+				event.begin();
+				for (Tuple t : all) {
+					spill.write(t);
+				}
+				if (event.shouldCommit()) {
+					event.record("distinct", nameOf(r), partitions, spill.getSpilledTuples());
+				}
+				for (int p = 0; p < partitions; p++) {
+					Set<Tuple> seen = new HashSet<>();
+					for (Tuple t : spill.readPartition(p, result)) {
+						if (seen.add(t)) {
+							result.addDistinct(t);
+						}
+					}
+					metrics.addHashEntries(seen.size());
+				}
+				metrics.addSpilled(spill.getSpilledTuples());
+			} catch (IOException e) {
+				throw new DBException("Distinct: could not spill to disk: " + e.getMessage());
+			}
+		}
+
+		return this.end(metrics, result);
+	}
+
+	/**
+	 * Performs a semi-join: the tuples of r1 that match at least one tuple of r2
+	 * on their common attributes.
+	 * @param r1	relation whose tuples are returned
+	 * @param r2	relation that r1's tuples must match
+	 * @return a relation with r1's attributes containing the matching tuples of r1
+	 * @throws DBException if a common attribute is ambiguous
+	 */
+	@Override
+	public Relation semiJoin(Relation r1, Relation r2) throws DBException {
+		return this.cached(cacheKey("semiJoin", r1, r2), () -> this.filterJoin(r1, r2, false));
+	}
+
+	/**
+	 * Performs an anti-join: the tuples of r1 that match no tuple of r2
+	 * on their common attributes.
+	 * @param r1	relation whose tuples are returned
+	 * @param r2	relation that r1's tuples must not match
+	 * @return a relation with r1's attributes containing the unmatched tuples of r1
+	 * @throws DBException if a common attribute is ambiguous
+	 */
+	@Override
+	public Relation antiJoin(Relation r1, Relation r2) throws DBException {
+		return this.cached(cacheKey("antiJoin", r1, r2), () -> this.filterJoin(r1, r2, true));
+	}
+
+	/**
+	 * Keeps the tuples of r1 that do (semi-join) or do not (anti-join) match a tuple of r2.
+	 * Only r2's join keys are hashed; r1 is streamed past them and its matching tuples are
+	 * kept as they are, without being copied or concatenated.
+	 * @param r1	relation whose tuples are returned
+	 * @param r2	relation to match against
+	 * @param anti	true to keep unmatched tuples, false to keep matched ones
+	 * @return a relation with r1's attributes containing the kept tuples of r1
+	 * @throws DBException if a common attribute is ambiguous
+	 */
+	private Relation filterJoin(Relation r1, Relation r2, boolean anti) throws DBException {
+		OperatorMetrics metrics = this.begin(anti ? "antiJoin" : "semiJoin", r1, r2);
+
+		Relation result = new Relation();
+		result.bag = r1.isBag();
+		result.useListStorage();	// a subset of r1 cannot contain new duplicates
+		result.setAttributes(r1.copyAttributes());
+
+		// determine common attributes and their positions in each relation
+		Set<Attribute> common = new HashSet<>(r1.getAttributes());
+		common.retainAll(r2.getAttributes());
+		int[] r1Key = new int[common.size()];
+		int[] r2Key = new int[common.size()];
 		int p = 0;
-		for (Attribute a: common) {
-			groups[p] = a.getName();
+		for (Attribute a : common) {
+			r1Key[p] = r1.lookup(a.getName());
+			r2Key[p] = r2.lookup(a.getName());
 			p++;
 		}
 
-		//check if relation is sorted and if not mergesort
-		ArrayList <Tuple> r1Tup = isSorted(r1,groups);
-		ArrayList <Tuple> r2Tup = isSorted(r2,groups);	
+		// hash r2's distinct keys; a key is a projection of the tuple, so no values are copied
+		String op = anti ? "antiJoin" : "semiJoin";
+		QueryEvents.JoinBuild build_event = new QueryEvents.JoinBuild();
+		build_event.begin();
+		Set<Tuple> keys = new HashSet<>();
+		for (Tuple t : r2.getTuples()) {
+			keys.add(new ProjectedTuple(t, r2Key, null));
+		}
+		metrics.addHashEntries(keys.size());
+		if (build_event.shouldCommit()) {
+			build_event.record(op, nameOf(r2), r2.getTuples().size(), keys.size());
+		}
 
-		//set counters
-		int i = 0, j = 0;
-		while (i < r1Tup.size() && j < r2Tup.size()) {
-			// Match found, enter merge phase
-			Comparable r1Val = r1Tup.get(i).valueOf(groups[0]);
-			Comparable r2Val = r2Tup.get(j).valueOf(groups[0]);
+		// stream r1 past the keys
+		QueryEvents.JoinProbe probe_event = new QueryEvents.JoinProbe();
+		probe_event.begin();
+		for (Tuple t : r1.getTuples()) {
+			if (keys.contains(new ProjectedTuple(t, r1Key, null)) != anti) {
+				result.addDistinct(t);
+			}
+		}
+		if (probe_event.shouldCommit()) {
+			probe_event.record(op, nameOf(r1), r1.getTuples().size(), result.getTuples().size());
+		}
 
-			if (r1Tup.get(i).valueOf(groups[0]).equals(r2Tup.get(j).valueOf(groups[0]))) {
-				while (r1Tup.get(i).valueOf(groups[0]).equals(r2Tup.get(j).valueOf(groups[0])) && i < r1Tup.size()) {
-					int k = j;
+		return this.end(metrics, result);
+	}
 
-					while (r1Tup.get(i).valueOf(groups[0]).equals(r2Tup.get(k).valueOf(groups[0])) && k < r2Tup.size()) {	
+	/**
+	 * Sorts a relation. The result stores its tuples in sorted order, so iterating over
+	 * them (and printing the relation) follows that order.
+	 * @param r	the relation to sort
+	 * @param attrs	names of the attributes to sort by, most significant first
+	 * @param directions	direction for each attribute, or null to sort all ascending
+	 * @return a relation with r's attributes and tuples, in sorted order
+	 * @throws DBException if an attribute is unknown or ambiguous, or directions has the wrong length
+	 */
+	public Relation orderBy(Relation r, String[] attrs, Order[] directions) throws DBException {
+		return this.cached(cacheKey("orderBy", r) + Arrays.toString(attrs) + Arrays.toString(directions),
+				() -> this.sorted(r, attrs, directions, -1));
+	}
 
-						//get mapped value
-						List<Comparable> data = new ArrayList<Comparable>();
-						data.addAll(r1Tup.get(i).data);			
+	/**
+	 * Finds the n tuples with the largest values of the given attributes, largest first;
+	 * e.g., the top 10 customers by creditLimit.
+	 * @param r	the relation
+	 * @param attrs	names of the attributes to rank by, most significant first
+	 * @param n	number of tuples to keep
+	 * @return a relation with r's attributes holding at most n tuples, in ranked order
+	 * @throws DBException if an attribute is unknown or ambiguous
+	 */
+	public Relation topN(Relation r, String[] attrs, int n) throws DBException {
+		Order[] directions = new Order[attrs.length];
+		Arrays.fill(directions, Order.DESC);
+		return this.topN(r, attrs, directions, n);
+	}
 
-						//subtract common attribute out of r
-						List<Attribute> r2Atts = new ArrayList<Attribute>();
-						r2Atts.addAll(r2.attribute_list);
-						r2Atts.removeAll(common);
+	/**
+	 * Finds the first n tuples of a relation in the given order, keeping only n tuples in
+	 * memory at a time: O(|r| log n) time rather than sorting the whole relation.
+	 * @param r	the relation
+	 * @param attrs	names of the attributes to sort by, most significant first
+	 * @param directions	direction for each attribute, or null to sort all ascending
+	 * @param n	number of tuples to keep
+	 * @return a relation with r's attributes holding at most n tuples, in sorted order
+	 * @throws DBException if an attribute is unknown or ambiguous, or directions has the wrong length
+	 */
+	public Relation topN(Relation r, String[] attrs, Order[] directions, int n) throws DBException {
+		return this.cached(cacheKey("topN", r) + Arrays.toString(attrs) + Arrays.toString(directions) + n,
+				() -> this.sorted(r, attrs, directions, Math.max(n, 0)));
+	}
+
+	/**
+	 * Sorts a relation, or keeps only its first n tuples in sorted order
+	 * @param r	the relation
+	 * @param attrs	names of the attributes to sort by, most significant first
+	 * @param directions	direction for each attribute, or null to sort all ascending
+	 * @param n	number of tuples to keep, or -1 to keep them all
+	 * @return a relation with r's attributes and (the first n of) its tuples, in sorted order
+	 * @throws DBException if an attribute is unknown or ambiguous, or directions has the wrong length
+	 */
+	private Relation sorted(Relation r, String[] attrs, Order[] directions, int n) throws DBException {
+		if (directions != null && directions.length != attrs.length) {
+			throw new DBException("Order by: " + attrs.length + " attributes but " +
+					directions.length + " directions");
+		}
+
+		OperatorMetrics metrics = this.begin((n < 0) ? "orderBy" : "topN", r);
+		QueryEvents.Sort event = new QueryEvents.Sort();
+		event.begin();
+
+		OrderComparator cmp = new OrderComparator(r, attrs, directions);
+		List<Tuple> list;
+		if (n < 0) {
+			list = new ArrayList<>(r.getTuples());
+			list.sort(cmp);
+		}
+		else {
+			// bounded heap with the worst of the best n so far on top
+			// sized by what r can fill, as n may be far larger (even Integer.MAX_VALUE)
+			PriorityQueue<Tuple> heap = new PriorityQueue<>(Math.min(n, r.getTuples().size()) + 1, cmp.reversed());
+			for (Tuple t : r.getTuples()) {
+				if (heap.size() < n) {
+					heap.add(t);
+				}
+				else if (n > 0 && cmp.compare(t, heap.peek()) < 0) {
+					heap.poll();
+					heap.add(t);
+				}
+			}
+			list = new ArrayList<>(heap);
+			list.sort(cmp);
+		}
+		if (event.shouldCommit()) {
+			event.record(nameOf(r), Arrays.toString(attrs), r.getTuples().size(), n);
+		}
+
+		// a list keeps the sorted order; sorting cannot introduce duplicates
+		Relation result = new Relation();
+		result.bag = r.isBag();
+		result.useListStorage();
+		result.setAttributes(r.copyAttributes());
+		result.addAllDistinct(list);
+
+		return this.end(metrics, result);
+	}
+
+	/**
+	 * @return maximum number of tuples distinct() deduplicates in memory
+	 */
+	public int getSpillThreshold() {
+		return this.spill_threshold;
+	}
+
+	/**
+	 * Sets the number of tuples above which distinct() spills to disk
+	 * @param threshold	maximum number of tuples to deduplicate in memory
+	 */
+	public void setSpillThreshold(int threshold) {
+		this.spill_threshold = threshold;
+	}
+
+	/**
+	 * @return number of candidate tuples at or above which select() tests them in parallel
+	 */
+	public int getParallelSelectThreshold() {
+		return this.select_threshold;
+	}
+
+	/**
+	 * Sets the number of candidate tuples at or above which select() tests them in parallel;
+	 * below it, handing out morsels costs more than testing the tuples on one thread
+	 * @param threshold	minimum number of candidate tuples
+	 */
+	public void setParallelSelectThreshold(int threshold) {
+		this.select_threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * @return the elapsed time (in milliseconds) since last reset: the wall time of every
+	 * 			outermost operator call, so operators called by other operators are counted once
+	 * 			(see: getLastMetrics for the breakdown)
+	 */
+	@Override
+	public double getElapsedTime() {
+		return time.sum()/1000000.0;
+	}
+
+	/**
+	 * Resets the elapsed time to zero.
+	 */
+	@Override
+	public void resetElapsedTime() {
+		time.reset();
+	}
+
+	/**
+	 * @return metrics of the calling thread's most recent outermost operator call (or
+	 * 			explainAnalyze query), as a tree of the operators it ran; null if nothing has run yet
+	 */
+	public OperatorMetrics getLastMetrics() {
+		return this.session().last_metrics;
+	}
+
+	/**
+	 * Runs a query and reports what each of its operators cost, e.g.
+	 * explainAnalyze(() -> db.select(db.naturalJoin(customers, payments), "amount > 1000")).
+	 * The operators the query calls, and those they call in turn, form a tree: an operator's
+	 * children are the operators that produced its inputs or ran on its behalf.
+	 * @param query	calls the operators of the query
+	 * @return the tree, one operator per line, with wall time, tuples in and out, bytes
+	 * 			allocated, and hash table entries and spilled tuples where there were any
+	 * @throws DBException if the query fails
+	 */
+	public String explainAnalyze(Supplier<Relation> query) throws DBException {
+		int depth = this.session().running.size();
+		OperatorMetrics metrics = this.begin("query");
+		try {
+			this.end(metrics, query.get());
+		} finally {
+			this.unwind(depth);		// only needed if the query failed
+		}
+		return metrics.toString();
+	}
+
+	/**
+	 * Starts measuring an operator call. If another operator is running, the call becomes its
+	 * child, and adopts the earlier children that produced its inputs, so that the tree follows
+	 * the flow of data as well as the nesting of calls.
+	 * @param op	name of the operator
+	 * @param inputs	the operator's inputs
+	 * @return the call's metrics, to pass to end()
+	 */
+	private OperatorMetrics begin(String op, Relation... inputs) {
+		long rows_in = 0;
+		StringBuilder names = new StringBuilder();
+		for (Relation r : inputs) {
+			rows_in += r.getTuples().size();
+			if (names.length() > 0) {
+				names.append(", ");
+			}
+			names.append(nameOf(r));
+		}
+		OperatorMetrics metrics = new OperatorMetrics(op, names.toString(), rows_in);
+		Session session = this.session();
+		OperatorMetrics parent = session.running.peek();
+		if (parent != null) {
+			for (Relation r : inputs) {
+				OperatorMetrics producer = session.producers.remove(r);
+				if (producer != null && parent.removeChild(producer)) {
+					metrics.adoptChild(producer);
+				}
+			}
+			parent.addChild(metrics);
+		}
+		session.running.push(metrics);
+		metrics.start();
+		return metrics;
+	}
+
+	/**
+	 * Stops measuring an operator call. The wall time of an outermost call is added to the
+	 * elapsed time, and its metrics become the last metrics.
+	 * @param metrics	the call's metrics, from begin()
+	 * @param result	the call's result
+	 * @return result
+	 */
+	private Relation end(OperatorMetrics metrics, Relation result) {
+		metrics.stop((result == null) ? 0 : result.getTuples().size());
+		Session session = this.session();
+		while (!session.running.isEmpty() && session.running.pop() != metrics) {
+			// drop calls that failed without ending
+		}
+		if (session.running.isEmpty()) {
+			session.producers.clear();
+			session.last_metrics = metrics;
+			time.add(metrics.getWallNanos());
+		}
+		else if (result != null) {
+			session.producers.put(result, metrics);
+		}
+		return result;
+	}
+
+	/**
+	 * @param r	a relation
+	 * @return r's name, or #id for an unnamed (intermediate) relation
+	 */
+	static String nameOf(Relation r) {
+		return (r.getName() == null) ? "#" + r.getId() : r.getName();
+	}
+
+	/**
+	 * Forgets the operator calls that began beyond the given nesting depth but never ended
+	 * because they failed
+	 * @param depth	number of operator calls running before the failed call began
+	 */
+	private void unwind(int depth) {
+		Session session = this.session();
+		while (session.running.size() > depth) {
+			session.running.pop();
+		}
+		if (session.running.isEmpty()) {
+			session.producers.clear();
+		}
+	}
+
+	/**
+	 * @return metrics of the innermost running operator call, or null if none is running
+	 */
+	OperatorMetrics currentMetrics() {
+		return this.session().running.peek();
+	}
+
+	/**
+	 * @return the calling thread's operator call state
+	 */
+	private Session session() {
+		return this.sessions.get();
+	}
+
+	/**
+	 * @return the query result cache, for inspecting its hit rate and size
+	 */
+	public ResultCache<String, CachedResult> getResultCache() {
+		return this.cache;
+	}
 
-						for (Attribute a : r2Atts) {			
-							data.add(r2Tup.get(k).valueOf(a.getName()));
+	/**
+	 * Turns the query result cache on or off. Turning it off also empties it.
+	 * @param enabled	whether results should be cached
+	 */
+	public void setResultCacheEnabled(boolean enabled) {
+		this.cache_enabled = enabled;
+		if (!enabled) {
+			this.cache.clear();
+		}
+	}
+
+	/**
+	 * Returns a cached result for the given operator call if one exists and neither the inputs
+	 * nor the result have changed since; otherwise computes and caches the result.
+	 * Calls nested inside another cached operator are neither looked up nor cached.
+	 * @param key		canonical form of the operator call, including its inputs' versions
+	 * @param operator	computes the result
+	 * @return the result of the operator call
+	 */
+	private Relation cached(String key, Supplier<Relation> operator) {
+		Session session = this.session();
+		boolean outermost = this.cache_enabled && session.cache_depth == 0;
+		if (outermost) {
+			CachedResult hit = this.cache.get(key);
+			if (hit != null) {
+				if (hit.relation.getVersion() == hit.version) {
+					OperatorMetrics metrics = this.begin(key.substring(0, key.indexOf('(')));
+					metrics.setCacheHit();
+					return this.end(metrics, hit.relation);
+				}
+				this.cache.invalidate(key);		// result was modified after being returned
+			}
+		}
+
+		Relation result;
+		int depth = session.running.size();
+		session.cache_depth++;
+		try {
+			result = operator.get();
+		} finally {
+			session.cache_depth--;
+			this.unwind(depth);		// only needed if the operator failed
+		}
+
+		if (outermost && result != null) {
+			this.cache.put(key, new CachedResult(result));
+		}
+		return result;
+	}
+
+	/**
+	 * Builds the canonical form of an operator call. Relations are identified by id and version
+	 * so that any change to an input produces a different key.
+	 * @param op	name of the operator
+	 * @param inputs	input relations
+	 * @return key of the form op(#id@version,...)
+	 */
+	private static String cacheKey(String op, Relation... inputs) {
+		StringBuilder sb = new StringBuilder(op).append("(");
+		for (int i = 0; i < inputs.length; i++) {
+			if (i > 0) {
+				sb.append(",");
+			}
+			sb.append("#").append(inputs[i].getId()).append("@").append(inputs[i].getVersion());
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Roughly estimates the memory held by a relation: a tuple object and its value list,
+	 * plus a reference and a boxed value per attribute.
+	 * @param r	a relation
+	 * @return estimated size in bytes
+	 */
+	private static long estimateBytes(Relation r) {
+		return 64 + (long) r.getTuples().size() * (48 + 24L * r.getAttributes().size());
+	}
+
+	/**
+	 * The operator calls running on one thread. Each thread that uses the database has its
+	 * own, so that concurrent queries neither share metrics trees nor see each other's nesting.
+	 */
+	private static class Session {
+		private int cache_depth;	/* nesting depth of cached operators; only the outermost call is cached */
+		private final Deque<OperatorMetrics> running = new ArrayDeque<>();		/* innermost first */
+		private final Map<Relation, OperatorMetrics> producers = new IdentityHashMap<>();	/* which running operator's child produced each result */
+		private OperatorMetrics last_metrics;
+		private int parallelism;	/* the running query's own thread limit, or 0 for the database's */
+	}
+
+	/**
+	 * A cached result, along with its version at the time it was cached
+	 */
+	protected static class CachedResult {
+		private final Relation relation;
+		private final long version;
+
+		public CachedResult(Relation relation) {
+			this.relation = relation;
+			this.version = relation.getVersion();
+		}
+	}
+
+
+	/**
+	 * (Hwk 6 addition)
+	 * Performs a natural join between two relations using the sort-merge algorithm.
+	 * @param r1	first relation
+	 * @param r2	second relation
+	 * @return a reference to a relation containing the joined data
+	 * @pre the common attributes in r1 must be unique
+	 */
+	public Relation sortJoin(Relation r1, Relation r2){
+		return this.cached(cacheKey("sortJoin", r1, r2), () -> this.sortJoinUncached(r1, r2));
+	}
+
+	/**
+	 * Performs a sort-merge join between two relations, bypassing the result cache
+	 * @param r1	first relation
+	 * @param r2	second relation
+	 * @return a reference to a relation containing the joined data
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Relation sortJoinUncached(Relation r1, Relation r2){
+		OperatorMetrics metrics = this.begin("sortJoin", r1, r2);
+
+		//check for common attribute
+		Set<Attribute> common = new HashSet<>(r1.getAttributes());
+		common.retainAll(r2.getAttributes());
+		if (common.size() == 0) {	// no common attributes, natural join reduces to product
+			return this.end(metrics, times(r1,r2));
+		}
+
+		//create and set up new relation; each matching pair is a distinct tuple
+		Relation T = new Relation();	
+		T.bag = r1.isBag() || r2.isBag();
+		T.useListStorage();
+		//create attribute list for join
+		List<Attribute> newAtts = new ArrayList<Attribute>();
+
+		//add copies of all attrs from rel 1 (the inputs' own attributes are left untouched)
+		for (Attribute a: r1.attribute_list){
+			newAtts.add(new Attribute(T, a.getType(), a.getName()));
+		}
+		//add non duped attrs from rel 2, remembering where they are in r2
+		List<Integer> r2Rest = new ArrayList<Integer>();
+		for (int pos = 0; pos < r2.attribute_list.size(); pos++){
+			Attribute a = r2.attribute_list.get(pos);
+			if (!common.contains(a)){
+				newAtts.add(new Attribute(T, a.getType(), a.getName()));
+				r2Rest.add(pos);
+			}
+		}
+
+		T.setAttributes(newAtts);
+
+
+		//make common attrs into string format for sort method, in r1's order (see: JoinPlanner)
+		String[] groups = new String[common.size()];
+		int p = 0;
+		for (Attribute a: r1.attribute_list) {
+			if (common.contains(a)) {
+				groups[p] = a.getName();
+				p++;
+			}
+		}
+		//positions of the common attrs in each relation, in sort order
+		int[] r1Key = new int[groups.length];
+		int[] r2Key = new int[groups.length];
+		for (p = 0; p < groups.length; p++) {
+			r1Key[p] = r1.lookup(groups[p]);
+			r2Key[p] = r2.lookup(groups[p]);
+		}
+
+		// screen r2 with a Bloom filter over r1's keys, so that tuples without a partner are never sorted
+		Collection<Tuple> r2Candidates = r2.getTuples();
+		BloomFilter filter = this.buildRuntimeFilter(r1.getTuples(), r1Key);
+		if (filter != null) {
+			RuntimeFilterStats stats = this.newRuntimeFilterStats("sortJoin", r1, r2, r1.getTuples().size());
+			r2Candidates = new ArrayList<>();
+			for (Tuple t : r2.getTuples()) {
+				boolean passed = filter.mightContain(t.keyHash(r2Key));
+				stats.record(passed);
+				if (passed) {
+					r2Candidates.add(t);
+				}
+			}
+		}
+
+		//check if relation is sorted and if not mergesort
+		ArrayList <Tuple> r1Tup = isSorted(r1,r1.getTuples(),groups);
+		ArrayList <Tuple> r2Tup = isSorted(r2,r2Candidates,groups);	
+
+		//set counters
+		QueryEvents.JoinProbe probe_event = new QueryEvents.JoinProbe();
+		probe_event.begin();
+		int i = 0, j = 0;
+		while (i < r1Tup.size() && j < r2Tup.size()) {
+			int cmp = compareKeys(r1Tup.get(i), r1Key, r2Tup.get(j), r2Key);
+			if (cmp < 0) {
+				i++;
+			}
+			else if (cmp > 0) {
+				j++;
+			}
+			else {
+				// Match found, enter merge phase: find the run of r2 tuples with this key
+				int end = j;
+				while (end < r2Tup.size() && compareKeys(r1Tup.get(i), r1Key, r2Tup.get(end), r2Key) == 0) {
+					end++;
+				}
+				// join every r1 tuple with this key to the whole run
+				while (i < r1Tup.size() && compareKeys(r1Tup.get(i), r1Key, r2Tup.get(j), r2Key) == 0) {
+					Tuple left = r1Tup.get(i);
+					for (int k = j; k < end; k++) {
+						Comparable[] data = new Comparable[left.size() + r2Rest.size()];
+						for (int c = 0; c < left.size(); c++) {
+							data[c] = left.get(c);
+						}
+						//subtract common attribute out of r
+						for (int c = 0; c < r2Rest.size(); c++) {
+							data[left.size() + c] = r2Tup.get(k).get(r2Rest.get(c));
 						}
 						//add tuple to relation
-						T.addTuple(new Tuple(data,T));
-						k++;
-						if (k >= r2Tup.size()) break;
+						T.addDistinct(new Tuple(data,T));
 					}
 					i++;
-					if (i >= r1Tup.size()) break;
 				}
-			}
-			else if (r1Val.compareTo(r2Val) < 0) {
-				i++;
-			} else {
-				j++;
+				j = end;
 			}
 		}
-		double endTime = System.nanoTime();
+		if (probe_event.shouldCommit()) {
+			probe_event.record("sortJoin", nameOf(r2), r1Tup.size() + r2Tup.size(), T.getTuples().size());
+		}
+		return this.end(metrics, T);
+	}
 
-		//add time
-		time += (endTime - startTime);
-		return T;
+
+
+
+
+	/**
+	 * Builds a Bloom filter over the join keys of a join's build side
+	 * @param build	tuples of the build side
+	 * @param key	positions of the join attributes in the build side
+	 * @return the filter, or null if runtime filters are turned off
+	 */
+	private BloomFilter buildRuntimeFilter(Collection<Tuple> build, int[] key) {
+		if (!this.runtime_filters_enabled) {
+			return null;
+		}
+		BloomFilter filter = new BloomFilter(build.size(), RUNTIME_FILTER_BITS_PER_KEY);
+		for (Tuple t : build) {
+			filter.add(t.keyHash(key));
+		}
+		return filter;
 	}
 
+	/**
+	 * Starts recording a runtime filter's rejections for one join
+	 * @param op	name of the join operator
+	 * @param build	build-side relation
+	 * @param probe	probe-side relation
+	 * @param build_keys	number of keys in the filter
+	 * @return the (recorded) stats
+	 */
+	private RuntimeFilterStats newRuntimeFilterStats(String op, Relation build, Relation probe, long build_keys) {
+		RuntimeFilterStats stats = new RuntimeFilterStats(op + "(" + nameOf(build) + ", " + nameOf(probe) + ")",
+				build_keys);
+		synchronized (this.runtime_filter_stats) {
+			if (this.runtime_filter_stats.size() == RUNTIME_FILTER_STATS_KEPT) {
+				this.runtime_filter_stats.removeFirst();
+			}
+			this.runtime_filter_stats.addLast(stats);
+		}
+		return stats;
+	}
 
+	/**
+	 * @return rejection stats of the runtime filter of each join run since the last clear, in
+	 * 			order, up to the last RUNTIME_FILTER_STATS_KEPT of them (a copy, as other threads
+	 * 			may be adding to them)
+	 */
+	public List<RuntimeFilterStats> getRuntimeFilterStats() {
+		synchronized (this.runtime_filter_stats) {
+			return Collections.unmodifiableList(new ArrayList<>(this.runtime_filter_stats));
+		}
+	}
 
+	/**
+	 * Forgets the runtime filter stats recorded so far
+	 */
+	public void clearRuntimeFilterStats() {
+		synchronized (this.runtime_filter_stats) {
+			this.runtime_filter_stats.clear();
+		}
+	}
 
+	/**
+	 * Turns Bloom-filter screening of the probe side of hash and sort-merge joins on or off
+	 * @param enabled	whether joins should build runtime filters
+	 */
+	public void setRuntimeFiltersEnabled(boolean enabled) {
+		this.runtime_filters_enabled = enabled;
+	}
+
+	/**
+	 * Compares the join keys of two tuples, attribute by attribute
+	 * @param t1	a tuple
+	 * @param key1	positions of the key attributes in t1
+	 * @param t2	another tuple
+	 * @param key2	positions of the same key attributes in t2
+	 * @return negative, zero or positive as t1's key orders before, equal to or after t2's
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compareKeys(Tuple t1, int[] key1, Tuple t2, int[] key2) {
+		for (int i = 0; i < key1.length; i++) {
+			int cmp = t1.get(key1[i]).compareTo(t2.get(key2[i]));
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
 
 	//check if array is sorted on the group and sorts if not
-	private ArrayList<Tuple> isSorted(Relation r, String[] groups) {
+	private ArrayList<Tuple> isSorted(Relation r, Collection<Tuple> tuples, String[] groups) {
 		// sort tuples by g1, g2, g3, ...
-		ArrayList<Tuple> tups = new ArrayList<>(r.getTuples());
+		ArrayList<Tuple> tups = new ArrayList<>(tuples);
 		ArrayList<Tuple> group;
 		Boolean sorted = true;
 
@@ -1038,7 +3039,7 @@ public class DavidDB extends AbstractDB implements Timeable{
 			GroupComparator grp_cmp = new GroupComparator(r, groups);
 
 			//loop through array to make sure everything is in order
-			for (int i=0; i<tups.size()-2; i++) {
+			for (int i=0; i<tups.size()-1; i++) {
 				Tuple t1 = tups.get(i);
 				Tuple t2 = tups.get(i+1);
 
@@ -1052,7 +3053,12 @@ public class DavidDB extends AbstractDB implements Timeable{
 			if (sorted == true) {
 				return tups;
 			}	
+			QueryEvents.Sort event = new QueryEvents.Sort();
+			event.begin();
 			Collections.sort(tups, grp_cmp);
+			if (event.shouldCommit()) {
+				event.record(nameOf(r), Arrays.toString(groups), tups.size(), -1);
+			}
 		}
 		return tups;
 
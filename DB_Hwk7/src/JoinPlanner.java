@@ -0,0 +1,461 @@
+import exceptions.DBException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the order in which to natural join a number of relations. Join orders are
+ * enumerated by dynamic programming over the connected subsets of the join graph (relations
+ * are connected if they share an attribute), so cartesian products are only considered
+ * between relations that share nothing at all. Each join is costed with estimated
+ * cardinalities, computed from the relations' sizes and the number of distinct values of
+ * their attributes, which are counted once per version of each relation. Each step is either a hash join, building over its smaller input, or a
+ * sort-merge join, whichever is cheaper: merging wins when both inputs are already sorted on
+ * the shared attributes (or are tiny), as then neither needs hashing nor sorting. Beyond
+ * DP_LIMIT relations, a greedy heuristic repeatedly joins the pair of plans with the smallest
+ * estimated result instead.
+ */
+public class JoinPlanner {
+	/* most relations planned by dynamic programming; the work grows as 3^n */
+	public static final int DP_LIMIT = 12;
+
+	/* cost of building a hash table entry, relative to probing it */
+	public static final double BUILD_WEIGHT = 2.0;
+
+	/* cost of sorting n tuples is SORT_WEIGHT * n * log2(n), relative to reading them */
+	public static final double SORT_WEIGHT = 1.0;
+
+	/* distinct values of each relation's attributes, until it changes; dropped with the relation */
+	private static final Map<Relation, Statistics> statistics = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final Relation[] inputs;
+	private final Plan[] scans;
+
+	/**
+	 * Gathers the statistics used to plan a join of the given relations
+	 * @param inputs	the relations to join
+	 * @throws DBException if no relations are given
+	 */
+	public JoinPlanner(Relation... inputs) throws DBException {
+		if (inputs.length == 0) {
+			throw new DBException("Nothing to join");
+		}
+		this.inputs = inputs;
+		this.scans = new Plan[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			this.scans[i] = new Plan(i, inputs[i]);
+		}
+	}
+
+	/**
+	 * @param r	a relation
+	 * @return the distinct values of its attributes, counted again only if it has changed
+	 */
+	private static Statistics statisticsOf(Relation r) {
+		long version = r.getVersion();		// before reading the tuples, so a concurrent write forces a recount
+		Statistics stats = statistics.get(r);
+		if (stats == null || stats.version != version) {
+			stats = new Statistics(r, version);
+			statistics.put(r, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the cheapest plan found for joining every input
+	 */
+	public Plan plan() {
+		return (this.inputs.length <= DP_LIMIT) ? this.dynamicPlan() : this.greedyPlan(new ArrayList<>(List.of(this.scans)));
+	}
+
+	/**
+	 * Finds the cheapest plan for every connected subset of the inputs, smallest subsets
+	 * first, by trying every split of the subset into two connected, joinable halves
+	 * @return the cheapest plan for joining every input
+	 */
+	private Plan dynamicPlan() {
+		int n = this.inputs.length;
+		Plan[] best = new Plan[1 << n];
+		for (int i = 0; i < n; i++) {
+			best[1 << i] = this.scans[i];
+		}
+		for (int mask = 1; mask < (1 << n); mask++) {
+			if (Integer.bitCount(mask) < 2) {
+				continue;
+			}
+			int low = mask & -mask;
+			// every split of mask into two halves, counting each split once (the half with mask's lowest bit first)
+			for (int left = (mask - 1) & mask; left > 0; left = (left - 1) & mask) {
+				int right = mask ^ left;
+				if ((left & low) == 0 || best[left] == null || best[right] == null ||
+						!best[left].sharesWith(best[right])) {
+					continue;
+				}
+				Plan candidate = Plan.join(best[left], best[right]);
+				if (best[mask] == null || candidate.cost < best[mask].cost) {
+					best[mask] = candidate;
+				}
+			}
+		}
+		if (best[(1 << n) - 1] != null) {
+			return best[(1 << n) - 1];
+		}
+
+		// the join graph is disconnected: plan each connected component, then take their product
+		List<Plan> components = new ArrayList<>();
+		int remaining = (1 << n) - 1;
+		while (remaining != 0) {
+			int component = 0;
+			for (int mask = remaining; mask > 0; mask = (mask - 1) & remaining) {
+				if (best[mask] != null && Integer.bitCount(mask) > Integer.bitCount(component)) {
+					component = mask;
+				}
+			}
+			components.add(best[component]);
+			remaining &= ~component;
+		}
+		return this.greedyPlan(components);
+	}
+
+	/**
+	 * Repeatedly joins the two plans whose join has the smallest estimated result, preferring
+	 * pairs that share attributes over cartesian products
+	 * @param plans	plans to join; emptied
+	 * @return a plan for joining all of them
+	 */
+	private Plan greedyPlan(List<Plan> plans) {
+		while (plans.size() > 1) {
+			Plan best = null;
+			int best_i = -1;
+			int best_j = -1;
+			for (int i = 0; i < plans.size(); i++) {
+				for (int j = i + 1; j < plans.size(); j++) {
+					Plan candidate = Plan.join(plans.get(i), plans.get(j));
+					boolean shares = plans.get(i).sharesWith(plans.get(j));
+					boolean best_shares = best != null && best.left.sharesWith(best.right);
+					if (best == null || (shares && !best_shares) ||
+							(shares == best_shares && candidate.rows < best.rows)) {
+						best = candidate;
+						best_i = i;
+						best_j = j;
+					}
+				}
+			}
+			plans.remove(best_j);	// j > i, so remove it first
+			plans.remove(best_i);
+			plans.add(best);
+		}
+		return plans.get(0);
+	}
+
+	/**
+	 * A plan for joining some of the inputs: either a scan of one input, or a join of two
+	 * plans. A hash join builds its hash table over the right (smaller) plan and streams the
+	 * left plan past it; a sort-merge join sorts whichever of the two is not already sorted on
+	 * the shared attributes and merges them.
+	 */
+	public static class Plan {
+		private final int input;		/* index of the scanned input, or -1 for a join */
+		private final String name;
+		private final Relation relation;	/* the scanned input, or null for a join */
+		private final Plan left;		/* probe side */
+		private final Plan right;		/* build side */
+		private final boolean merge;	/* true for a sort-merge join, false for a hash join */
+		private final List<Attribute> key;		/* shared attributes, in the left plan's order */
+		private final double rows;		/* estimated number of tuples */
+		private final double cost;		/* estimated work: tuples read, hashed, sorted and produced */
+		private final List<Attribute> attributes;		/* attributes of the result, in order */
+		private final Map<Attribute, Double> distinct;	/* estimated distinct values per attribute */
+		private final Set<Attribute> nullable;	/* attributes that may hold nulls */
+		private final Statistics stats;	/* the scanned input's statistics, or null for a join */
+
+		/**
+		 * Creates a plan that scans an input, with the distinct values of each attribute
+		 * @param input	index of the input
+		 * @param r	the input
+		 */
+		private Plan(int input, Relation r) {
+			this.input = input;
+			this.name = (r.getName() == null) ? "#" + input : r.getName();
+			this.relation = r;
+			this.left = null;
+			this.right = null;
+			this.merge = false;
+			this.key = List.of();
+			this.rows = r.getTuples().size();
+			this.cost = 0;
+			this.attributes = new ArrayList<>(r.getAttributes());
+			this.distinct = new HashMap<>();
+			this.nullable = new HashSet<>();
+			Statistics stats = statisticsOf(r);
+			this.stats = stats;
+			for (int pos = 0; pos < this.attributes.size(); pos++) {
+				this.distinct.put(this.attributes.get(pos), stats.distinct[pos]);
+				if (stats.nullable[pos]) {
+					this.nullable.add(this.attributes.get(pos));
+				}
+			}
+		}
+
+		/**
+		 * Creates a plan that joins two plans
+		 * @param left	probe side
+		 * @param right	build side
+		 * @param merge	true for a sort-merge join, false for a hash join
+		 * @param key	attributes the plans share, in left's order
+		 * @param rows	estimated number of tuples produced
+		 * @param cost	estimated work done by the whole plan
+		 * @param distinct	estimated distinct values per attribute of the result
+		 */
+		private Plan(Plan left, Plan right, boolean merge, List<Attribute> key, double rows, double cost,
+				Map<Attribute, Double> distinct) {
+			this.input = -1;
+			this.name = null;
+			this.relation = null;
+			this.stats = null;
+			this.left = left;
+			this.right = right;
+			this.merge = merge;
+			this.key = key;
+			this.rows = rows;
+			this.cost = cost;
+			this.attributes = new ArrayList<>(left.attributes);
+			for (Attribute a : right.attributes) {
+				if (!key.contains(a)) {
+					this.attributes.add(a);
+				}
+			}
+			this.distinct = distinct;
+			this.nullable = new HashSet<>(left.nullable);
+			this.nullable.addAll(right.nullable);
+		}
+
+		/**
+		 * Plans the join of two plans, estimating its size as |A| * |B| divided, for each shared
+		 * attribute, by the larger number of distinct values on either side, and costing a hash
+		 * join against a sort-merge join. Sort-merge is only considered when the plans share
+		 * attributes and none of them may hold nulls, which cannot be ordered.
+		 * @param a	a plan
+		 * @param b	another plan
+		 * @return the cheaper way of joining them; a hash join builds over whichever is expected
+		 * 			to be smaller
+		 */
+		static Plan join(Plan a, Plan b) {
+			double rows = a.rows * b.rows;
+			Map<Attribute, Double> distinct = new HashMap<>(a.distinct);
+			for (Map.Entry<Attribute, Double> e : b.distinct.entrySet()) {
+				Double other = distinct.get(e.getKey());
+				if (other == null) {
+					distinct.put(e.getKey(), e.getValue());
+				}
+				else {
+					rows /= Math.max(1, Math.max(other, e.getValue()));
+					distinct.put(e.getKey(), Math.min(other, e.getValue()));
+				}
+			}
+			double cap = Math.max(rows, 1);
+			distinct.replaceAll((attr, count) -> Math.min(count, cap));
+
+			Plan left = (b.rows <= a.rows) ? a : b;
+			Plan right = (left == a) ? b : a;
+			List<Attribute> key = new ArrayList<>();
+			boolean mergeable = true;
+			for (Attribute attr : left.attributes) {
+				if (right.distinct.containsKey(attr)) {
+					key.add(attr);
+					mergeable &= !left.nullable.contains(attr) && !right.nullable.contains(attr);
+				}
+			}
+			double inputs = left.cost + right.cost;
+			double hash = inputs + left.rows + BUILD_WEIGHT * right.rows + rows;
+			if (mergeable && !key.isEmpty()) {
+				double merge = inputs + left.sortCost(key) + right.sortCost(key) + left.rows + right.rows + rows;
+				if (merge < hash) {
+					return new Plan(left, right, true, key, rows, merge, distinct);
+				}
+			}
+			return new Plan(left, right, false, key, rows, hash, distinct);
+		}
+
+		/**
+		 * @param order	attributes to sort on
+		 * @return estimated work to sort this plan's result on them, or 0 if it is already sorted
+		 */
+		private double sortCost(List<Attribute> order) {
+			if (this.isSortedOn(order)) {
+				return 0;
+			}
+			return SORT_WEIGHT * this.rows * (Math.log(Math.max(this.rows, 2)) / Math.log(2));
+		}
+
+		/**
+		 * A sort-merge join's result is sorted on its shared attributes, and so on any prefix of
+		 * them; a hash join's result is not known to be sorted; a scan is checked, once per order
+		 * and version of the input
+		 * @param order	attributes to sort on
+		 * @return true if this plan's result is known to be sorted on them
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean isSortedOn(List<Attribute> order) {
+			if (!this.isScan()) {
+				return this.merge && this.key.size() >= order.size() && this.key.subList(0, order.size()).equals(order);
+			}
+			return this.stats.sorted_on.computeIfAbsent(order, o -> {
+				int[] positions = new int[o.size()];
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = this.attributes.indexOf(o.get(i));
+				}
+				Tuple previous = null;
+				for (Tuple t : this.relation.getTuples()) {
+					if (previous != null) {
+						for (int pos : positions) {
+							int cmp = previous.get(pos).compareTo(t.get(pos));
+							if (cmp > 0) {
+								return false;
+							}
+							if (cmp < 0) {
+								break;
+							}
+						}
+					}
+					previous = t;
+				}
+				return true;
+			});
+		}
+
+		/**
+		 * @param other	another plan
+		 * @return true if the two plans' results have an attribute in common
+		 */
+		boolean sharesWith(Plan other) {
+			for (Attribute a : other.distinct.keySet()) {
+				if (this.distinct.containsKey(a)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if this plan scans a single input
+		 */
+		public boolean isScan() {
+			return this.input >= 0;
+		}
+
+		/**
+		 * @return index of the input this plan scans, or -1 if it is a join
+		 */
+		public int getInput() {
+			return this.input;
+		}
+
+		/**
+		 * @return true if this plan is a sort-merge join, false if it is a hash join or a scan
+		 */
+		public boolean isMergeJoin() {
+			return this.merge;
+		}
+
+		/**
+		 * @return the probe side of this join, or null for a scan
+		 */
+		public Plan getLeft() {
+			return this.left;
+		}
+
+		/**
+		 * @return the build side of this join, or null for a scan
+		 */
+		public Plan getRight() {
+			return this.right;
+		}
+
+		/**
+		 * @return estimated number of tuples produced
+		 */
+		public double getRows() {
+			return this.rows;
+		}
+
+		/**
+		 * @return estimated work done by the whole plan
+		 */
+		public double getCost() {
+			return this.cost;
+		}
+
+		/**
+		 * @return attributes of the plan's result
+		 */
+		public Collection<Attribute> getAttributes() {
+			return this.distinct.keySet();
+		}
+
+		/**
+		 * @return the plan as an indented tree, one operator per line
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			this.append(sb, "");
+			return sb.toString();
+		}
+
+		/**
+		 * @param sb	builder to append to
+		 * @param indent	indentation of this operator
+		 */
+		private void append(StringBuilder sb, String indent) {
+			if (this.isScan()) {
+				sb.append(String.format("%sScan %s (rows=%.0f)%n", indent, this.name, this.rows));
+			}
+			else {
+				sb.append(String.format("%s%s (rows=%.0f cost=%.0f)%n", indent, this.merge ? "SortJoin" : "HashJoin",
+						this.rows, this.cost));
+				this.left.append(sb, indent + "  ");
+				this.right.append(sb, indent + "  ");
+			}
+		}
+	}
+
+	/**
+	 * The number of distinct values of each attribute of one version of a relation, whether the
+	 * attribute holds nulls, and the orders the relation's tuples were found to be sorted in
+	 */
+	private static class Statistics {
+		private final long version;
+		private final double[] distinct;
+		private final boolean[] nullable;
+		private final Map<List<Attribute>, Boolean> sorted_on = new ConcurrentHashMap<>();	/* filled in as plans ask */
+
+		/**
+		 * Counts the distinct values of each attribute
+		 * @param r	the relation
+		 * @param version	its version, read before its tuples
+		 */
+		Statistics(Relation r, long version) {
+			int n = r.getAttributes().size();
+			Collection<Tuple> tuples = r.getTuples();
+			this.version = version;
+			this.distinct = new double[n];
+			this.nullable = new boolean[n];
+			for (int pos = 0; pos < n; pos++) {
+				Set<Comparable> values = new HashSet<>();
+				for (Tuple t : tuples) {
+					values.add(t.get(pos));
+				}
+				this.distinct[pos] = values.size();
+				this.nullable[pos] = values.contains(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures a QueryServer's throughput and latency as the number of concurrent clients grows.
+ * For 1, 2, 4, ... clients (up to the given maximum), each client connects, then sends the
+ * given queries in turn, each as soon as the answer to the last one has been read in full,
+ * for the given number of seconds. Prints queries per second and latency percentiles for
+ * each number of clients. Latency runs from sending a query to reading the last tuple.
+ *
+ * Usage: java LoadGenerator host port seconds max_clients query [query ...]
+ */
+public class LoadGenerator {
+	private final String host;
+	private final int port;
+	private final String[] queries;
+
+	/**
+	 * @param host	the server's host
+	 * @param port	the server's port
+	 * @param queries	queries each client sends in turn
+	 */
+	public LoadGenerator(String host, int port, String[] queries) {
+		this.host = host;
+		this.port = port;
+		this.queries = queries;
+	}
+
+	/**
+	 * Runs the given number of clients at once
+	 * @param clients	number of clients
+	 * @param seconds	how long each client sends queries
+	 * @return what the clients measured
+	 * @throws IOException if a client cannot connect
+	 * @throws InterruptedException if interrupted while waiting for the clients
+	 */
+	public Result run(int clients, double seconds) throws IOException, InterruptedException {
+		List<QueryClient> connections = new ArrayList<>(clients);
+		try {
+			for (int c = 0; c < clients; c++) {
+				connections.add(new QueryClient(this.host, this.port));
+			}
+			Result[] results = new Result[clients];
+			CountDownLatch go = new CountDownLatch(1);
+			Thread[] threads = new Thread[clients];
+			for (int c = 0; c < clients; c++) {
+				int k = c;
+				threads[c] = new Thread(() -> results[k] = this.drive(connections.get(k), k, go, seconds),
+						"load-client-" + c);
+				threads[c].start();
+			}
+			long start = System.nanoTime();
+			go.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+
+			Result total = new Result(clients);
+			for (Result r : results) {
+				total.merge(r);
+			}
+			total.elapsed = elapsed;
+			return total;
+		} finally {
+			for (QueryClient client : connections) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Sends queries over one connection until time is up
+	 * @param client	the connection
+	 * @param first	index of the first query to send, so that clients start at different queries
+	 * @param go	released when all clients should start
+	 * @param seconds	how long to send queries
+	 * @return what the client measured
+	 */
+	private Result drive(QueryClient client, int first, CountDownLatch go, double seconds) {
+		Result result = new Result(1);
+		try {
+			go.await();
+			long end = System.nanoTime() + (long) (seconds * 1e9);
+			for (int i = first; System.nanoTime() < end; i++) {
+				long start = System.nanoTime();
+				QueryClient.Response response = client.query(this.queries[i % this.queries.length], null);
+				long latency = System.nanoTime() - start;
+				switch (response.getStatus()) {
+					case OK:
+						result.add(latency);
+						break;
+					case BUSY:
+						result.busy++;
+						break;
+					default:
+						result.errors++;
+						if (result.errors == 1) {
+							System.err.println("ERROR " + response.getMessage());
+						}
+				}
+			}
+		} catch (IOException e) {
+			result.errors++;
+			System.err.println(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return result;
+	}
+
+	/**
+	 * What one or more clients measured
+	 */
+	public static class Result {
+		private final int clients;
+		private long[] latencies;	/* nanoseconds, of the queries answered OK */
+		private int count;
+		private long busy;
+		private long errors;
+		private double elapsed;		/* seconds */
+
+		/**
+		 * @param clients	number of clients measured
+		 */
+		Result(int clients) {
+			this.clients = clients;
+			this.latencies = new long[1024];
+		}
+
+		/**
+		 * @param latency	latency of a query answered OK, in nanoseconds
+		 */
+		void add(long latency) {
+			if (this.count == this.latencies.length) {
+				this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+			}
+			this.latencies[this.count++] = latency;
+		}
+
+		/**
+		 * @param other	measurements to add to these
+		 */
+		void merge(Result other) {
+			for (int i = 0; i < other.count; i++) {
+				this.add(other.latencies[i]);
+			}
+			this.busy += other.busy;
+			this.errors += other.errors;
+		}
+
+		/**
+		 * @return number of queries answered OK
+		 */
+		public int getQueries() {
+			return this.count;
+		}
+
+		/**
+		 * @return queries answered OK per second
+		 */
+		public double getThroughput() {
+			return (this.elapsed > 0) ? this.count / this.elapsed : 0;
+		}
+
+		/**
+		 * @param p	percentile, from 0 to 100
+		 * @return latency (in milliseconds) of the given percentile of queries answered OK
+		 */
+		public double getLatency(double p) {
+			if (this.count == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(this.latencies, this.count);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(p / 100 * this.count) - 1;
+			return sorted[Math.max(0, Math.min(rank, this.count - 1))] / 1e6;
+		}
+
+		/**
+		 * @return number of queries answered BUSY
+		 */
+		public long getBusy() {
+			return this.busy;
+		}
+
+		/**
+		 * @return number of queries answered ERROR, or that failed to send
+		 */
+		public long getErrors() {
+			return this.errors;
+		}
+
+		/**
+		 * @return one row of the table LoadGenerator prints
+		 */
+		@Override
+		public String toString() {
+			return String.format("%7d %9d %10.1f %9.2f %9.2f %9.2f %9.2f %7d %7d", this.clients, this.count,
+					this.getThroughput(), this.getLatency(50), this.getLatency(95), this.getLatency(99),
+					this.getLatency(100), this.busy, this.errors);
+		}
+	}
+
+	/**
+	 * Usage: java LoadGenerator host port seconds max_clients query [query ...]
+	 * @param args	command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("Usage: java LoadGenerator host port seconds max_clients query [query ...]");
+			System.exit(1);
+		}
+		double seconds = Double.parseDouble(args[2]);
+		int max_clients = Integer.parseInt(args[3]);
+		LoadGenerator gen = new LoadGenerator(args[0], Integer.parseInt(args[1]),
+				Arrays.copyOfRange(args, 4, args.length));
+
+		System.out.println("clients   queries        qps    p50 ms    p95 ms    p99 ms    max ms    busy  errors");
+		for (int clients = 1; ; clients *= 2) {
+			clients = Math.min(clients, max_clients);
+			System.out.println(gen.run(clients, seconds));
+			if (clients == max_clients) {
+				break;
+			}
+		}
+	}
+}
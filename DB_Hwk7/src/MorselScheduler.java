@@ -0,0 +1,349 @@
+import exceptions.DBException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Runs the parallel parts of queries on one fixed pool of worker threads, shared by every
+ * query thread of a database.
+ *
+ * An operator hands over its input split into morsels (small slices of a few thousand tuples)
+ * as a job, along with the most workers the query may use at once. Workers take one morsel at
+ * a time, visiting the jobs in turn, so concurrent queries share the workers fairly however
+ * many morsels each has, and a query never runs on more workers than its limit. The morsels
+ * of a job are dealt out in lanes, one per worker it may use; a worker takes the next morsel
+ * of its own lane, and once that is empty steals from the others, so workers that get slow
+ * morsels are helped by the rest. The thread that submitted a job works on it too, and only
+ * waits for the morsels still running on other workers, so a job submitted from a worker
+ * cannot deadlock the pool.
+ */
+public class MorselScheduler {
+	private final int workers;
+	private final ReentrantLock lock;
+	private final Condition idle;		/* signalled when a job may take another worker */
+	private final Deque<Job<?, ?>> jobs;	/* jobs with morsels left, in the order workers visit them; guarded by lock */
+	private Thread[] threads;		/* started with the first job; guarded by lock */
+	private boolean shutdown;		/* guarded by lock */
+	private final AtomicLong jobs_run;
+	private final AtomicLong morsels_run;
+	private final AtomicLong morsels_stolen;
+
+	/**
+	 * Creates a scheduler; its threads start when the first job is submitted
+	 * @param workers	number of worker threads
+	 */
+	public MorselScheduler(int workers) {
+		this.workers = Math.max(1, workers);
+		this.lock = new ReentrantLock();
+		this.idle = this.lock.newCondition();
+		this.jobs = new ArrayDeque<>();
+		this.jobs_run = new AtomicLong();
+		this.morsels_run = new AtomicLong();
+		this.morsels_stolen = new AtomicLong();
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkers() {
+		return this.workers;
+	}
+
+	/**
+	 * @return number of jobs run in parallel
+	 */
+	public long getJobsRun() {
+		return this.jobs_run.get();
+	}
+
+	/**
+	 * @return number of morsels run, by workers or by the threads that submitted them
+	 */
+	public long getMorselsRun() {
+		return this.morsels_run.get();
+	}
+
+	/**
+	 * @return number of morsels a worker took from a lane other than its own
+	 */
+	public long getMorselsStolen() {
+		return this.morsels_stolen.get();
+	}
+
+	/**
+	 * Runs a task over every morsel, on at most the given number of threads at once (the
+	 * calling thread included), and waits for all of them
+	 * @param morsels	the morsels
+	 * @param task	processes one morsel; called concurrently, so it must only read shared state
+	 * @param parallelism	most threads that may work on the job at once
+	 * @return the task's result for each morsel, in the order of the morsels
+	 * @throws DBException if the task fails on a morsel (a RuntimeException is rethrown as is),
+	 * 			or the calling thread is interrupted
+	 */
+	public <M, R> List<R> run(List<M> morsels, Function<M, R> task, int parallelism) throws DBException {
+		if (morsels.size() <= 1 || parallelism <= 1) {
+			Object[] results = new Object[morsels.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = task.apply(morsels.get(i));
+			}
+			return this.results(results);
+		}
+
+		Job<M, R> job = new Job<>(morsels, task, Math.min(parallelism, this.workers + 1));
+		this.lock.lock();
+		try {
+			if (this.shutdown) {
+				throw new DBException("Scheduler is shut down");
+			}
+			this.start();
+			this.jobs.addLast(job);
+			for (int w = 1; w < job.parallelism; w++) {
+				this.idle.signal();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.jobs_run.incrementAndGet();
+
+		int i;
+		while ((i = job.claim(0)) >= 0) {
+			job.run(i);
+			this.morsels_run.incrementAndGet();
+		}
+		try {
+			job.finished.await();
+		} catch (InterruptedException e) {
+			job.fail(e);		// workers skip the morsels they have yet to start
+			Thread.currentThread().interrupt();
+			throw new DBException("Interrupted while waiting for a parallel task");
+		}
+
+		Throwable failure = job.failure.get();
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw new DBException("Parallel task failed: " + failure);
+		}
+		return this.results(job.results);
+	}
+
+	/**
+	 * @param results	results of a job, each of type R
+	 * @return them as a list
+	 */
+	@SuppressWarnings("unchecked")
+	private <R> List<R> results(Object[] results) {
+		return (List<R>) Arrays.asList(results);
+	}
+
+	/**
+	 * Starts the worker threads, if they are not running yet; called with the lock held
+	 */
+	private void start() {
+		if (this.threads != null) {
+			return;
+		}
+		this.threads = new Thread[this.workers];
+		for (int w = 0; w < this.workers; w++) {
+			int id = w + 1;		// lane 0 is the submitting thread's
+			this.threads[w] = new Thread(() -> this.work(id), "daviddb-morsel-" + id);
+			this.threads[w].setDaemon(true);
+			this.threads[w].start();
+		}
+	}
+
+	/**
+	 * Stops the worker threads once they finish their current morsels. Jobs already submitted
+	 * are finished by the threads that submitted them; new ones are refused.
+	 */
+	public void shutdown() {
+		this.lock.lock();
+		try {
+			this.shutdown = true;
+			this.idle.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * A worker's loop: runs one morsel of the next job that may take another worker, then
+	 * moves on to the job after it
+	 * @param id	the worker's number, which picks its home lane in each job
+	 */
+	private void work(int id) {
+		while (true) {
+			Job<?, ?> job;
+			this.lock.lock();
+			try {
+				while ((job = this.next()) == null) {
+					if (this.shutdown) {
+						return;
+					}
+					this.idle.awaitUninterruptibly();
+				}
+			} finally {
+				this.lock.unlock();
+			}
+
+			int i = job.claim(id);
+			if (i >= 0) {
+				job.run(i);
+				this.morsels_run.incrementAndGet();
+				if (job.laneOf(i) != id % job.lanes.length) {
+					this.morsels_stolen.incrementAndGet();
+				}
+			}
+
+			this.lock.lock();
+			try {
+				job.active--;
+				if (!job.isExhausted()) {
+					this.idle.signal();		// the job may take another worker in this one's place
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Picks the next job, in turn, that has morsels left and is below its parallelism, and
+	 * counts the calling worker as working on it; drops jobs with no morsels left. Called with
+	 * the lock held.
+	 * @return the job, or null if there is none
+	 */
+	private Job<?, ?> next() {
+		for (int k = this.jobs.size(); k > 0; k--) {
+			Job<?, ?> job = this.jobs.pollFirst();
+			if (job.isExhausted()) {
+				continue;
+			}
+			this.jobs.addLast(job);
+			if (job.active < job.parallelism) {
+				job.active++;
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The morsels of one call to run(), and the state of their processing
+	 */
+	private static class Job<M, R> {
+		private final List<M> morsels;
+		private final Function<M, R> task;
+		private final int parallelism;
+		private final AtomicInteger[] lanes;	/* next unclaimed morsel of each lane */
+		private final int[] lane_ends;		/* morsel after the last of each lane */
+		private final Object[] results;
+		private final CountDownLatch finished;	/* counts morsels not yet done */
+		private final AtomicReference<Throwable> failure;
+		private int active;		/* threads working on the job, the submitting thread included; guarded by the scheduler's lock */
+
+		/**
+		 * @param morsels	the morsels
+		 * @param task	processes one morsel
+		 * @param parallelism	most threads that may work on the job at once
+		 */
+		Job(List<M> morsels, Function<M, R> task, int parallelism) {
+			this.morsels = morsels;
+			this.task = task;
+			this.parallelism = parallelism;
+			int count = Math.min(parallelism, morsels.size());
+			this.lanes = new AtomicInteger[count];
+			this.lane_ends = new int[count];
+			for (int l = 0; l < count; l++) {
+				this.lanes[l] = new AtomicInteger(l * morsels.size() / count);
+				this.lane_ends[l] = (l + 1) * morsels.size() / count;
+			}
+			this.results = new Object[morsels.size()];
+			this.finished = new CountDownLatch(morsels.size());
+			this.failure = new AtomicReference<>();
+			this.active = 1;	// the submitting thread
+		}
+
+		/**
+		 * Claims the next morsel of a thread's home lane, or failing that of another lane
+		 * @param id	the thread's number; 0 for the submitting thread
+		 * @return index of the morsel, or -1 if every morsel is claimed
+		 */
+		int claim(int id) {
+			int home = id % this.lanes.length;
+			for (int k = 0; k < this.lanes.length; k++) {
+				int l = (home + k) % this.lanes.length;
+				if (this.lanes[l].get() < this.lane_ends[l]) {
+					int i = this.lanes[l].getAndIncrement();
+					if (i < this.lane_ends[l]) {
+						return i;
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param i	index of a morsel
+		 * @return the lane it belongs to
+		 */
+		int laneOf(int i) {
+			int l = (int) ((long) i * this.lanes.length / this.morsels.size());
+			while (i >= this.lane_ends[l]) {
+				l++;
+			}
+			while (l > 0 && i < this.lane_ends[l - 1]) {
+				l--;
+			}
+			return l;
+		}
+
+		/**
+		 * @return true if every morsel is claimed
+		 */
+		boolean isExhausted() {
+			for (int l = 0; l < this.lanes.length; l++) {
+				if (this.lanes[l].get() < this.lane_ends[l]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Runs the task over a claimed morsel, unless the job has already failed
+		 * @param i	index of the morsel
+		 */
+		void run(int i) {
+			try {
+				if (this.failure.get() == null) {
+					this.results[i] = this.task.apply(this.morsels.get(i));
+				}
+			} catch (Throwable t) {
+				this.fail(t);
+			} finally {
+				this.finished.countDown();
+			}
+		}
+
+		/**
+		 * Records why the job failed, if it has not failed already
+		 * @param t	the failure
+		 */
+		void fail(Throwable t) {
+			this.failure.compareAndSet(null, t);
+		}
+	}
+}
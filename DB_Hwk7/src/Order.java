@@ -0,0 +1,7 @@
+/**
+ * Sort direction identifiers
+ */
+public enum Order {
+	ASC,
+	DESC
+}
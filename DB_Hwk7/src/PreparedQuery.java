@@ -0,0 +1,213 @@
+import exceptions.DBException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import perf.OperatorMetrics;
+import perf.QueryEvents;
+import solver.Expression;
+
+/**
+ * A selection on a relation that is parsed, bound to attribute positions and planned once,
+ * then executed any number of times with different parameter values. Each ? in the
+ * condition is a parameter, e.g. "customerNumber = ?".
+ *
+ * If the condition requires an attribute to equal a parameter, executions look the
+ * matching tuples up in a hash index on that attribute instead of scanning the relation.
+ * The index is built by the first execution and rebuilt whenever the relation's tuples
+ * change. The condition is compiled again if the relation's name or attributes change.
+ * A prepared query may be executed by several threads at once.
+ */
+public class PreparedQuery {
+	private final DavidDB db;
+	private final Relation relation;
+	private final String cond_str;
+
+	/* the compiled condition and index, guarded by this */
+	private volatile long schema_version;
+	private volatile Expression condition;
+	private Attribute.Type index_type;	/* type of the indexed attribute, or null if there is no index */
+	private Expression index_attr;
+	private int index_param;
+
+	private Map<Object, List<Tuple>> index;
+	private long index_version;
+
+	/**
+	 * Prepares a selection
+	 * @param db	database that executes the query
+	 * @param r	the relation to select from
+	 * @param cond_str	the condition, with a ? for each parameter
+	 * @throws DBException if the condition is invalid
+	 */
+	PreparedQuery(DavidDB db, Relation r, String cond_str) throws DBException {
+		this.db = db;
+		this.relation = r;
+		this.cond_str = cond_str;
+		this.compile();
+	}
+
+	/**
+	 * Parses the condition against the relation's current attributes, and looks for an
+	 * attribute that must equal a parameter to index on
+	 * @throws DBException if the condition is invalid
+	 */
+	private synchronized void compile() throws DBException {
+		this.condition = Expression.compile(this.cond_str, this.relation::lookup);
+		this.schema_version = this.relation.getSchemaVersion();
+		this.index_type = null;
+		this.index = null;
+		for (Expression c : this.condition.getConjuncts()) {
+			if (!"==".equals(c.getOperator())) {
+				continue;
+			}
+			Expression a = c.getOperands().get(0);
+			Expression b = c.getOperands().get(1);
+			if (b.getAttribute() >= 0 && a.getParameter() >= 0) {
+				Expression tmp = a;
+				a = b;
+				b = tmp;
+			}
+			if (a.getAttribute() >= 0 && b.getParameter() >= 0) {
+				this.index_attr = a;
+				this.index_param = b.getParameter();
+				this.index_type = this.relation.getAttributes().get(a.getAttribute()).getType();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the relation this query selects from
+	 */
+	public Relation getRelation() {
+		return this.relation;
+	}
+
+	/**
+	 * @return the condition, as given
+	 */
+	public String getCondition() {
+		return this.cond_str;
+	}
+
+	/**
+	 * @return number of parameters the query takes
+	 */
+	public int getParameterCount() {
+		return this.condition.getParameterCount();
+	}
+
+	/**
+	 * @return true if the query was compiled against the relation's current attributes
+	 */
+	public boolean isCurrent() {
+		return this.schema_version == this.relation.getSchemaVersion();
+	}
+
+	/**
+	 * Runs the query
+	 * @param params	value of each parameter: a number for NUMERIC attributes, a string
+	 * 					(with or without quotes) for TEXT attributes
+	 * @return a relation holding the tuples that satisfy the condition
+	 * @throws DBException if the wrong number of parameters is given, or the condition no
+	 * 			longer fits the relation's attributes
+	 */
+	public Relation execute(Comparable... params) throws DBException {
+		return this.db.execute(this, params);
+	}
+
+	/**
+	 * Runs the query (see: execute); called by the database, which keeps the time
+	 * @param params	value of each parameter
+	 * @return a relation holding the tuples that satisfy the condition
+	 */
+	Relation run(Comparable[] params) throws DBException {
+		QueryEvents.Select event = new QueryEvents.Select();
+		event.begin();
+		Expression condition;
+		Attribute.Type index_type;
+		int index_param;
+		Map<Object, List<Tuple>> index = null;
+		synchronized (this) {
+			if (!this.isCurrent()) {
+				this.compile();
+			}
+			condition = this.condition;
+			index_type = this.index_type;
+			index_param = this.index_param;
+			if (index_type != null) {
+				index = this.index();
+			}
+		}
+		Expression bound = condition.bind((Object[]) params);
+
+		Relation result = new Relation();
+		result.bag = this.relation.isBag();
+		result.useListStorage();	// a subset of r cannot contain new duplicates
+		result.setAttributes(this.relation.copyAttributes());
+
+		Collection<Tuple> candidates = this.relation.getTuples();
+		boolean indexed = false;
+		if (index_type != null) {
+			Object key = indexKey(Expression.toValue(params[index_param]));
+			if (key != null && (key instanceof Double) == (index_type == Attribute.Type.NUMERIC)) {
+				List<Tuple> matches = index.get(key);
+				candidates = (matches == null) ? new ArrayList<>() : matches;
+				indexed = true;
+				OperatorMetrics metrics = this.db.currentMetrics();
+				if (metrics != null) {
+					metrics.addHashEntries(index.size());
+				}
+			}
+		}
+
+		QueryEvents.Scan scan_event = new QueryEvents.Scan();
+		scan_event.begin();
+		result.addAllDistinct(this.db.filter(candidates, bound::test));	// in parallel if there are many
+		if (scan_event.shouldCommit() || event.shouldCommit()) {
+			String name = DavidDB.nameOf(this.relation);
+			scan_event.record(name, candidates.size(), result.getTuples().size(), indexed);
+			event.record(name, this.cond_str, this.relation.getTuples().size(), result.getTuples().size());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the index on the indexed attribute, built if the relation's tuples have changed
+	 */
+	private synchronized Map<Object, List<Tuple>> index() {
+		long version = this.relation.getVersion();		// before reading the tuples, so a concurrent write forces a rebuild
+		if (this.index == null || this.index_version != version) {
+			QueryEvents.JoinBuild event = new QueryEvents.JoinBuild();
+			event.begin();
+			Map<Object, List<Tuple>> map = new HashMap<>();
+			for (Tuple t : this.relation.getTuples()) {
+				Object key = indexKey(this.index_attr.evaluate(t));
+				if (key != null) {
+					map.computeIfAbsent(key, k -> new ArrayList<>(1)).add(t);
+				}
+			}
+			this.index = map;
+			this.index_version = version;
+			if (event.shouldCommit()) {
+				event.record("prepare", DavidDB.nameOf(this.relation), this.relation.getTuples().size(), map.size());
+			}
+		}
+		return this.index;
+	}
+
+	/**
+	 * @param val	an evaluated value
+	 * @return the value as an index key, so that values the condition treats as equal have
+	 * 			equal keys; null if the value can equal no number or string (null, NaN, booleans)
+	 */
+	private static Object indexKey(Object val) {
+		if (val instanceof Double) {
+			double d = (Double) val;
+			return Double.isNaN(d) ? null : (Object) ((d == 0) ? 0.0 : d);	// -0.0 == 0.0
+		}
+		return (val instanceof String) ? val : null;
+	}
+}
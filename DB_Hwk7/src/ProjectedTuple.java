@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tuple that retains only some of the values of another tuple, without copying them.
+ * Values are read through a column mapping onto the source tuple, and are only copied
+ * into a list if values() is called.
+ */
+public class ProjectedTuple extends Tuple {
+	private final Tuple source;
+	private final int[] positions;	/* positions[i] is the position in source of this tuple's i-th value */
+
+	/**
+	 * Creates a projection of the given tuple
+	 * @param source	tuple to project
+	 * @param positions	positions in source of the values to retain, in order
+	 * @param r	relation to which this tuple belongs
+	 */
+	public ProjectedTuple(Tuple source, int[] positions, AbstractRelation r) {
+		super((Comparable[]) null, r);
+		if (source instanceof ProjectedTuple) {
+			// project straight from the underlying tuple so that projections never chain
+			ProjectedTuple inner = (ProjectedTuple) source;
+			int[] composed = new int[positions.length];
+			for (int i = 0; i < positions.length; i++) {
+				composed[i] = inner.positions[positions[i]];
+			}
+			source = inner.source;
+			positions = composed;
+		}
+		this.source = source;
+		this.positions = positions;
+	}
+
+	/**
+	 * @return number of values in the current tuple
+	 */
+	@Override
+	public int size() {
+		return this.positions.length;
+	}
+
+	/**
+	 * Retrieves the value at the given position
+	 * @param pos	position of the value (see: Relation.lookup)
+	 * @return the value at the given position
+	 */
+	@Override
+	public Comparable get(int pos) {
+		return this.source.get(this.positions[pos]);
+	}
+
+	/**
+	 * Copies the projected values out of the source tuple
+	 * @return a list of the values in this tuple
+	 */
+	@Override
+	public List<Comparable> values() {
+		List<Comparable> list = new ArrayList<>(this.positions.length);
+		for (int pos : this.positions) {
+			list.add(this.source.get(pos));
+		}
+		return list;
+	}
+}
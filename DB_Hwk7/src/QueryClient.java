@@ -0,0 +1,169 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * A connection to a QueryServer, over which queries are sent one at a time
+ */
+public class QueryClient implements AutoCloseable {
+	private final Socket socket;
+	private final BufferedReader in;
+	private final Writer out;
+
+	/**
+	 * Connects to a server
+	 * @param host	the server's host
+	 * @param port	the server's port
+	 * @throws IOException if the connection fails
+	 */
+	public QueryClient(String host, int port) throws IOException {
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+		this.out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Runs a query, passing each tuple to the given consumer as it arrives
+	 * @param query	the query, on one line (see: QueryParser)
+	 * @param rows	receives each tuple, as values separated by |; null to skip them
+	 * @return the server's answer
+	 * @throws IOException if the connection fails
+	 */
+	public Response query(String query, Consumer<String> rows) throws IOException {
+		this.out.write(query.replaceAll("[\\r\\n]+", " "));
+		this.out.write("\n");
+		this.out.flush();
+
+		String line = this.readLine();
+		if (line.startsWith("ERROR")) {
+			return new Response(Status.ERROR, line.substring(Math.min(6, line.length())), 0);
+		}
+		if (line.startsWith("BUSY")) {
+			return new Response(Status.BUSY, line.substring(Math.min(5, line.length())), 0);
+		}
+		if (!line.startsWith("OK")) {
+			throw new IOException("Unexpected answer: " + line);
+		}
+		String header = line.substring(Math.min(3, line.length()));
+		long n = 0;
+		while (!(line = this.readLine()).startsWith("END")) {
+			if (rows != null) {
+				rows.accept(line);
+			}
+			n++;
+		}
+		return new Response(Status.OK, header, n);
+	}
+
+	/**
+	 * @return the next line from the server
+	 * @throws IOException if the server closed the connection
+	 */
+	private String readLine() throws IOException {
+		String line = this.in.readLine();
+		if (line == null) {
+			throw new IOException("Connection closed by server");
+		}
+		return line;
+	}
+
+	/**
+	 * Ends the connection
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.out.write("QUIT\n");
+			this.out.flush();
+		} catch (IOException e) {
+			// already closed by the server
+		}
+		this.socket.close();
+	}
+
+	/**
+	 * How the server answered a query
+	 */
+	public enum Status {
+		OK,
+		ERROR,
+		BUSY
+	}
+
+	/**
+	 * The server's answer to a query
+	 */
+	public static class Response {
+		private final Status status;
+		private final String message;
+		private final long rows;
+
+		/**
+		 * @param status	how the server answered
+		 * @param message	the attribute names if OK, otherwise the server's message
+		 * @param rows	number of tuples received
+		 */
+		public Response(Status status, String message, long rows) {
+			this.status = status;
+			this.message = message;
+			this.rows = rows;
+		}
+
+		/**
+		 * @return how the server answered
+		 */
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * @return the attribute names, separated by |, if OK; otherwise the server's message
+		 */
+		public String getMessage() {
+			return this.message;
+		}
+
+		/**
+		 * @return number of tuples received
+		 */
+		public long getRows() {
+			return this.rows;
+		}
+	}
+
+	/**
+	 * Sends the queries read from standard input, one per line, and prints the answers.
+	 * Usage: java QueryClient [host [port]]
+	 * @param args	command line arguments
+	 */
+	public static void main(String[] args) throws IOException {
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : QueryServer.DEFAULT_PORT;
+		try (QueryClient client = new QueryClient(host, port);
+				BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = stdin.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				if (line.trim().equalsIgnoreCase("QUIT")) {
+					break;
+				}
+				Response response = client.query(line, System.out::println);
+				if (response.getStatus() == Status.OK) {
+					System.out.println("(" + response.getRows() + " tuples: " + response.getMessage() + ")");
+				}
+				else {
+					System.out.println(response.getStatus() + ": " + response.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,385 @@
+import exceptions.DBException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates queries written as nested operator calls, as received by QueryServer, e.g.
+ *
+ *   select(hashJoin(customers, payments), "amount > 1000")
+ *   aggregate(payments, "SUM amount, COUNT checkNumber", "customerNumber")
+ *   topN(customers, 10, "creditLimit")
+ *
+ * An argument is a relation name, a nested call, a number, or a double-quoted string (\"
+ * and \\ escape a quote and a backslash). Conditions are written as for DavidDB.select(),
+ * so text literals inside them keep their single quotes. The operators and their arguments:
+ *
+ *   select(r, "cond")					thetaJoin(r1, r2, "cond")
+ *   project(r, "attr", ...)			distinct(r)
+ *   naturalJoin, hashJoin, sortJoin, semiJoin, antiJoin, times, union, intersect, minus (r1, r2)
+ *   join(r1, r2, ...)					starJoin(fact, dim, ...)
+ *   aggregate(r, "FN attr, ..." [, "group, ..."])	with FN one of Agg
+ *   orderBy(r, "attr [ASC|DESC], ...")	topN(r, n, "attr [ASC|DESC], ...")	(topN defaults to DESC)
+ *
+ * Calls may be nested at most MAX_DEPTH deep, so that a malicious query cannot exhaust the stack.
+ * A parser keeps its position in the query being parsed, so each thread needs its own.
+ */
+public class QueryParser {
+	private static final Set<String> BINARY_OPERATORS = new HashSet<>(Arrays.asList("naturalJoin", "hashJoin",
+			"sortJoin", "semiJoin", "antiJoin", "times", "union", "intersect", "minus"));
+
+	/* deepest nesting of calls a query may have */
+	public static final int MAX_DEPTH = 64;
+
+	private final DavidDB db;
+	private String text;
+	private int pos;
+	private int depth;		/* number of calls being parsed around the current position */
+
+	/**
+	 * Creates a parser that evaluates queries against the given database
+	 * @param db	the database
+	 */
+	public QueryParser(DavidDB db) {
+		this.db = db;
+	}
+
+	/**
+	 * Parses and runs a query
+	 * @param query	the query text
+	 * @return the query's result
+	 * @throws DBException if the query is malformed, names an unknown relation or operator,
+	 * 			or the operator fails
+	 */
+	public Relation evaluate(String query) throws DBException {
+		this.text = query;
+		this.pos = 0;
+		this.depth = 0;
+		Object result = this.expression();
+		this.skipSpace();
+		if (this.pos < this.text.length()) {
+			throw this.error("unexpected '" + this.text.charAt(this.pos) + "'");
+		}
+		return this.relation(result, "query");
+	}
+
+	/**
+	 * @return the value of the expression at the current position: a Relation, String or Double
+	 */
+	private Object expression() throws DBException {
+		this.skipSpace();
+		if (this.pos >= this.text.length()) {
+			throw this.error("unexpected end of query");
+		}
+		char c = this.text.charAt(this.pos);
+		if (c == '"') {
+			return this.string();
+		}
+		if (c == '-' || Character.isDigit(c)) {
+			return this.number();
+		}
+		if (!Character.isJavaIdentifierStart(c)) {
+			throw this.error("unexpected '" + c + "'");
+		}
+		String name = this.identifier();
+		this.skipSpace();
+		if (this.pos < this.text.length() && this.text.charAt(this.pos) == '(') {
+			if (this.depth == MAX_DEPTH) {
+				throw this.error("calls nested more than " + MAX_DEPTH + " deep");
+			}
+			this.pos++;
+			this.depth++;
+			try {
+				return this.call(name, this.arguments());
+			} finally {
+				this.depth--;
+			}
+		}
+		Relation r = (Relation) this.db.getRelation(name);
+		if (r == null) {
+			throw new DBException("Unknown relation: " + name);
+		}
+		return r;
+	}
+
+	/**
+	 * Parses a call's arguments, up to and including the closing parenthesis
+	 * @return the values of the arguments
+	 */
+	private List<Object> arguments() throws DBException {
+		List<Object> args = new ArrayList<>();
+		this.skipSpace();
+		if (this.pos < this.text.length() && this.text.charAt(this.pos) == ')') {
+			this.pos++;
+			return args;
+		}
+		while (true) {
+			args.add(this.expression());
+			this.skipSpace();
+			if (this.pos >= this.text.length()) {
+				throw this.error("missing ')'");
+			}
+			char c = this.text.charAt(this.pos++);
+			if (c == ')') {
+				return args;
+			}
+			if (c != ',') {
+				throw this.error("expected ',' or ')' but found '" + c + "'");
+			}
+		}
+	}
+
+	/**
+	 * Runs an operator
+	 * @param op	name of the operator
+	 * @param args	values of its arguments
+	 * @return the operator's result
+	 */
+	private Relation call(String op, List<Object> args) throws DBException {
+		switch (op) {
+			case "select":
+				this.arity(op, args, 2, 2);
+				return this.db.select(this.relation(args.get(0), op), this.string(args.get(1), op));
+			case "thetaJoin":
+				this.arity(op, args, 3, 3);
+				return this.db.thetaJoin(this.relation(args.get(0), op), this.relation(args.get(1), op),
+						this.string(args.get(2), op));
+			case "project": {
+				this.arity(op, args, 2, Integer.MAX_VALUE);
+				String[] attrs = new String[args.size() - 1];
+				for (int i = 1; i < args.size(); i++) {
+					attrs[i - 1] = this.string(args.get(i), op);
+				}
+				return this.db.project(this.relation(args.get(0), op), attrs);
+			}
+			case "distinct":
+				this.arity(op, args, 1, 1);
+				return this.db.distinct(this.relation(args.get(0), op));
+			case "join":
+			case "starJoin": {
+				this.arity(op, args, 1, Integer.MAX_VALUE);
+				Relation[] rs = new Relation[args.size()];
+				for (int i = 0; i < rs.length; i++) {
+					rs[i] = this.relation(args.get(i), op);
+				}
+				return op.equals("join") ? this.db.join(rs)
+						: this.db.starJoin(rs[0], Arrays.copyOfRange(rs, 1, rs.length));
+			}
+			case "aggregate":
+				return this.aggregate(args);
+			case "orderBy": {
+				this.arity(op, args, 2, 2);
+				List<String> attrs = new ArrayList<>();
+				Order[] directions = this.sortKeys(this.string(args.get(1), op), attrs, Order.ASC);
+				return this.db.orderBy(this.relation(args.get(0), op), attrs.toArray(new String[0]), directions);
+			}
+			case "topN": {
+				this.arity(op, args, 3, 3);
+				if (!(args.get(1) instanceof Double)) {
+					throw new DBException("topN: the second argument must be a number");
+				}
+				List<String> attrs = new ArrayList<>();
+				Order[] directions = this.sortKeys(this.string(args.get(2), op), attrs, Order.DESC);
+				return this.db.topN(this.relation(args.get(0), op), attrs.toArray(new String[0]), directions,
+						((Double) args.get(1)).intValue());
+			}
+			default:
+				break;
+		}
+
+		// the remaining operators take two relations
+		if (!BINARY_OPERATORS.contains(op)) {
+			throw new DBException("Unknown operator: " + op);
+		}
+		this.arity(op, args, 2, 2);
+		Relation r1 = this.relation(args.get(0), op);
+		Relation r2 = this.relation(args.get(1), op);
+		switch (op) {
+			case "naturalJoin":
+				return this.db.naturalJoin(r1, r2);
+			case "hashJoin":
+				return this.db.hashJoin(r1, r2);
+			case "sortJoin":
+				return this.db.sortJoin(r1, r2);
+			case "semiJoin":
+				return this.db.semiJoin(r1, r2);
+			case "antiJoin":
+				return this.db.antiJoin(r1, r2);
+			case "times":
+				return this.db.times(r1, r2);
+			case "union":
+				return this.db.union(r1, r2);
+			case "intersect":
+				return this.db.intersect(r1, r2);
+			case "minus":
+				return this.db.minus(r1, r2);
+			default:
+				throw new DBException("Unknown operator: " + op);
+		}
+	}
+
+	/**
+	 * Runs aggregate(r, "FN attr, ..." [, "group, ..."])
+	 * @param args	values of the arguments
+	 * @return the aggregate's result
+	 */
+	private Relation aggregate(List<Object> args) throws DBException {
+		this.arity("aggregate", args, 2, 3);
+		String[] fns = this.string(args.get(1), "aggregate").split(",");
+		Agg[] agg_fns = new Agg[fns.length];
+		String[] attrs = new String[fns.length];
+		for (int i = 0; i < fns.length; i++) {
+			String[] pair = fns[i].trim().split("\\s+");
+			if (pair.length != 2) {
+				throw new DBException("aggregate: expected \"FN attr\" but found \"" + fns[i].trim() + "\"");
+			}
+			try {
+				agg_fns[i] = Agg.valueOf(pair[0].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new DBException("aggregate: unknown function " + pair[0]);
+			}
+			attrs[i] = pair[1];
+		}
+		String[] groups = null;
+		if (args.size() == 3) {
+			groups = this.string(args.get(2), "aggregate").split(",");
+			for (int i = 0; i < groups.length; i++) {
+				groups[i] = groups[i].trim();
+			}
+		}
+		return this.db.aggregate(this.relation(args.get(0), "aggregate"), agg_fns, attrs, groups);
+	}
+
+	/**
+	 * Parses a list of sort keys, e.g. "creditLimit DESC, customerName"
+	 * @param keys	the keys
+	 * @param attrs	list to add the attribute names to
+	 * @param default_order	direction of keys that do not give one
+	 * @return the direction of each key
+	 */
+	private Order[] sortKeys(String keys, List<String> attrs, Order default_order) throws DBException {
+		String[] items = keys.split(",");
+		Order[] directions = new Order[items.length];
+		for (int i = 0; i < items.length; i++) {
+			String[] pair = items[i].trim().split("\\s+");
+			attrs.add(pair[0]);
+			directions[i] = default_order;
+			if (pair.length == 2) {
+				try {
+					directions[i] = Order.valueOf(pair[1].toUpperCase());
+				} catch (IllegalArgumentException e) {
+					throw new DBException("Unknown sort direction: " + pair[1]);
+				}
+			}
+			else if (pair.length > 2) {
+				throw new DBException("Malformed sort key: " + items[i].trim());
+			}
+		}
+		return directions;
+	}
+
+	/**
+	 * @param op	name of the operator
+	 * @param args	its arguments
+	 * @param min	least number of arguments it takes
+	 * @param max	most number of arguments it takes
+	 * @throws DBException if the number of arguments is out of range
+	 */
+	private void arity(String op, List<Object> args, int min, int max) throws DBException {
+		if (args.size() < min || args.size() > max) {
+			throw new DBException(op + ": wrong number of arguments (" + args.size() + ")");
+		}
+	}
+
+	/**
+	 * @param arg	an argument's value
+	 * @param op	name of the operator it is passed to
+	 * @return the argument as a relation
+	 * @throws DBException if it is not a relation
+	 */
+	private Relation relation(Object arg, String op) throws DBException {
+		if (!(arg instanceof Relation)) {
+			throw new DBException(op + ": expected a relation but found " + arg);
+		}
+		return (Relation) arg;
+	}
+
+	/**
+	 * @param arg	an argument's value
+	 * @param op	name of the operator it is passed to
+	 * @return the argument as a string
+	 * @throws DBException if it is not a string
+	 */
+	private String string(Object arg, String op) throws DBException {
+		if (!(arg instanceof String)) {
+			throw new DBException(op + ": expected a quoted string but found " +
+					((arg instanceof Relation) ? "a relation" : arg));
+		}
+		return (String) arg;
+	}
+
+	/**
+	 * @return the double-quoted string at the current position, without quotes or escapes
+	 */
+	private String string() throws DBException {
+		StringBuilder sb = new StringBuilder();
+		this.pos++;		// opening quote
+		while (this.pos < this.text.length()) {
+			char c = this.text.charAt(this.pos++);
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c == '\\' && this.pos < this.text.length()) {
+				c = this.text.charAt(this.pos++);
+			}
+			sb.append(c);
+		}
+		throw this.error("unterminated string");
+	}
+
+	/**
+	 * @return the number at the current position
+	 */
+	private Double number() throws DBException {
+		int start = this.pos++;
+		while (this.pos < this.text.length()
+				&& (Character.isDigit(this.text.charAt(this.pos)) || this.text.charAt(this.pos) == '.')) {
+			this.pos++;
+		}
+		try {
+			return Double.parseDouble(this.text.substring(start, this.pos));
+		} catch (NumberFormatException e) {
+			throw this.error("malformed number " + this.text.substring(start, this.pos));
+		}
+	}
+
+	/**
+	 * @return the identifier at the current position
+	 */
+	private String identifier() {
+		int start = this.pos;
+		while (this.pos < this.text.length() && Character.isJavaIdentifierPart(this.text.charAt(this.pos))) {
+			this.pos++;
+		}
+		return this.text.substring(start, this.pos);
+	}
+
+	/**
+	 * Skips whitespace
+	 */
+	private void skipSpace() {
+		while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos))) {
+			this.pos++;
+		}
+	}
+
+	/**
+	 * @param message	what is wrong
+	 * @return an exception describing a syntax error at the current position
+	 */
+	private DBException error(String message) {
+		return new DBException("Syntax error at " + (this.pos + 1) + ": " + message);
+	}
+}
@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import perf.LoadStats;
+
+/**
+ * Serves queries against one shared database over a TCP socket on the loopback interface.
+ *
+ * The protocol is line based. A client sends one query per line, written as for QueryParser
+ * (e.g. select(customers, "creditLimit > 100000")), or QUIT to end the connection. The
+ * server answers each query with one of
+ *
+ *   OK attr1|attr2|...		then one line per tuple, values separated by |, then END rows
+ *   ERROR message			if the query is malformed or fails
+ *   BUSY message			if the query was not admitted (see below)
+ *
+ * Each connection is served by a thread of its own, and each query runs in a snapshot, so it
+ * sees the relations as of one point in time while others write to them; opening the snapshot
+ * does not wait for a write in progress (see: VersionClock.open). Tuples are written
+ * and flushed as the result is iterated, so a client can start reading a large result before
+ * the server has written all of it.
+ *
+ * Admission control: at most max_connections connections are served at once (others are told
+ * BUSY and closed), and at most max_active queries run at once. A query waits up to the
+ * admission timeout for a slot and is answered BUSY if none frees up. Streaming a result back
+ * does not hold a slot, so a slow client does not keep other queries from running.
+ */
+public class QueryServer implements AutoCloseable {
+	public static final int DEFAULT_PORT = 7407;
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+	public static final long DEFAULT_ADMISSION_TIMEOUT = 1000;	/* milliseconds */
+
+	/* number of tuples written between flushes */
+	public static final int STREAM_BATCH = 256;
+
+	private final DavidDB db;
+	private final int requested_port;
+	private final int max_connections;
+	private final Semaphore active;		/* one permit per query that may run at once */
+	private volatile long admission_timeout;
+	private final Set<Socket> clients;
+	private final AtomicLong served;
+	private final AtomicLong rejected;
+	private final AtomicLong failed;
+
+	private ServerSocket server;
+	private ThreadPoolExecutor workers;
+	private Thread acceptor;
+
+	/**
+	 * Creates a server that runs as many queries at once as the database uses worker threads
+	 * @param db	the database to query
+	 * @param port	port to listen on, or 0 for any free port
+	 */
+	public QueryServer(DavidDB db, int port) {
+		this(db, port, DEFAULT_MAX_CONNECTIONS, db.getParallelism());
+	}
+
+	/**
+	 * Creates a server
+	 * @param db	the database to query
+	 * @param port	port to listen on, or 0 for any free port
+	 * @param max_connections	most connections served at once
+	 * @param max_active	most queries run at once
+	 */
+	public QueryServer(DavidDB db, int port, int max_connections, int max_active) {
+		this.db = db;
+		this.requested_port = port;
+		this.max_connections = Math.max(1, max_connections);
+		this.active = new Semaphore(Math.max(1, max_active), true);
+		this.admission_timeout = DEFAULT_ADMISSION_TIMEOUT;
+		this.clients = ConcurrentHashMap.newKeySet();
+		this.served = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.failed = new AtomicLong();
+	}
+
+	/**
+	 * Starts listening; connections are accepted on a background thread
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (this.server != null) {
+			return;
+		}
+		this.server = new ServerSocket(this.requested_port, 128, InetAddress.getLoopbackAddress());
+		AtomicInteger count = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(0, this.max_connections, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), task -> {
+					Thread t = new Thread(task, "daviddb-connection-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		this.acceptor = new Thread(this::accept, "daviddb-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	/**
+	 * @return the port the server listens on, or -1 if it has not started
+	 */
+	public int getPort() {
+		ServerSocket server = this.server;
+		return (server == null) ? -1 : server.getLocalPort();
+	}
+
+	/**
+	 * @return how long (in milliseconds) a query waits to be admitted before it is answered BUSY
+	 */
+	public long getAdmissionTimeout() {
+		return this.admission_timeout;
+	}
+
+	/**
+	 * @param timeout	how long (in milliseconds) a query may wait to be admitted; 0 to never wait
+	 */
+	public void setAdmissionTimeout(long timeout) {
+		this.admission_timeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * @return number of queries answered with a result
+	 */
+	public long getServed() {
+		return this.served.get();
+	}
+
+	/**
+	 * @return number of queries and connections answered BUSY
+	 */
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * @return number of queries answered ERROR
+	 */
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	/**
+	 * Stops listening, closes every connection, and closes the database (see: DavidDB.close)
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.server == null) {
+			return;
+		}
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (Socket s : this.clients) {
+			closeQuietly(s);
+		}
+		this.workers.shutdownNow();
+		this.db.close();
+		this.server = null;
+	}
+
+	/**
+	 * Accepts connections until the server socket is closed
+	 */
+	private void accept() {
+		ServerSocket server = this.server;
+		while (!server.isClosed()) {
+			Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				return;		// closed
+			}
+			try {
+				this.workers.execute(() -> this.serve(s));
+			} catch (RejectedExecutionException e) {
+				this.rejected.incrementAndGet();
+				try {
+					Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+					out.write("BUSY too many connections\n");
+					out.flush();
+				} catch (IOException io) {
+					// the client is gone anyway
+				}
+				closeQuietly(s);
+			}
+		}
+	}
+
+	/**
+	 * Answers the queries sent over one connection until the client sends QUIT or disconnects
+	 * @param s	the connection
+	 */
+	private void serve(Socket s) {
+		this.clients.add(s);
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			s.setTcpNoDelay(true);
+			QueryParser parser = new QueryParser(this.db);
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.equalsIgnoreCase("QUIT")) {
+					break;
+				}
+				if (!line.isEmpty()) {
+					this.answer(line, parser, out);
+				}
+			}
+		} catch (SocketException e) {
+			// closed by the client, or by close()
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			this.clients.remove(s);
+			closeQuietly(s);
+		}
+	}
+
+	/**
+	 * Runs a query and writes its answer
+	 * @param query	the query text
+	 * @param parser	the connection's parser
+	 * @param out	the connection's output
+	 * @throws IOException if the answer cannot be written
+	 */
+	@SuppressWarnings("try")
+	private void answer(String query, QueryParser parser, Writer out) throws IOException {
+		try {
+			if (!this.active.tryAcquire(this.admission_timeout, TimeUnit.MILLISECONDS)) {
+				this.rejected.incrementAndGet();
+				out.write("BUSY too many queries running\n");
+				out.flush();
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SocketException("Server closed");
+		}
+
+		Relation result;
+		Collection<Tuple> rows;
+		try (Snapshot snapshot = this.db.snapshot()) {
+			result = parser.evaluate(query);
+			rows = result.getTuples();		// in the snapshot, in case the result is a stored relation
+		} catch (RuntimeException e) {
+			this.failed.incrementAndGet();
+			out.write("ERROR " + oneLine(e) + "\n");
+			out.flush();
+			return;
+		} catch (StackOverflowError e) {	// e.g. a condition nested too deeply; the stack is unwound by now
+			this.failed.incrementAndGet();
+			out.write("ERROR query nested too deeply\n");
+			out.flush();
+			return;
+		} finally {
+			this.active.release();
+		}
+
+		StringBuilder line = new StringBuilder("OK ");
+		List<Attribute> attrs = result.getAttributes();
+		for (int i = 0; i < attrs.size(); i++) {
+			if (i > 0) {
+				line.append(Tuple.COL_SEPARATOR);
+			}
+			line.append(attrs.get(i).getPedanticName());
+		}
+		out.write(line.append('\n').toString());
+		long n = 0;
+		for (Tuple t : rows) {
+			line.setLength(0);
+			for (int i = 0; i < t.size(); i++) {
+				if (i > 0) {
+					line.append(Tuple.COL_SEPARATOR);
+				}
+				line.append(t.get(i));
+			}
+			out.write(line.append('\n').toString());
+			if (++n % STREAM_BATCH == 0) {
+				out.flush();
+			}
+		}
+		out.write("END " + n + "\n");
+		out.flush();
+		this.served.incrementAndGet();
+	}
+
+	/**
+	 * @param e	an exception
+	 * @return its message on one line
+	 */
+	private static String oneLine(Exception e) {
+		String message = (e.getMessage() == null) ? e.toString() : e.getMessage();
+		return message.replaceAll("\\s*[\\r\\n]+\\s*", " ");
+	}
+
+	/**
+	 * @param s	a socket to close, ignoring any failure
+	 */
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	/**
+	 * Loads a database and serves it until the process is stopped.
+	 * Usage: java QueryServer schema_file data_dir [port [max_active [max_connections]]]
+	 * Each relation is loaded from data_dir/name.txt, if that file exists.
+	 * @param args	command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java QueryServer schema_file data_dir [port [max_active [max_connections]]]");
+			System.exit(1);
+		}
+		DavidDB db = new DavidDB(args[0]);
+		for (LoadStats stats : db.loadAll(args[1])) {
+			System.out.println("Loaded " + stats);
+		}
+		int port = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+		int max_active = (args.length > 3) ? Integer.parseInt(args[3]) : db.getParallelism();
+		int max_connections = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_MAX_CONNECTIONS;
+
+		QueryServer server = new QueryServer(db, port, max_connections, max_active);
+		server.start();
+		System.out.println("Serving " + args[0] + " on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+				server.getPort() + " (" + max_active + " queries at once, " + max_connections + " connections)");
+		Thread.currentThread().join();		// the server's threads are daemons
+	}
+}
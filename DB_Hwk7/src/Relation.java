@@ -1,11 +1,15 @@
 import exceptions.DBException;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import perf.QueryEvents;
 
 /**
  * This class represents a relation in DavidDB.
@@ -13,7 +17,7 @@ import java.util.Map;
  * @version 6/5/18
  */
 public class Relation extends AbstractRelation {
-	protected Map<String, AttributeMapEntry> attribute_map;
+	protected volatile Map<String, AttributeMapEntry> attribute_map;	/* replaced, never changed, so lookups need no lock */
 
 	/**
 	 * Creates an empty relation without a name
@@ -32,14 +36,30 @@ public class Relation extends AbstractRelation {
 	}
 
 	/**
-	 * Populates this relation with data from the given file.
+	 * Populates this relation with data from the given file (see: readTuples)
 	 * @param infile the name of the data file
 	 * @throws FileNotFoundException if file does not exist
 	 * @throws DBException if an attribute value does not match the attribute's type
 	 */
 	@Override
 	public void read(String infile) throws FileNotFoundException, DBException {
+		this.readTuples(infile);
+	}
+
+	/**
+	 * Populates this relation with data from the given file. The file is parsed before any
+	 * tuple is inserted, so readers are only held up while the tuples are added, and the
+	 * tuples are added as one batch (see: VersionClock.update).
+	 * @param infile the name of the data file
+	 * @return the number of tuples read from the file, or 0 if it could not be read to the end
+	 * @throws FileNotFoundException if file does not exist
+	 * @throws DBException if an attribute value does not match the attribute's type
+	 */
+	public int readTuples(String infile) throws FileNotFoundException, DBException {
 		BufferedReader fin = new BufferedReader(new FileReader(infile));
+		QueryEvents.Load event = new QueryEvents.Load();
+		event.begin();
+		List<Tuple> loaded = new ArrayList<>();
 		String line;
 		try {
 			// each line contains actual data
@@ -75,12 +95,23 @@ public class Relation extends AbstractRelation {
 							// code should not reach here
 					}
 				}
-				// add the tuple to the set
-				this.addTuple(new Tuple(tuple_values,this));
+				loaded.add(new Tuple(tuple_values,this));
 			}
 			fin.close();
+
+			// add the tuples to the set
+			this.write(() -> {
+				for (Tuple t : loaded) {
+					this.addTuple(t);
+				}
+			});
+			if (event.shouldCommit()) {
+				event.record(this.getName(), infile, loaded.size(), new File(infile).length());
+			}
+			return loaded.size();
 		} catch(IOException e) {
 			e.printStackTrace();
+			return 0;
 		}
 	}
 
@@ -89,25 +120,26 @@ public class Relation extends AbstractRelation {
 	 * @param list a list of attributes
 	 */
 	@Override
-	public void setAttributes(List<Attribute> list) {
+	public synchronized void setAttributes(List<Attribute> list) {
 		super.setAttributes(list);
-		this.attribute_map.clear();
-		for (int i = 0; i < attribute_list.size(); i++) {
-			AttributeMapEntry entry = this.attribute_map.get(this.attribute_list.get(i).getName());
+		Map<String, AttributeMapEntry> map = new HashMap<>();
+		for (int i = 0; i < list.size(); i++) {
+			AttributeMapEntry entry = map.get(list.get(i).getName());
 			if (entry == null) {
 				entry = new AttributeMapEntry(i, 0);
 			}
 			entry.count++;
 
-			AttributeMapEntry ped_entry = this.attribute_map.get(this.attribute_list.get(i).getPedanticName());
+			AttributeMapEntry ped_entry = map.get(list.get(i).getPedanticName());
 			if (ped_entry == null) {
 				ped_entry = new AttributeMapEntry(i, 0);
 			}
 			ped_entry.count++;
 
-			this.attribute_map.put(this.attribute_list.get(i).getName(), entry);
-			this.attribute_map.put(this.attribute_list.get(i).getPedanticName(), ped_entry);
+			map.put(list.get(i).getName(), entry);
+			map.put(list.get(i).getPedanticName(), ped_entry);
 		}
+		this.attribute_map = map;
 	}
 
 	/**
@@ -116,18 +148,90 @@ public class Relation extends AbstractRelation {
 	 */
 	@Override
 	public void addTuple(Tuple new_tuple) {
-		if (new_tuple != null) {
-			if (new_tuple.size() == this.attribute_list.size()) {
-				this.tuples.add(new_tuple);
-			}
-			else {
-				throw new IllegalArgumentException("Tuple size mismatch: " +
-						new_tuple.size() + " but relation contains " +
-						this.attribute_list.size() + " attributes.");
+		if (this.outsideWrite()) {
+			this.write(() -> this.addTuple(new_tuple));
+			return;
+		}
+		synchronized (this) {
+			if (new_tuple != null) {
+				if (new_tuple.size() == this.attribute_list.size()) {
+					if (this.writableTuples().add(new_tuple)) {
+						this.touch();
+					}
+				}
+				else {
+					throw new IllegalArgumentException("Tuple size mismatch: " +
+							new_tuple.size() + " but relation contains " +
+							this.attribute_list.size() + " attributes.");
+				}
 			}
 		}
 	}
 
+	/**
+	 * Creates a view of this relation: a relation with its own name and attributes whose
+	 * tuples share this relation's values rather than copying them. Each tuple is rebound to
+	 * the view (see: rebind), so that Tuple.valueOf() and compare() look names up in the
+	 * view's attributes.
+	 * @param name			name of the view
+	 * @param attr_names	short names for the view's attributes, or null to keep the current names
+	 * @return the view
+	 * @throws DBException if the number of names differs from the number of attributes
+	 */
+	public Relation view(String name, String[] attr_names) throws DBException {
+		if (attr_names != null && attr_names.length != this.attribute_list.size()) {
+			throw new DBException("Attribute size mismatch. Required: " +
+					this.attribute_list.size() + " attributes.");
+		}
+		Relation view = new Relation(name);
+		view.bag = this.bag;
+		List<Attribute> list = new ArrayList<>(this.attribute_list.size());
+		for (int i = 0; i < this.attribute_list.size(); i++) {
+			Attribute a = this.attribute_list.get(i);
+			list.add(new Attribute(view, a.getType(), (attr_names == null) ? a.getName() : attr_names[i]));
+		}
+		view.setAttributes(list);
+		view.useListStorage();	// the tuples are already distinct
+
+		Collection<Tuple> tuples = this.getTuples();
+		List<Tuple> rebound = new ArrayList<>(tuples.size());
+		int[] identity = new int[list.size()];
+		for (int i = 0; i < identity.length; i++) {
+			identity[i] = i;
+		}
+		for (Tuple t : tuples) {
+			rebound.add(rebind(t, identity, view));
+		}
+		view.addAllDistinct(rebound);
+		return view;
+	}
+
+	/**
+	 * Makes a tuple that belongs to another relation, sharing the values of the given one
+	 * @param t	the tuple
+	 * @param identity	positions 0 to t.size() - 1, shared by every tuple of a view
+	 * @param r	the relation the new tuple belongs to
+	 * @return a tuple of r with the same values as t
+	 */
+	private static Tuple rebind(Tuple t, int[] identity, Relation r) {
+		if (t.getClass() == Tuple.class) {
+			return new Tuple(t.data, r);	// the array is never modified, so it can be shared
+		}
+		return new ProjectedTuple(t, identity, r);		// values computed from other tuples
+	}
+
+	/**
+	 * Like clone(), but shares this relation's tuples copy-on-write instead of copying them.
+	 * @return an unnamed relation with a copy of this relation's attributes and the same tuples
+	 */
+	public Relation shallowCopy() {
+		Relation copy = new Relation();
+		copy.bag = this.bag;
+		copy.setAttributes(this.copyAttributes());
+		copy.shareTuples(this);
+		return copy;
+	}
+
 	/**
 	 * @return the string representation of the relation's definition
 	 */
@@ -202,11 +306,12 @@ public class Relation extends AbstractRelation {
 		ret.append(line);
 
 		// now put each tuple on a separate row
-		if (this.tuples.isEmpty()) {
+		Collection<Tuple> tuples = this.snapshot();
+		if (tuples.isEmpty()) {
 			ret.append("(Empty)\n");
 		}
 		else {
-			for (Tuple t : this.tuples) {
+			for (Tuple t : tuples) {
 				ret.append(t.toString()).append("\n");
 			}
 		}
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A point-in-time view of a database's relations (see: VersionClock). While a snapshot is
+ * open on a thread, the queries that thread runs read every relation as it was when the
+ * snapshot was opened, however it is changed in the meantime, without waiting for writers.
+ * Close it (e.g. with try-with-resources) so that the versions it keeps can be collected.
+ */
+public class Snapshot implements AutoCloseable {
+	private final VersionClock clock;
+	private final long timestamp;
+	private final Snapshot previous;	/* snapshot that was current on the thread before this one, or null */
+	private final AtomicBoolean closed;
+
+	/**
+	 * Creates an open snapshot; see VersionClock.open()
+	 * @param clock	clock of the relations it views
+	 * @param timestamp	commit timestamp of the last batch it sees
+	 * @param previous	the opening thread's current snapshot, or null
+	 */
+	Snapshot(VersionClock clock, long timestamp, Snapshot previous) {
+		this.clock = clock;
+		this.timestamp = timestamp;
+		this.previous = previous;
+		this.closed = new AtomicBoolean();
+	}
+
+	/**
+	 * @return commit timestamp of the last batch this snapshot sees
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * @return true if the snapshot was closed
+	 */
+	public boolean isClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * @return the snapshot that was current on the opening thread before this one, or null
+	 */
+	Snapshot getPrevious() {
+		return this.previous;
+	}
+
+	/**
+	 * Marks the snapshot closed
+	 * @return true if it was open
+	 */
+	boolean markClosed() {
+		return this.closed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Closes the snapshot. Its thread goes back to the snapshot that was current before, if any.
+	 */
+	@Override
+	public void close() {
+		this.clock.close(this);
+	}
+
+	/**
+	 * @return a description of the snapshot, e.g. "snapshot@42"
+	 */
+	@Override
+	public String toString() {
+		return "snapshot@" + this.timestamp + (this.isClosed() ? " (closed)" : "");
+	}
+}
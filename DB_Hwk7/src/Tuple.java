@@ -1,19 +1,20 @@
 import exceptions.DBException;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import solver.Row;
 
 /**
- * NOTE: DO NOT MODIFY THIS CLASS
- *
  * This class models a tuple in the relational data model. A tuple is an
- * ordered list of values.
+ * ordered list of values. Tuples are immutable, so each caches its hash code, and
+ * keyHash() hashes a subset of the values without building a key tuple.
  *
  * @author David
  * @version 5/26/2018
  */
-public class Tuple extends AbstractTuple implements Cloneable {
+public class Tuple extends AbstractTuple implements Cloneable, Row {
 	/** CONSTANTS */
 	/* this symbol separates the values when showing tuple's string representation */
 	public static final String COL_SEPARATOR = "|";
@@ -21,24 +22,27 @@ public class Tuple extends AbstractTuple implements Cloneable {
 	/* the number of spaces to use for tuple's string representation */
 	public static final int COL_SPACING = 16;
 
+	/* cached hash code, or 0 if not yet computed; tuples are immutable, so racing threads
+	 * can only ever store the same value */
+	private int hash;
+
 	/**
-	 * Creates a tuple using the given array of values
+	 * Creates a tuple using the given list of values
 	 * @param values
 	 * @param r	relation to which this tuple belongs
 	 */
 	public Tuple(List<Comparable> values, AbstractRelation r) {
-		this.data = values;
-		this.relation = r;
+		this((values == null) ? null : values.toArray(new Comparable[values.size()]), r);
 	}
 
 	/**
-	 * Creates a tuple using the given array of values
+	 * Creates a tuple using the given array of values. The array is kept rather than
+	 * copied, so it must not be modified afterwards.
 	 * @param values
 	 * @param r	relation to which this tuple belongs
 	 */
     public Tuple(Comparable[] values, AbstractRelation r) {
-		this.data = new ArrayList<>(Arrays.asList(values));
-		this.relation = r;
+		super(values, r);
     }
 
 	/**
@@ -47,12 +51,30 @@ public class Tuple extends AbstractTuple implements Cloneable {
 	 * @return the concatenation of the current tuple and the given tuple
 	 */
 	public Tuple concat(Tuple other) {
-    	ArrayList<Comparable> tmp = new ArrayList<>();
-    	tmp.addAll(this.data);
-    	tmp.addAll(other.data);
+		int size = this.size();
+		Comparable[] tmp = new Comparable[size + other.size()];
+		if (this.data != null && other.data != null) {
+			System.arraycopy(this.data, 0, tmp, 0, size);
+			System.arraycopy(other.data, 0, tmp, size, other.data.length);
+		}
+		else {
+			for (int i = 0; i < size; i++) {
+				tmp[i] = this.get(i);
+			}
+			for (int i = 0; i < other.size(); i++) {
+				tmp[size + i] = other.get(i);
+			}
+		}
 		return new Tuple(tmp,null);
 	}
 
+	/**
+	 * @return a read-only list of the values in this tuple
+	 */
+	public List<Comparable> values() {
+		return Collections.unmodifiableList(Arrays.asList(this.data));
+	}
+
 	/**
 	 * Determines if two tuples are equal (all attribute values must match)
 	 * @param other reference to another tuple
@@ -60,12 +82,19 @@ public class Tuple extends AbstractTuple implements Cloneable {
 	 */
 	@Override
     public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof Tuple)) {
+			return false;
+		}
         Tuple other_tuple = (Tuple) other;
-        if (this.data.size() != other_tuple.data.size()) {
+		// cached hash codes rule out almost every mismatch before any value is compared
+        if (this.size() != other_tuple.size() || this.hashCode() != other_tuple.hashCode()) {
         	return false;
 		}
-		for (int i = 0; i < this.data.size(); i++) {
-			if (!this.data.get(i).equals(other_tuple.data.get(i))) {
+		for (int i = 0; i < this.size(); i++) {
+			if (!Objects.equals(this.get(i), other_tuple.get(i))) {
 				return false;
 			}
 		}
@@ -81,19 +110,19 @@ public class Tuple extends AbstractTuple implements Cloneable {
     public String toString() {
         StringBuilder str = new StringBuilder();
         str.append(Tuple.COL_SEPARATOR);
-        for (int i = 0; i < this.data.size(); i++) {
-			String val = this.data.get(i).toString();
+        for (int i = 0; i < this.size(); i++) {
+			String val = this.get(i).toString();
 			if (val.length() > Tuple.COL_SPACING) {
 				val = val.substring(0, Tuple.COL_SPACING);
 			}
 			str.append(val);
 
             // deal with spacing
-			int fill_len = Tuple.COL_SPACING - this.data.get(i).toString().length();
+			int fill_len = Tuple.COL_SPACING - this.get(i).toString().length();
 			for (int fill = 0; fill < fill_len; fill++) {
 				str.append(" ");
 			}
-            if (i < this.data.size()-1) {
+            if (i < this.size()-1) {
                 str.append(Tuple.COL_SEPARATOR);
             }
         }
@@ -103,17 +132,54 @@ public class Tuple extends AbstractTuple implements Cloneable {
 
 	/**
 	 * (Hwk 2 addition)
+	 * Combines the value hashes in order, so permutations of the same values hash
+	 * differently, then mixes the bits (murmur3 finalizer) to spread them across buckets.
+	 * Computed once and cached.
 	 * @return a hashcode for this tuple
 	 */
 	@Override
 	public int hashCode() {
-		int code = 0;
-		for (Comparable val : this.data) {
-			code += val.hashCode();
+		int code = this.hash;
+		if (code == 0) {
+			code = 1;
+			for (int i = 0; i < this.size(); i++) {
+				code = 31 * code + Objects.hashCode(this.get(i));
+			}
+			code = mix(code);
+			this.hash = code;
 		}
 		return code;
 	}
 
+	/**
+	 * Hashes the values at the given positions the same way hashCode() hashes a whole
+	 * tuple, without building a key object. Tuples with equal values at their key
+	 * positions get equal key hashes.
+	 * @param positions	positions of the key values
+	 * @return a hashcode for the key
+	 */
+	public int keyHash(int[] positions) {
+		int code = 1;
+		for (int pos : positions) {
+			code = 31 * code + Objects.hashCode(this.get(pos));
+		}
+		return mix(code);
+	}
+
+	/**
+	 * murmur3's 32-bit finalizer: spreads every input bit across the whole hash
+	 * @param code	a hash code
+	 * @return the mixed hash code
+	 */
+	private static int mix(int code) {
+		code ^= code >>> 16;
+		code *= 0x85ebca6b;
+		code ^= code >>> 13;
+		code *= 0xc2b2ae35;
+		code ^= code >>> 16;
+		return code;
+	}
+
 	/**
 	 * (Hwk 3 addition)
 	 * Looks up and retrieves the value of the given attribute name.
@@ -125,7 +191,7 @@ public class Tuple extends AbstractTuple implements Cloneable {
 		if (this.relation == null) {
 			throw new DBException("Tuple's relation is not set.");
 		}
-		return this.data.get(((Relation)this.relation).lookup(attr_name));
+		return this.get(((Relation)this.relation).lookup(attr_name));
 	}
 	
 	
@@ -0,0 +1,133 @@
+import exceptions.DBException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temporary on-disk storage for tuples that should not be held in memory all at once.
+ * Tuples are hash partitioned across a number of files, so that equal tuples always
+ * land in the same partition, and are read back one partition at a time.
+ */
+public class TupleSpill implements Closeable {
+	/* value tags in the spill file format */
+	private static final byte NULL = 0;
+	private static final byte NUMERIC = 1;
+	private static final byte TEXT = 2;
+
+	private final File[] files;
+	private final DataOutputStream[] outs;
+	private long spilled;
+
+	/**
+	 * Creates the given number of empty partition files
+	 * @param partitions	number of partitions
+	 * @throws IOException if a temporary file cannot be created
+	 */
+	public TupleSpill(int partitions) throws IOException {
+		this.files = new File[partitions];
+		this.outs = new DataOutputStream[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.files[i] = File.createTempFile("daviddb-spill-", ".bin");
+			this.files[i].deleteOnExit();
+			this.outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.files[i])));
+		}
+		this.spilled = 0;
+	}
+
+	/**
+	 * Writes a tuple to the partition chosen by its hash code
+	 * @param t	the tuple
+	 * @throws IOException if the write fails
+	 * @throws DBException if the tuple holds a value that is neither NUMERIC nor TEXT
+	 */
+	public void write(Tuple t) throws IOException {
+		DataOutputStream out = this.outs[Math.floorMod(t.hashCode(), this.outs.length)];
+		out.writeInt(t.size());
+		for (int i = 0; i < t.size(); i++) {
+			Comparable val = t.get(i);
+			if (val == null) {
+				out.writeByte(NULL);
+			}
+			else if (val instanceof Double) {
+				out.writeByte(NUMERIC);
+				out.writeDouble((Double) val);
+			}
+			else if (val instanceof String) {
+				out.writeByte(TEXT);
+				out.writeUTF((String) val);
+			}
+			else {
+				throw new DBException("Cannot spill value of type " + val.getClass().getSimpleName());
+			}
+		}
+		this.spilled++;
+	}
+
+	/**
+	 * Reads every tuple written to a partition. Must be called after all writes.
+	 * @param p	the partition
+	 * @param r	relation to which the tuples read back should belong
+	 * @return the tuples in the partition
+	 * @throws IOException if the read fails
+	 */
+	public List<Tuple> readPartition(int p, AbstractRelation r) throws IOException {
+		this.outs[p].flush();
+		List<Tuple> list = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.files[p])))) {
+			while (true) {
+				int size;
+				try {
+					size = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				Comparable[] values = new Comparable[size];
+				for (int i = 0; i < size; i++) {
+					byte tag = in.readByte();
+					values[i] = (tag == NUMERIC) ? (Comparable) in.readDouble() :
+							(tag == TEXT) ? in.readUTF() : null;
+				}
+				list.add(new Tuple(values, r));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return number of partitions
+	 */
+	public int getPartitions() {
+		return this.files.length;
+	}
+
+	/**
+	 * @return number of tuples written so far
+	 */
+	public long getSpilledTuples() {
+		return this.spilled;
+	}
+
+	/**
+	 * Closes and deletes the partition files
+	 */
+	@Override
+	public void close() {
+		for (int i = 0; i < this.files.length; i++) {
+			try {
+				this.outs[i].close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			this.files[i].delete();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Multi-version concurrency control for the relations of one database.
+ *
+ * Writes to the relations registered with a clock run one at a time, each as a batch with a
+ * commit timestamp (see: update); a single change such as addTuple() is a batch of its own.
+ * A snapshot (see: open) sees every batch committed before it was opened and none of those
+ * committed after, in all of the relations, so a query run in a snapshot reads a consistent
+ * point-in-time view no matter what is written meanwhile.
+ *
+ * A committed batch leaves the tuples it replaced as they were (the copy-on-write described in
+ * AbstractRelation) and keeps them as an older version of the relation if an open snapshot
+ * sees them; a batch that throws is undone by going back to the last committed tuples.
+ * Opening a snapshot takes no lock, so it never waits for a running batch, and readers in a
+ * snapshot pick the newest version at or before their timestamp without taking any lock. When
+ * snapshots close, versions that no open snapshot sees are dropped in the background. With no
+ * snapshot open, only the last committed tuples of each relation are kept, which are its
+ * current tuples unless a batch is running.
+ */
+public class VersionClock {
+	/* drops obsolete versions; one daemon thread is shared by all clocks */
+	private static final ExecutorService collector = Executors.newSingleThreadExecutor(task -> {
+		Thread t = new Thread(task, "daviddb-version-collector");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ReentrantLock writer;		/* held by the running batch, and while versions are collected; fair, so batches run in turn */
+	private final List<AbstractRelation> relations;
+	private final Set<AbstractRelation> changed;	/* relations changed by the running batch; guarded by writer */
+	private final Set<Snapshot> open;
+	private final ThreadLocal<Snapshot> current;	/* innermost snapshot open on each thread */
+	private final AtomicBoolean collecting;		/* a collection is queued */
+	private volatile long committed;	/* timestamp of the last committed batch */
+
+	/**
+	 * Creates a clock with no relations
+	 */
+	public VersionClock() {
+		this.writer = new ReentrantLock(true);
+		this.relations = new CopyOnWriteArrayList<>();
+		this.changed = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.open = ConcurrentHashMap.newKeySet();
+		this.current = new ThreadLocal<>();
+		this.collecting = new AtomicBoolean();
+		this.committed = 0;
+	}
+
+	/**
+	 * Puts a relation under this clock: from now on its writes are committed in batches and
+	 * snapshots see it as of their timestamp
+	 * @param r	the relation
+	 */
+	public void register(AbstractRelation r) {
+		this.writer.lock();
+		try {
+			r.versionWith(this, this.committed);
+			this.relations.add(r);
+		} finally {
+			this.writer.unlock();
+		}
+	}
+
+	/**
+	 * @return timestamp of the last committed batch
+	 */
+	public long getCommitted() {
+		return this.committed;
+	}
+
+	/**
+	 * Runs changes to the registered relations as one batch: a snapshot sees either all of
+	 * them or none. Batches run one at a time; a batch started inside another joins it.
+	 * If the changes throw, the tuples of every relation they changed go back to those last
+	 * committed, nothing is committed, and the exception is rethrown. Changes to names and
+	 * attributes are not undone.
+	 * @param changes	the changes
+	 */
+	public void update(Runnable changes) {
+		if (this.writer.isHeldByCurrentThread()) {
+			changes.run();
+			return;
+		}
+		this.writer.lock();
+		try {
+			try {
+				changes.run();
+			} catch (Throwable e) {
+				for (AbstractRelation r : this.changed) {
+					r.rollbackVersion();
+				}
+				throw e;
+			}
+			long ts = this.committed + 1;
+			for (AbstractRelation r : this.changed) {
+				r.commitVersion(ts);
+			}
+			this.committed = ts;	// makes the batch visible to snapshots opened from now on
+
+			// only now look for open snapshots: one that registers later either sees ts, or finds
+			// that ts was committed after it read the timestamp and opens again (see: open)
+			long[] open = this.openTimestamps();
+			for (AbstractRelation r : this.changed) {
+				r.pruneVersions(open);
+			}
+		} finally {
+			this.changed.clear();
+			this.writer.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the calling thread is running a batch
+	 */
+	public boolean isWriting() {
+		return this.writer.isHeldByCurrentThread();
+	}
+
+	/**
+	 * Records a change to a relation by the running batch; called with the relation's monitor held
+	 * @param r	the relation
+	 */
+	void changed(AbstractRelation r) {
+		this.changed.add(r);
+	}
+
+	/**
+	 * Opens a snapshot of the registered relations as of the last committed batch, and makes it
+	 * the calling thread's current snapshot until it is closed. Does not wait for a running
+	 * batch: the snapshot reads the last commit timestamp and registers, and if a batch committed
+	 * in between (and so may have pruned versions without seeing it), it tries again.
+	 * @return the snapshot
+	 */
+	public Snapshot open() {
+		Snapshot previous = this.current.get();
+		while (true) {
+			long ts = this.committed;
+			Snapshot s = new Snapshot(this, ts, previous);
+			this.open.add(s);
+			if (this.committed == ts) {		// any batch committing from now on sees s before pruning
+				this.current.set(s);
+				return s;
+			}
+			this.open.remove(s);
+		}
+	}
+
+	/**
+	 * @return the calling thread's current snapshot, or null if it has none open
+	 */
+	public Snapshot current() {
+		return this.current.get();
+	}
+
+	/**
+	 * Runs a task on the calling thread as if the given snapshot were its current one, so that
+	 * work handed to another thread reads what the thread that opened the snapshot would
+	 * @param s	the snapshot, which must stay open until the task returns; null to run the
+	 * 			task outside any snapshot
+	 * @param task	the task
+	 * @return the task's result
+	 */
+	public <T> T within(Snapshot s, Supplier<T> task) {
+		Snapshot previous = this.current.get();
+		if (s == previous) {
+			return task.get();
+		}
+		if (s == null) {
+			this.current.remove();
+		}
+		else {
+			this.current.set(s);
+		}
+		try {
+			return task.get();
+		} finally {
+			if (previous == null) {
+				this.current.remove();
+			}
+			else {
+				this.current.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Closes a snapshot, and queues the collection of the versions only it could see
+	 * @param s	the snapshot; closing it again does nothing
+	 */
+	void close(Snapshot s) {
+		if (!s.markClosed()) {
+			return;
+		}
+		this.open.remove(s);
+		if (this.current.get() == s) {
+			Snapshot previous = s.getPrevious();
+			while (previous != null && previous.isClosed()) {
+				previous = previous.getPrevious();
+			}
+			if (previous == null) {
+				this.current.remove();
+			}
+			else {
+				this.current.set(previous);
+			}
+		}
+		if (this.collecting.compareAndSet(false, true)) {
+			collector.execute(() -> {
+				this.collecting.set(false);
+				this.collect();
+			});
+		}
+	}
+
+	/**
+	 * @return number of snapshots open on any thread
+	 */
+	public int getOpenSnapshots() {
+		return this.open.size();
+	}
+
+	/**
+	 * Drops the versions that no open snapshot can see: each snapshot needs only the newest
+	 * version committed at or before its timestamp. Runs in the background after snapshots
+	 * close; waits for a running batch to commit.
+	 */
+	public void collect() {
+		this.writer.lock();
+		try {
+			long[] open = this.openTimestamps();
+			for (AbstractRelation r : this.relations) {
+				r.pruneVersions(open);
+			}
+		} finally {
+			this.writer.unlock();
+		}
+	}
+
+	/**
+	 * Snapshots opening meanwhile may be missed; they see the newest versions, which are never
+	 * pruned, or open again (see: open)
+	 * @return timestamps of the open snapshots, in ascending order
+	 */
+	private long[] openTimestamps() {
+		long[] open = new long[this.open.size()];
+		int n = 0;
+		for (Snapshot s : this.open) {
+			if (n == open.length) {
+				open = Arrays.copyOf(open, 2 * n + 1);
+			}
+			open[n++] = s.getTimestamp();
+		}
+		open = Arrays.copyOf(open, n);
+		Arrays.sort(open);
+		return open;
+	}
+
+	/**
+	 * @return number of versions kept for snapshots besides the newest, over all registered relations
+	 */
+	public int getVersionCount() {
+		int count = 0;
+		for (AbstractRelation r : this.relations) {
+			count += r.getVersionCount();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,69 @@
+package perf;
+
+/**
+ * A Bloom filter over 32-bit hash codes. A negative answer from mightContain() is
+ * always right; a positive answer is wrong with a small probability that depends on
+ * the number of bits per key.
+ */
+public class BloomFilter {
+	private final long[] bits;
+	private final int num_bits;
+	private final int num_hashes;
+
+	/**
+	 * Creates an empty filter sized for the given number of keys
+	 * @param expected_keys	number of keys that will be added
+	 * @param bits_per_key	bits to allocate per key; 10 gives roughly a 1% false positive rate
+	 */
+	public BloomFilter(int expected_keys, int bits_per_key) {
+		long wanted = Math.max(64L, (long) expected_keys * bits_per_key);
+		int words = (int) Math.min((wanted + 63) / 64, Integer.MAX_VALUE / 64);
+		this.bits = new long[words];
+		this.num_bits = words * 64;
+		// k = ln(2) * bits per key minimizes the false positive rate
+		this.num_hashes = Math.max(1, (int) Math.round(bits_per_key * 0.693));
+	}
+
+	/**
+	 * Adds a key to the filter
+	 * @param hash	the key's hash code
+	 */
+	public void add(int hash) {
+		int h1 = hash;
+		int h2 = secondHash(hash);
+		for (int i = 0; i < this.num_hashes; i++) {
+			int bit = Math.floorMod(h1 + i * h2, this.num_bits);
+			this.bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Tests whether a key may have been added to the filter
+	 * @param hash	the key's hash code
+	 * @return false if the key was definitely never added, true if it may have been
+	 */
+	public boolean mightContain(int hash) {
+		int h1 = hash;
+		int h2 = secondHash(hash);
+		for (int i = 0; i < this.num_hashes; i++) {
+			int bit = Math.floorMod(h1 + i * h2, this.num_bits);
+			if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Derives an independent second hash for double hashing
+	 * @param hash	the key's hash code
+	 * @return an odd hash, so that successive probes never repeat a bit early
+	 */
+	private static int secondHash(int hash) {
+		int h = hash * 0x9e3779b9;
+		h ^= h >>> 15;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h | 1;
+	}
+}
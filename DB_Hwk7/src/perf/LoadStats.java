@@ -0,0 +1,71 @@
+package perf;
+
+/**
+ * Records how long loading one relation from its data file took, and how much it loaded.
+ */
+public class LoadStats {
+	private final String relation;
+	private final String file;
+	private final long rows;
+	private final long bytes;
+	private final double millis;
+
+	/**
+	 * @param relation	name of the relation
+	 * @param file		path of the data file
+	 * @param rows		number of tuples read from the file
+	 * @param bytes		size of the file
+	 * @param millis	wall time to read, parse and store the tuples, in milliseconds
+	 */
+	public LoadStats(String relation, String file, long rows, long bytes, double millis) {
+		this.relation = relation;
+		this.file = file;
+		this.rows = rows;
+		this.bytes = bytes;
+		this.millis = millis;
+	}
+
+	/**
+	 * @return name of the relation
+	 */
+	public String getRelation() {
+		return this.relation;
+	}
+
+	/**
+	 * @return path of the data file
+	 */
+	public String getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return number of tuples read from the file
+	 */
+	public long getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * @return size of the file, in bytes
+	 */
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return wall time to load the relation, in milliseconds
+	 */
+	public double getMillis() {
+		return this.millis;
+	}
+
+	/**
+	 * @return a one-line summary of the load
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s: %d rows (%d bytes) from %s in %.1f ms",
+				this.relation, this.rows, this.bytes, this.file, this.millis);
+	}
+}
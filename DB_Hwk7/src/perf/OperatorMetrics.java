@@ -0,0 +1,263 @@
+package perf;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What one run of an operator cost: wall time, tuples in and out, bytes allocated, and
+ * the size of any hash tables it built or tuples it spilled to disk. Operators called by
+ * another operator (or whose input another operator produced) are its children, so a
+ * query's metrics form a tree that mirrors its operators' nesting.
+ */
+public class OperatorMetrics {
+	/* allocation counter of the current thread, or null if the JVM does not provide one */
+	private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+	private final String operator;
+	private final String inputs;
+	private final long rows_in;
+	private final List<OperatorMetrics> children;
+
+	private long start_nanos;
+	private long start_bytes;
+	private long adopted_nanos;	/* time and bytes of children that ran before this operator started */
+	private long adopted_bytes;
+	private long wall_nanos;
+	private long bytes;			/* bytes allocated by the calling thread, or -1 if unknown */
+	private long rows_out;
+	private long hash_entries;
+	private long spilled;
+	private boolean cache_hit;
+
+	/**
+	 * Creates the metrics of an operator run that has not started yet
+	 * @param operator	name of the operator, e.g. "hashJoin"
+	 * @param inputs	description of its inputs, e.g. "customers, payments"
+	 * @param rows_in	number of tuples in all of its inputs
+	 */
+	public OperatorMetrics(String operator, String inputs, long rows_in) {
+		this.operator = operator;
+		this.inputs = inputs;
+		this.rows_in = rows_in;
+		this.children = new ArrayList<>();
+		this.bytes = -1;
+	}
+
+	/**
+	 * Starts the clock and the allocation counter
+	 */
+	public void start() {
+		this.start_bytes = allocatedBytes();
+		this.start_nanos = System.nanoTime();
+	}
+
+	/**
+	 * Stops the clock and the allocation counter
+	 * @param rows_out	number of tuples produced
+	 */
+	public void stop(long rows_out) {
+		this.wall_nanos = System.nanoTime() - this.start_nanos + this.adopted_nanos;
+		long end_bytes = allocatedBytes();
+		this.bytes = (end_bytes < 0 || this.start_bytes < 0) ? -1 : end_bytes - this.start_bytes + this.adopted_bytes;
+		this.rows_out = rows_out;
+	}
+
+	/**
+	 * @param child	metrics of an operator that ran on behalf of this one
+	 */
+	public void addChild(OperatorMetrics child) {
+		this.children.add(child);
+	}
+
+	/**
+	 * Makes a finished operator a child of this one because it produced one of this operator's
+	 * inputs; its time and allocations are included in this operator's
+	 * @param child	metrics of the operator that produced an input
+	 */
+	public void adoptChild(OperatorMetrics child) {
+		this.children.add(child);
+		this.adopted_nanos += child.wall_nanos;
+		this.adopted_bytes += Math.max(child.bytes, 0);
+	}
+
+	/**
+	 * @param child	metrics of an operator to move elsewhere in the tree
+	 * @return true if it was a child of this operator
+	 */
+	public boolean removeChild(OperatorMetrics child) {
+		for (int i = 0; i < this.children.size(); i++) {
+			if (this.children.get(i) == child) {
+				this.children.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a hash table built by the operator
+	 * @param entries	number of entries in the table
+	 */
+	public void addHashEntries(long entries) {
+		this.hash_entries += entries;
+	}
+
+	/**
+	 * Records tuples written to disk by the operator
+	 * @param tuples	number of tuples spilled
+	 */
+	public void addSpilled(long tuples) {
+		this.spilled += tuples;
+	}
+
+	/**
+	 * Marks the result as taken from the result cache rather than computed
+	 */
+	public void setCacheHit() {
+		this.cache_hit = true;
+	}
+
+	/**
+	 * @return name of the operator
+	 */
+	public String getOperator() {
+		return this.operator;
+	}
+
+	/**
+	 * @return description of the operator's inputs
+	 */
+	public String getInputs() {
+		return this.inputs;
+	}
+
+	/**
+	 * @return the operators that ran on behalf of this one, in the order they started
+	 */
+	public List<OperatorMetrics> getChildren() {
+		return Collections.unmodifiableList(this.children);
+	}
+
+	/**
+	 * @return wall time (in nanoseconds), including that of the children
+	 */
+	public long getWallNanos() {
+		return this.wall_nanos;
+	}
+
+	/**
+	 * @return wall time (in nanoseconds) spent in this operator itself, excluding its children
+	 */
+	public long getSelfNanos() {
+		long self = this.wall_nanos;
+		for (OperatorMetrics child : this.children) {
+			self -= child.wall_nanos;
+		}
+		return Math.max(self, 0);
+	}
+
+	/**
+	 * @return number of tuples in all of the operator's inputs
+	 */
+	public long getRowsIn() {
+		return this.rows_in;
+	}
+
+	/**
+	 * @return number of tuples produced
+	 */
+	public long getRowsOut() {
+		return this.rows_out;
+	}
+
+	/**
+	 * @return bytes allocated by the calling thread (not by parallel workers), including the
+	 * 			children, or -1 if the JVM cannot count allocations
+	 */
+	public long getBytesAllocated() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return number of entries in the hash tables the operator built or probed
+	 */
+	public long getHashEntries() {
+		return this.hash_entries;
+	}
+
+	/**
+	 * @return number of tuples the operator spilled to disk
+	 */
+	public long getSpilled() {
+		return this.spilled;
+	}
+
+	/**
+	 * @return true if the result came from the result cache
+	 */
+	public boolean isCacheHit() {
+		return this.cache_hit;
+	}
+
+	/**
+	 * @return the tree as EXPLAIN ANALYZE output, one operator per line, children indented
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		this.append(sb, "");
+		return sb.toString();
+	}
+
+	/**
+	 * @param sb	builder to append to
+	 * @param indent	indentation of this operator
+	 */
+	private void append(StringBuilder sb, String indent) {
+		sb.append(indent).append(this.operator);
+		if (this.inputs != null && !this.inputs.isEmpty()) {
+			sb.append(" ").append(this.inputs);
+		}
+		sb.append(String.format(" (time=%.3f ms self=%.3f ms rows in=%d out=%d",
+				this.wall_nanos / 1000000.0, this.getSelfNanos() / 1000000.0, this.rows_in, this.rows_out));
+		if (this.bytes >= 0) {
+			sb.append(String.format(" alloc=%.1f KB", this.bytes / 1024.0));
+		}
+		if (this.hash_entries > 0) {
+			sb.append(" hash=").append(this.hash_entries);
+		}
+		if (this.spilled > 0) {
+			sb.append(" spilled=").append(this.spilled);
+		}
+		if (this.cache_hit) {
+			sb.append(" cached");
+		}
+		sb.append(")").append(System.lineSeparator());
+		for (OperatorMetrics child : this.children) {
+			child.append(sb, indent + "  ");
+		}
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, or -1 if unknown
+	 */
+	private static long allocatedBytes() {
+		return (THREADS == null) ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return the JVM's per-thread allocation counter, or null if it has none
+	 */
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+			if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+				return counter;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,278 @@
+package perf;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by the operators, so that a slow query can be diagnosed
+ * from a recording (e.g. java -XX:StartFlightRecording=filename=db.jfr ...) alongside GC and
+ * allocation events. Each event's duration covers the work it describes. An operator creates
+ * an event, calls begin() before the work and record(...) after it, guarded by shouldCommit()
+ * so that the arguments (relation names, attribute lists, file sizes) are only built for events
+ * that will be written; when the event is not enabled, the JIT removes the rest.
+ */
+public final class QueryEvents {
+	private QueryEvents() {
+	}
+
+	@Name("daviddb.Scan")
+	@Label("Scan")
+	@Category({"DavidDB", "Operator"})
+	@Description("Tuples of a relation tested against a selection's condition")
+	@StackTrace(false)
+	public static class Scan extends Event {
+		@Label("Relation")
+		String relation;
+
+		@Label("Tuples Read")
+		long rowsIn;
+
+		@Label("Tuples Matched")
+		long rowsOut;
+
+		@Label("Indexed")
+		@Description("Whether only the tuples found by a hash index lookup were read")
+		boolean indexed;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String relation, long rowsIn, long rowsOut, boolean indexed) {
+			if (this.shouldCommit()) {
+				this.relation = relation;
+				this.rowsIn = rowsIn;
+				this.rowsOut = rowsOut;
+				this.indexed = indexed;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.Select")
+	@Label("Select")
+	@Category({"DavidDB", "Operator"})
+	@Description("A selection, or a run of a prepared query")
+	public static class Select extends Event {
+		@Label("Relation")
+		String relation;
+
+		@Label("Condition")
+		String condition;
+
+		@Label("Tuples In")
+		long rowsIn;
+
+		@Label("Tuples Out")
+		long rowsOut;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String relation, String condition, long rowsIn, long rowsOut) {
+			if (this.shouldCommit()) {
+				this.relation = relation;
+				this.condition = condition;
+				this.rowsIn = rowsIn;
+				this.rowsOut = rowsOut;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.JoinBuild")
+	@Label("Join Build")
+	@Category({"DavidDB", "Operator"})
+	@Description("A join hashing (or sorting) its build side")
+	@StackTrace(false)
+	public static class JoinBuild extends Event {
+		@Label("Operator")
+		String operator;
+
+		@Label("Relation")
+		String relation;
+
+		@Label("Tuples")
+		long rows;
+
+		@Label("Hash Entries")
+		long hashEntries;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String operator, String relation, long rows, long hashEntries) {
+			if (this.shouldCommit()) {
+				this.operator = operator;
+				this.relation = relation;
+				this.rows = rows;
+				this.hashEntries = hashEntries;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.JoinProbe")
+	@Label("Join Probe")
+	@Category({"DavidDB", "Operator"})
+	@Description("A join streaming its probe side past the build side")
+	@StackTrace(false)
+	public static class JoinProbe extends Event {
+		@Label("Operator")
+		String operator;
+
+		@Label("Relation")
+		String relation;
+
+		@Label("Tuples In")
+		long rowsIn;
+
+		@Label("Tuples Out")
+		long rowsOut;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String operator, String relation, long rowsIn, long rowsOut) {
+			if (this.shouldCommit()) {
+				this.operator = operator;
+				this.relation = relation;
+				this.rowsIn = rowsIn;
+				this.rowsOut = rowsOut;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.Aggregate")
+	@Label("Aggregate")
+	@Category({"DavidDB", "Operator"})
+	public static class Aggregate extends Event {
+		@Label("Relation")
+		String relation;
+
+		@Label("Functions")
+		String functions;
+
+		@Label("Groups")
+		String groups;
+
+		@Label("Tuples In")
+		long rowsIn;
+
+		@Label("Groups Out")
+		long rowsOut;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String relation, String functions, String groups, long rowsIn, long rowsOut) {
+			if (this.shouldCommit()) {
+				this.relation = relation;
+				this.functions = functions;
+				this.groups = groups;
+				this.rowsIn = rowsIn;
+				this.rowsOut = rowsOut;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.Sort")
+	@Label("Sort")
+	@Category({"DavidDB", "Operator"})
+	public static class Sort extends Event {
+		@Label("Relation")
+		String relation;
+
+		@Label("Attributes")
+		String attributes;
+
+		@Label("Tuples")
+		long rows;
+
+		@Label("Limit")
+		@Description("Number of tuples kept, or -1 if all of them are")
+		long limit;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String relation, String attributes, long rows, long limit) {
+			if (this.shouldCommit()) {
+				this.relation = relation;
+				this.attributes = attributes;
+				this.rows = rows;
+				this.limit = limit;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.Spill")
+	@Label("Spill")
+	@Category({"DavidDB", "Operator"})
+	@Description("Tuples written to temporary files because they did not fit the in-memory threshold")
+	public static class Spill extends Event {
+		@Label("Operator")
+		String operator;
+
+		@Label("Relation")
+		String relation;
+
+		@Label("Partitions")
+		int partitions;
+
+		@Label("Tuples")
+		long rows;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String operator, String relation, int partitions, long rows) {
+			if (this.shouldCommit()) {
+				this.operator = operator;
+				this.relation = relation;
+				this.partitions = partitions;
+				this.rows = rows;
+				this.commit();
+			}
+		}
+	}
+
+	@Name("daviddb.Load")
+	@Label("Load")
+	@Category({"DavidDB", "Storage"})
+	@Description("A relation populated from a data file")
+	public static class Load extends Event {
+		@Label("Relation")
+		String relation;
+
+		@Label("File")
+		String file;
+
+		@Label("Tuples")
+		long rows;
+
+		@Label("File Size")
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Commits the event with the given values, if it is enabled
+		 */
+		public void record(String relation, String file, long rows, long bytes) {
+			if (this.shouldCommit()) {
+				this.relation = relation;
+				this.file = file;
+				this.rows = rows;
+				this.bytes = bytes;
+				this.commit();
+			}
+		}
+	}
+}
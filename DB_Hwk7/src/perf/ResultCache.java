@@ -0,0 +1,156 @@
+package perf;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A size-bounded cache that evicts its least recently used entries first.
+ * The cache is bounded both by number of entries and by an estimate of the
+ * bytes held by the cached values, and keeps hit/miss counts. Every method
+ * locks the cache, as even a lookup reorders the entries.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ResultCache<K, V> {
+	private final int max_entries;
+	private final long max_bytes;
+	private final ToLongFunction<V> weigher;
+	private final LinkedHashMap<K, V> entries;
+	private final Map<K, Long> weights;		/* each entry's weight when it was put, as its value may change since */
+
+	private long bytes_held;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates an empty cache.
+	 * @param max_entries	maximum number of entries held at once
+	 * @param max_bytes		maximum estimated size (in bytes) of all entries held at once
+	 * @param weigher		estimates the size (in bytes) of a value
+	 */
+	public ResultCache(int max_entries, long max_bytes, ToLongFunction<V> weigher) {
+		this.max_entries = max_entries;
+		this.max_bytes = max_bytes;
+		this.weigher = weigher;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);	// access order gives us LRU
+		this.weights = new HashMap<>();
+	}
+
+	/**
+	 * Looks up a value, marking it as most recently used
+	 * @param key	the key to look up
+	 * @return the cached value, or null if not cached
+	 */
+	public synchronized V get(K key) {
+		V value = this.entries.get(key);
+		if (value == null) {
+			this.misses++;
+		}
+		else {
+			this.hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Caches a value, evicting least recently used entries until the cache is within bounds.
+	 * Values that are larger than the whole cache are not stored.
+	 * @param key	the key
+	 * @param value	the value to cache
+	 */
+	public synchronized void put(K key, V value) {
+		long size = this.weigher.applyAsLong(value);
+		this.invalidate(key);
+		if (size > this.max_bytes || this.max_entries <= 0) {
+			return;
+		}
+		this.entries.put(key, value);
+		this.weights.put(key, size);
+		this.bytes_held += size;
+
+		// evict from the least recently used end
+		Iterator<Map.Entry<K, V>> it = this.entries.entrySet().iterator();
+		while (it.hasNext() && (this.entries.size() > this.max_entries || this.bytes_held > this.max_bytes)) {
+			Map.Entry<K, V> eldest = it.next();
+			this.bytes_held -= this.weights.remove(eldest.getKey());
+			it.remove();
+			this.evictions++;
+		}
+	}
+
+	/**
+	 * Removes the entry with the given key, if cached
+	 * @param key	the key
+	 */
+	public synchronized void invalidate(K key) {
+		if (this.entries.remove(key) != null) {
+			this.bytes_held -= this.weights.remove(key);
+		}
+	}
+
+	/**
+	 * Removes every entry. Hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.weights.clear();
+		this.bytes_held = 0;
+	}
+
+	/**
+	 * @return number of entries currently cached
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return estimated number of bytes held by the cached values, as weighed when they were cached
+	 */
+	public synchronized long getBytesHeld() {
+		return this.bytes_held;
+	}
+
+	/**
+	 * @return number of lookups that found a value
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return number of lookups that found nothing
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return number of entries evicted to stay within bounds
+	 */
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * @return fraction of lookups that found a value, or 0 if there were no lookups
+	 */
+	public synchronized double getHitRate() {
+		long lookups = this.hits + this.misses;
+		return (lookups == 0) ? 0.0 : (double) this.hits / lookups;
+	}
+
+	/**
+	 * @return a summary of the cache's metrics
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("entries=%d bytes=%d hits=%d misses=%d hitRate=%.3f evictions=%d",
+				this.size(), this.bytes_held, this.hits, this.misses, this.getHitRate(), this.evictions);
+	}
+}
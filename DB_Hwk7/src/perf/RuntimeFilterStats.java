@@ -0,0 +1,77 @@
+package perf;
+
+/**
+ * Counts how many probe-side tuples a join's runtime filter examined and rejected.
+ */
+public class RuntimeFilterStats {
+	private final String join;
+	private final long build_keys;
+	private long probed;
+	private long rejected;
+
+	/**
+	 * @param join			description of the join, e.g. "hashJoin(customers, payments)"
+	 * @param build_keys	number of keys added to the filter
+	 */
+	public RuntimeFilterStats(String join, long build_keys) {
+		this.join = join;
+		this.build_keys = build_keys;
+		this.probed = 0;
+		this.rejected = 0;
+	}
+
+	/**
+	 * Records the outcome of testing one probe-side tuple
+	 * @param passed	whether the tuple passed the filter
+	 */
+	public void record(boolean passed) {
+		this.probed++;
+		if (!passed) {
+			this.rejected++;
+		}
+	}
+
+	/**
+	 * @return description of the join
+	 */
+	public String getJoin() {
+		return this.join;
+	}
+
+	/**
+	 * @return number of keys added to the filter
+	 */
+	public long getBuildKeys() {
+		return this.build_keys;
+	}
+
+	/**
+	 * @return number of probe-side tuples tested
+	 */
+	public long getProbed() {
+		return this.probed;
+	}
+
+	/**
+	 * @return number of probe-side tuples the filter dropped
+	 */
+	public long getRejected() {
+		return this.rejected;
+	}
+
+	/**
+	 * @return fraction of probe-side tuples the filter dropped, or 0 if none were tested
+	 */
+	public double getRejectionRate() {
+		return (this.probed == 0) ? 0.0 : (double) this.rejected / this.probed;
+	}
+
+	/**
+	 * @return a one-line summary of the filter's effect
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s: build keys=%d probed=%d rejected=%d (%.1f%%)",
+				this.join, this.build_keys, this.probed, this.rejected, 100 * this.getRejectionRate());
+	}
+}
@@ -1,26 +1,738 @@
 package solver;
 
 import exceptions.DBException;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.ToIntFunction;
 
-public class Expression {
-	private final static ScriptEngine solver = (new ScriptEngineManager()).getEngineByName("JavaScript");
+/**
+ * A compiled boolean or arithmetic expression, such as a selection condition.
+ * Conditions are parsed once into a tree of expressions whose attribute names have
+ * already been resolved to positions, and can then be evaluated on any number of rows.
+ *
+ * The syntax follows JavaScript: comparisons (= or ==, !=, <>, <, <=, >, >=), logical
+ * operators (&&, ||, !), arithmetic (+, -, *, /, %), parentheses, numbers, quoted strings,
+ * true, false and null. Any other name is an attribute. Text values have their quotes
+ * removed before they are compared. Each ? is a parameter, numbered from 0 in order of
+ * appearance, whose value is supplied later (see: bind).
+ */
+public abstract class Expression {
+	private final SortedSet<Integer> positions;
 
 	/**
-	 * Attempts to evaluate a boolean expression
+	 * @param operands	sub-expressions whose attribute positions this expression also reads
+	 */
+	private Expression(Expression... operands) {
+		SortedSet<Integer> all = new TreeSet<>();
+		for (Expression e : operands) {
+			all.addAll(e.positions);
+		}
+		this.positions = Collections.unmodifiableSortedSet(all);
+	}
+
+	/**
+	 * @param position	the one attribute position this expression reads
+	 */
+	private Expression(int position) {
+		this.positions = Collections.unmodifiableSortedSet(new TreeSet<>(Collections.singleton(position)));
+	}
+
+	/**
+	 * Evaluates this expression on a row
+	 * @param row	supplies attribute values
+	 * @return a Double, String (unquoted), Boolean, or null
+	 */
+	public abstract Object evaluate(Row row);
+
+	/**
+	 * Evaluates this expression as a condition on a row
+	 * @param row	supplies attribute values
+	 * @return true if the expression's value is truthy (see: truthy)
+	 */
+	public boolean test(Row row) {
+		return truthy(this.evaluate(row));
+	}
+
+	/**
+	 * @return the operator applied by this expression, or null for a value or attribute.
+	 * 		Equality is always reported as "==" and inequality as "!=".
+	 */
+	public String getOperator() {
+		return null;
+	}
+
+	/**
+	 * @return the operands of this expression's operator; empty for a value or attribute
+	 */
+	public List<Expression> getOperands() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return the position this expression reads if it is a single attribute, or -1
+	 */
+	public int getAttribute() {
+		return -1;
+	}
+
+	/**
+	 * @return the number of this parameter if the expression is a single parameter, or -1
+	 */
+	public int getParameter() {
+		return -1;
+	}
+
+	/**
+	 * @return number of parameters in this expression (one more than the highest parameter number)
+	 */
+	public int getParameterCount() {
+		int count = this.getParameter() + 1;
+		for (Expression e : this.getOperands()) {
+			count = Math.max(count, e.getParameterCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Supplies values for this expression's parameters
+	 * @param params	value of each parameter: a number, a string (quoted or not), a boolean or null
+	 * @return a copy of this expression with each parameter replaced by its value
+	 * @throws DBException if the wrong number of values is given
+	 */
+	public Expression bind(Object... params) throws DBException {
+		if (params.length != this.getParameterCount()) {
+			throw new DBException("Expected " + this.getParameterCount() + " parameters but got " + params.length);
+		}
+		return this.substitute(params);
+	}
+
+	/**
+	 * @param params	value of each parameter
+	 * @return a copy of this expression with each parameter replaced by its value
+	 */
+	Expression substitute(Object[] params) {
+		return this;
+	}
+
+	/**
+	 * Converts a value to the form expressions evaluate to
+	 * @param val	a number, a string (quoted or not), a boolean or null
+	 * @return the value as a Double, an unquoted String, a Boolean or null
+	 */
+	public static Object toValue(Object val) {
+		if (val instanceof Number) {
+			return ((Number) val).doubleValue();
+		}
+		if (val instanceof Comparable) {
+			return unquote((Comparable) val);
+		}
+		return val;
+	}
+
+	/**
+	 * @return positions of every attribute this expression reads
+	 */
+	public SortedSet<Integer> getPositions() {
+		return this.positions;
+	}
+
+	/**
+	 * Splits this expression into the conditions that are combined with &&
+	 * @return the conjuncts; just this expression if it is not an &&
+	 */
+	public List<Expression> getConjuncts() {
+		List<Expression> list = new ArrayList<>();
+		this.addConjuncts(list);
+		return list;
+	}
+
+	/**
+	 * @param list	list to add this expression's conjuncts to
+	 */
+	private void addConjuncts(List<Expression> list) {
+		if ("&&".equals(this.getOperator())) {
+			for (Expression e : this.getOperands()) {
+				e.addConjuncts(list);
+			}
+		}
+		else {
+			list.add(this);
+		}
+	}
+
+	/**
+	 * Attempts to evaluate a boolean expression that names no attributes
 	 * @param cond	A valid conditional expression
 	 * @return	the result of the given expression
-	 * @throws IllegalArgumentException if the given expression string is invalid
+	 * @throws DBException if the given expression string is invalid
 	 */
 	public static boolean eval(String cond) throws DBException {
-		// replace '=' with '=='
-		cond = cond.replaceAll("\\s+=\\s+", " == ");
-		try {
-			return (Boolean) solver.eval(cond);
-		} catch (ScriptException e) {
+		return compile(cond, name -> {
 			throw new DBException("Invalid expression: " + cond);
+		}).test(pos -> null);
+	}
+
+	/**
+	 * Parses an expression, resolving each attribute name to a position
+	 * @param cond	the expression
+	 * @param resolver	maps an attribute name to its position; throws DBException if there is none
+	 * @return the compiled expression
+	 * @throws DBException if the expression is invalid or names an unknown attribute
+	 */
+	public static Expression compile(String cond, ToIntFunction<String> resolver) throws DBException {
+		Parser parser = new Parser(cond, resolver);
+		Expression e = parser.parseOr();
+		if (!parser.atEnd()) {
+			throw new DBException("Invalid expression: " + cond);
+		}
+		return e;
+	}
+
+	/**
+	 * Determines whether a value counts as true, as JavaScript does
+	 * @param val	a value
+	 * @return false for null, false, 0, NaN and the empty string; true otherwise
+	 */
+	public static boolean truthy(Object val) {
+		if (val == null) {
+			return false;
+		}
+		if (val instanceof Boolean) {
+			return (Boolean) val;
+		}
+		if (val instanceof Double) {
+			double d = (Double) val;
+			return d != 0 && !Double.isNaN(d);
+		}
+		return !val.toString().isEmpty();
+	}
+
+	/**
+	 * Converts a value to a number, as JavaScript does
+	 * @param val	a value
+	 * @return the value as a number; NaN if it is not one
+	 */
+	public static double toNumber(Object val) {
+		if (val == null) {
+			return 0;
+		}
+		if (val instanceof Double) {
+			return (Double) val;
+		}
+		if (val instanceof Boolean) {
+			return ((Boolean) val) ? 1 : 0;
+		}
+		String s = val.toString().trim();
+		if (s.isEmpty()) {
+			return 0;
+		}
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Removes the quotes around a text value
+	 * @param val	a value
+	 * @return the value without surrounding quotes
+	 */
+	private static Object unquote(Comparable val) {
+		if (val instanceof String) {
+			String s = (String) val;
+			int len = s.length();
+			if (len >= 2 && (s.charAt(0) == '\'' || s.charAt(0) == '"') && s.charAt(len - 1) == s.charAt(0)) {
+				return s.substring(1, len - 1);
+			}
+		}
+		return val;
+	}
+
+	/**
+	 * Formats a value as JavaScript would when concatenating it to a string
+	 * @param val	a value
+	 * @return the value as a string
+	 */
+	private static String toText(Object val) {
+		if (val instanceof Double) {
+			double d = (Double) val;
+			if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e21) {
+				return Long.toString((long) d);
+			}
+		}
+		return String.valueOf(val);
+	}
+
+	/**
+	 * Compares two values. Strings compare as strings, anything else as numbers.
+	 * @param first	a value
+	 * @param second	another value
+	 * @return negative, zero or positive as first is less than, equal to or greater than second;
+	 * 		null if they are unordered (a null or NaN is involved)
+	 */
+	private static Integer compareValues(Object first, Object second) {
+		if (first == null || second == null) {
+			return null;
+		}
+		if (first instanceof String && second instanceof String) {
+			return ((String) first).compareTo((String) second);
+		}
+		double a = toNumber(first);
+		double b = toNumber(second);
+		if (Double.isNaN(a) || Double.isNaN(b)) {
+			return null;
+		}
+		return (a < b) ? -1 : ((a > b) ? 1 : 0);
+	}
+
+	/**
+	 * Determines whether two values are equal, as JavaScript's == does
+	 * @param first	a value
+	 * @param second	another value
+	 * @return true if equal
+	 */
+	private static boolean equalValues(Object first, Object second) {
+		if (first == null || second == null) {
+			return first == second;
+		}
+		Integer cmp = compareValues(first, second);
+		return cmp != null && cmp == 0;
+	}
+
+	/**
+	 * A literal value
+	 */
+	private static class Literal extends Expression {
+		private final Object value;
+
+		Literal(Object value) {
+			super();
+			this.value = value;
+		}
+
+		@Override
+		public Object evaluate(Row row) {
+			return this.value;
+		}
+
+		@Override
+		public String toString() {
+			return (this.value instanceof String) ? "'" + this.value + "'" : toText(this.value);
+		}
+	}
+
+	/**
+	 * An attribute value, read by position
+	 */
+	private static class AttributeRef extends Expression {
+		private final int position;
+		private final String name;
+
+		AttributeRef(int position, String name) {
+			super(position);
+			this.position = position;
+			this.name = name;
+		}
+
+		@Override
+		public Object evaluate(Row row) {
+			return unquote(row.get(this.position));
+		}
+
+		@Override
+		public int getAttribute() {
+			return this.position;
+		}
+
+		@Override
+		public String toString() {
+			return this.name;
+		}
+	}
+
+	/**
+	 * A parameter, whose value is supplied by bind()
+	 */
+	private static class Parameter extends Expression {
+		private final int number;
+
+		Parameter(int number) {
+			super();
+			this.number = number;
+		}
+
+		@Override
+		public Object evaluate(Row row) {
+			throw new DBException("Parameter " + this.number + " has no value");
+		}
+
+		@Override
+		public int getParameter() {
+			return this.number;
+		}
+
+		@Override
+		Expression substitute(Object[] params) {
+			return new Literal(toValue(params[this.number]));
+		}
+
+		@Override
+		public String toString() {
+			return "?";
+		}
+	}
+
+	/**
+	 * An operator applied to one or two operands
+	 */
+	private static class Operation extends Expression {
+		private final String op;
+		private final Expression left;
+		private final Expression right;	/* null for a unary operator */
+
+		Operation(String op, Expression operand) {
+			super(operand);
+			this.op = op;
+			this.left = operand;
+			this.right = null;
+		}
+
+		Operation(String op, Expression left, Expression right) {
+			super(left, right);
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public String getOperator() {
+			return this.op;
+		}
+
+		@Override
+		Expression substitute(Object[] params) {
+			Expression l = this.left.substitute(params);
+			if (this.right == null) {
+				return (l == this.left) ? this : new Operation(this.op, l);
+			}
+			Expression r = this.right.substitute(params);
+			return (l == this.left && r == this.right) ? this : new Operation(this.op, l, r);
+		}
+
+		@Override
+		public List<Expression> getOperands() {
+			return (this.right == null) ? Collections.singletonList(this.left) : List.of(this.left, this.right);
+		}
+
+		@Override
+		public Object evaluate(Row row) {
+			if (this.right == null) {
+				Object val = this.left.evaluate(row);
+				return this.op.equals("!") ? (Object) !truthy(val) : (Object) (-toNumber(val));
+			}
+			switch (this.op) {
+				case "&&":
+					return this.left.test(row) && this.right.test(row);
+				case "||":
+					return this.left.test(row) || this.right.test(row);
+				default:
+					break;
+			}
+			Object a = this.left.evaluate(row);
+			Object b = this.right.evaluate(row);
+			Integer cmp;
+			switch (this.op) {
+				case "==":
+					return equalValues(a, b);
+				case "!=":
+					return !equalValues(a, b);
+				case "<":
+					cmp = compareValues(a, b);
+					return cmp != null && cmp < 0;
+				case "<=":
+					cmp = compareValues(a, b);
+					return cmp != null && cmp <= 0;
+				case ">":
+					cmp = compareValues(a, b);
+					return cmp != null && cmp > 0;
+				case ">=":
+					cmp = compareValues(a, b);
+					return cmp != null && cmp >= 0;
+				case "+":
+					if (a instanceof String || b instanceof String) {
+						return toText(a) + toText(b);
+					}
+					return toNumber(a) + toNumber(b);
+				case "-":
+					return toNumber(a) - toNumber(b);
+				case "*":
+					return toNumber(a) * toNumber(b);
+				case "/":
+					return toNumber(a) / toNumber(b);
+				default:	// "%"
+					return toNumber(a) % toNumber(b);
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (this.right == null) {
+				return this.op + this.left;
+			}
+			return "(" + this.left + " " + this.op + " " + this.right + ")";
+		}
+	}
+
+	/**
+	 * A recursive-descent parser for expressions
+	 */
+	private static class Parser {
+		private final String cond;
+		private final ToIntFunction<String> resolver;
+		private int pos;
+		private String token;	/* current token, or null at the end of input */
+		private boolean quoted;	/* whether the current token is a string literal */
+		private int parameters;	/* number of parameters seen so far */
+
+		Parser(String cond, ToIntFunction<String> resolver) throws DBException {
+			this.cond = cond;
+			this.resolver = resolver;
+			this.pos = 0;
+			this.advance();
+		}
+
+		/**
+		 * @return true if every token has been consumed
+		 */
+		boolean atEnd() {
+			return this.token == null;
+		}
+
+		/**
+		 * @return an exception reporting that the expression is invalid
+		 */
+		private DBException invalid() {
+			return new DBException("Invalid expression: " + this.cond);
+		}
+
+		/**
+		 * Moves to the next token
+		 * @throws DBException if the input holds an unexpected character or unterminated string
+		 */
+		private void advance() throws DBException {
+			String s = this.cond;
+			while (this.pos < s.length() && Character.isWhitespace(s.charAt(this.pos))) {
+				this.pos++;
+			}
+			this.quoted = false;
+			if (this.pos >= s.length()) {
+				this.token = null;
+				return;
+			}
+			int start = this.pos;
+			char c = s.charAt(this.pos);
+			if (c == '\'' || c == '"') {
+				StringBuilder sb = new StringBuilder();
+				this.pos++;
+				while (this.pos < s.length() && s.charAt(this.pos) != c) {
+					if (s.charAt(this.pos) == '\\' && this.pos + 1 < s.length()) {
+						this.pos++;
+					}
+					sb.append(s.charAt(this.pos++));
+				}
+				if (this.pos >= s.length()) {
+					throw this.invalid();
+				}
+				this.pos++;
+				this.token = sb.toString();
+				this.quoted = true;
+			}
+			else if (Character.isDigit(c) || (c == '.' && this.pos + 1 < s.length() && Character.isDigit(s.charAt(this.pos + 1)))) {
+				while (this.pos < s.length() && (Character.isDigit(s.charAt(this.pos)) || s.charAt(this.pos) == '.')) {
+					this.pos++;
+				}
+				if (this.pos < s.length() && (s.charAt(this.pos) == 'e' || s.charAt(this.pos) == 'E')) {
+					this.pos++;
+					if (this.pos < s.length() && (s.charAt(this.pos) == '+' || s.charAt(this.pos) == '-')) {
+						this.pos++;
+					}
+					while (this.pos < s.length() && Character.isDigit(s.charAt(this.pos))) {
+						this.pos++;
+					}
+				}
+				this.token = s.substring(start, this.pos);
+			}
+			else if (Character.isLetter(c) || c == '_' || c == '$') {
+				while (this.pos < s.length() && (Character.isLetterOrDigit(s.charAt(this.pos)) ||
+						"_$.".indexOf(s.charAt(this.pos)) >= 0)) {
+					this.pos++;
+				}
+				this.token = s.substring(start, this.pos);
+			}
+			else {
+				for (String op : new String[] {"===", "!==", "&&", "||", "==", "!=", "<>", "<=", ">="}) {
+					if (s.startsWith(op, this.pos)) {
+						this.pos += op.length();
+						this.token = op;
+						return;
+					}
+				}
+				if ("=<>!+-*/%()?".indexOf(c) < 0) {
+					throw this.invalid();
+				}
+				this.pos++;
+				this.token = String.valueOf(c);
+			}
+		}
+
+		/**
+		 * Consumes the current token if it is the given operator
+		 * @param op	an operator
+		 * @return true if the operator was consumed
+		 */
+		private boolean accept(String op) throws DBException {
+			if (!this.quoted && op.equals(this.token)) {
+				this.advance();
+				return true;
+			}
+			return false;
+		}
+
+		Expression parseOr() throws DBException {
+			Expression e = this.parseAnd();
+			while (this.accept("||")) {
+				e = new Operation("||", e, this.parseAnd());
+			}
+			return e;
+		}
+
+		private Expression parseAnd() throws DBException {
+			Expression e = this.parseComparison();
+			while (this.accept("&&")) {
+				e = new Operation("&&", e, this.parseComparison());
+			}
+			return e;
+		}
+
+		private Expression parseComparison() throws DBException {
+			Expression e = this.parseAdditive();
+			while (true) {
+				if (this.accept("=") || this.accept("==") || this.accept("===")) {
+					e = new Operation("==", e, this.parseAdditive());
+				}
+				else if (this.accept("!=") || this.accept("<>") || this.accept("!==")) {
+					e = new Operation("!=", e, this.parseAdditive());
+				}
+				else if (this.accept("<=")) {
+					e = new Operation("<=", e, this.parseAdditive());
+				}
+				else if (this.accept(">=")) {
+					e = new Operation(">=", e, this.parseAdditive());
+				}
+				else if (this.accept("<")) {
+					e = new Operation("<", e, this.parseAdditive());
+				}
+				else if (this.accept(">")) {
+					e = new Operation(">", e, this.parseAdditive());
+				}
+				else {
+					return e;
+				}
+			}
+		}
+
+		private Expression parseAdditive() throws DBException {
+			Expression e = this.parseMultiplicative();
+			while (true) {
+				if (this.accept("+")) {
+					e = new Operation("+", e, this.parseMultiplicative());
+				}
+				else if (this.accept("-")) {
+					e = new Operation("-", e, this.parseMultiplicative());
+				}
+				else {
+					return e;
+				}
+			}
+		}
+
+		private Expression parseMultiplicative() throws DBException {
+			Expression e = this.parseUnary();
+			while (true) {
+				if (this.accept("*")) {
+					e = new Operation("*", e, this.parseUnary());
+				}
+				else if (this.accept("/")) {
+					e = new Operation("/", e, this.parseUnary());
+				}
+				else if (this.accept("%")) {
+					e = new Operation("%", e, this.parseUnary());
+				}
+				else {
+					return e;
+				}
+			}
+		}
+
+		private Expression parseUnary() throws DBException {
+			if (this.accept("!")) {
+				return new Operation("!", this.parseUnary());
+			}
+			if (this.accept("-")) {
+				return new Operation("-", this.parseUnary());
+			}
+			if (this.accept("+")) {
+				return this.parseUnary();
+			}
+			return this.parsePrimary();
+		}
+
+		private Expression parsePrimary() throws DBException {
+			String tok = this.token;
+			if (tok == null) {
+				throw this.invalid();
+			}
+			if (this.quoted) {
+				this.advance();
+				return new Literal(tok);
+			}
+			if (this.accept("?")) {
+				return new Parameter(this.parameters++);
+			}
+			if (this.accept("(")) {
+				Expression e = this.parseOr();
+				if (!this.accept(")")) {
+					throw this.invalid();
+				}
+				return e;
+			}
+			char c = tok.charAt(0);
+			if (Character.isDigit(c) || c == '.') {
+				this.advance();
+				try {
+					return new Literal(Double.parseDouble(tok));
+				} catch (NumberFormatException e) {
+					throw this.invalid();
+				}
+			}
+			if (!(Character.isLetter(c) || c == '_' || c == '$')) {
+				throw this.invalid();
+			}
+			this.advance();
+			switch (tok) {
+				case "true":
+					return new Literal(Boolean.TRUE);
+				case "false":
+					return new Literal(Boolean.FALSE);
+				case "null":
+					return new Literal(null);
+				default:
+					return new AttributeRef(this.resolver.applyAsInt(tok), tok);
+			}
 		}
 	}
 }
@@ -0,0 +1,14 @@
+package solver;
+
+/**
+ * Anything whose values can be read by position, such as a tuple. Compiled expressions
+ * read attribute values through this interface.
+ */
+public interface Row {
+	/**
+	 * Retrieves the value at the given position
+	 * @param pos	position of the value
+	 * @return the value at the given position
+	 */
+	Comparable get(int pos);
+}